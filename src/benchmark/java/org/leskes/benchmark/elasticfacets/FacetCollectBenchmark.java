@@ -0,0 +1,60 @@
+package org.leskes.benchmark.elasticfacets;
+
+import org.apache.lucene.index.IndexReader;
+import org.elasticsearch.search.facet.terms.TermsFacet;
+import org.leskes.elasticfacets.HashedStringsFacet;
+import org.leskes.elasticfacets.HashedStringsFacetCollector;
+import org.leskes.elasticfacets.fields.HashedStringFieldData;
+import org.leskes.elasticfacets.fields.MultiSweepFieldDataLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the per document part of HashedStringsFacetCollector (ReaderAggregator) over all docs, followed by the
+ * top entries merge done in facet(). Term loading is left out as it needs a search context.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FacetCollectBenchmark {
+
+   @Param({"200000"})
+   public int docs;
+
+   @Param({"100", "10000", "1000000"})
+   public int cardinality;
+
+   @Param({"1", "4"})
+   public int valuesPerDoc;
+
+   @Param({"10"})
+   public int size;
+
+   HashedStringFieldData fieldData;
+
+   @Setup
+   public void setup() throws IOException {
+      IndexReader reader = SyntheticIndex.build(docs, cardinality, valuesPerDoc, 0);
+      fieldData = MultiSweepFieldDataLoader.load(reader, SyntheticIndex.FIELD,
+              new HashedStringFieldData.HashedStringTypeLoader(0, 0, null, null).newLoadContext());
+      reader.close();
+   }
+
+   @Benchmark
+   public HashedStringsFacet.HashedStringEntry[] collectAndFacet() {
+      HashedStringsFacetCollector.ReaderAggregator aggregator = new HashedStringsFacetCollector.ReaderAggregator(fieldData, 0);
+      for (int doc = 0; doc < docs; doc++) {
+         fieldData.forEachOrdinalInDoc(doc, aggregator);
+      }
+      HashedStringsFacet.HashedStringEntry[] entries = HashedStringsFacetCollector.mergeAggregators(
+              Collections.singletonList(aggregator), size, TermsFacet.ComparatorType.COUNT, 0, null, null);
+      aggregator.close();
+      return entries;
+   }
+}
@@ -0,0 +1,193 @@
+package org.leskes.benchmark.elasticfacets;
+
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
+import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.leskes.test.elasticfacets.utils.AbstractNodesTests;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * A reproducible load test: indexes documents with power law distributed tags into embedded nodes and replays
+ * concurrent facet queries, comparing the plugin's facets to the stock terms facet on the same data.
+ * <p/>
+ * Run with <code>mvn -Pbenchmark test-compile exec:java -Dexec.mainClass=org.leskes.benchmark.elasticfacets.FacetLoadHarness</code>.
+ * Everything is configured with system properties, see the fields below.
+ */
+public class FacetLoadHarness extends AbstractNodesTests {
+
+   final int docs = Integer.getInteger("harness.docs", 1000000);
+   final int shards = Integer.getInteger("harness.shards", 2);
+   final int nodes = Integer.getInteger("harness.nodes", 2);
+   final int cardinality = Integer.getInteger("harness.cardinality", 100000);
+   final double zipfExponent = Double.parseDouble(System.getProperty("harness.zipf_exponent", "1.0"));
+   final int maxValuesPerDoc = Integer.getInteger("harness.max_values_per_doc", 3);
+   final int threads = Integer.getInteger("harness.threads", 8);
+   final int queries = Integer.getInteger("harness.queries", 2000);
+   final int warmupQueries = Integer.getInteger("harness.warmup_queries", 200);
+   final long seed = Long.getLong("harness.seed", 0);
+
+   static final long START_TIME = 1325376000000L; // 2012-01-01
+   static final long TIME_SPAN = 365L * 24 * 3600 * 1000;
+
+   static final String[][] SCENARIOS = {
+           {"terms", "{ \"f\": { \"terms\": { \"field\": \"tag\", \"size\": 10 } } }"},
+           {"hashed_terms", "{ \"f\": { \"hashed_terms\": { \"field\": \"tag\", \"size\": 10 } } }"},
+           {"date_histogram/terms", "{ \"f\": { \"faceted_date_histogram\": { \"field\": \"date\", \"interval\": \"month\", " +
+                   "\"facet\": { \"terms\": { \"field\": \"tag\", \"size\": 10 } } } } }"},
+           {"date_histogram/hashed_terms", "{ \"f\": { \"faceted_date_histogram\": { \"field\": \"date\", \"interval\": \"month\", " +
+                   "\"facet\": { \"hashed_terms\": { \"field\": \"tag\", \"size\": 10 } } } } }"}
+   };
+
+   public static void main(String[] args) throws Exception {
+      FacetLoadHarness harness = new FacetLoadHarness();
+      harness.createNodes();
+      try {
+         for (String[] scenario : SCENARIOS) {
+            harness.run(scenario[0], scenario[1].getBytes("UTF-8"));
+         }
+      } finally {
+         harness.closeNodes();
+      }
+   }
+
+   @Override
+   protected int numberOfNodes() {
+      return nodes;
+   }
+
+   @Override
+   protected int numberOfShards() {
+      return shards;
+   }
+
+   @Override
+   protected void loadData() throws Exception {
+      logger.info("Indexing [{}] docs, cardinality [{}], zipf exponent [{}], up to [{}] values per doc",
+              docs, cardinality, zipfExponent, maxValuesPerDoc);
+      ZipfDistribution zipf = new ZipfDistribution(cardinality, zipfExponent);
+      Random random = new Random(seed);
+      long start = System.currentTimeMillis();
+      BulkRequestBuilder bulk = client.prepareBulk();
+      for (int i = 0; i < docs; i++) {
+         int values = 1 + random.nextInt(maxValuesPerDoc);
+         String[] tags = new String[values];
+         for (int v = 0; v < values; v++) {
+            tags[v] = "tag_" + zipf.sample(random);
+         }
+         XContentBuilder doc = jsonBuilder().startObject()
+                 .array("tag", (Object[]) tags)
+                 .field("date", START_TIME + (long) (random.nextDouble() * TIME_SPAN))
+                 .endObject();
+         bulk.add(client.prepareIndex("test", "type1").setSource(doc));
+         if (bulk.numberOfActions() == 5000) {
+            flushBulk(bulk);
+            bulk = client.prepareBulk();
+         }
+      }
+      if (bulk.numberOfActions() > 0) flushBulk(bulk);
+      client.admin().indices().prepareRefresh().execute().actionGet();
+      client.admin().indices().prepareOptimize().setMaxNumSegments(1).execute().actionGet();
+      logger.info("Indexing took [{}ms]", System.currentTimeMillis() - start);
+   }
+
+   private void flushBulk(BulkRequestBuilder bulk) {
+      BulkResponse response = bulk.execute().actionGet();
+      if (response.hasFailures()) {
+         throw new RuntimeException(response.buildFailureMessage());
+      }
+   }
+
+   void run(final String scenario, final byte[] facet) throws Exception {
+      client.admin().indices().prepareClearCache().execute().actionGet();
+
+      for (int i = 0; i < warmupQueries; i++) {
+         search(facet);
+      }
+      long fieldDataBytes = fieldDataSize();
+
+      final long[] latencies = new long[queries];
+      final AtomicInteger next = new AtomicInteger();
+      final CountDownLatch done = new CountDownLatch(threads);
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      long start = System.nanoTime();
+      for (int t = 0; t < threads; t++) {
+         executor.execute(new Runnable() {
+            public void run() {
+               try {
+                  for (int i = next.getAndIncrement(); i < queries; i = next.getAndIncrement()) {
+                     long s = System.nanoTime();
+                     search(facet);
+                     latencies[i] = System.nanoTime() - s;
+                  }
+               } finally {
+                  done.countDown();
+               }
+            }
+         });
+      }
+      done.await();
+      long took = System.nanoTime() - start;
+      executor.shutdown();
+
+      Arrays.sort(latencies);
+      logger.info("[{}] qps [{}], p50 [{}ms], p99 [{}ms], max [{}ms], field data [{}kb]", scenario,
+              String.format("%.1f", queries / (took / 1e9)),
+              String.format("%.2f", percentile(latencies, 0.5) / 1e6),
+              String.format("%.2f", percentile(latencies, 0.99) / 1e6),
+              String.format("%.2f", latencies[latencies.length - 1] / 1e6),
+              fieldDataBytes / 1024);
+   }
+
+   private void search(byte[] facet) {
+      client.prepareSearch("test").setSearchType(SearchType.COUNT).setFacets(facet).execute().actionGet();
+   }
+
+   private long fieldDataSize() {
+      NodesStatsResponse response = client.admin().cluster().prepareNodesStats().setIndices(true).execute().actionGet();
+      long size = 0;
+      for (NodeStats stats : response.nodes()) {
+         size += stats.indices().cache().fieldSizeInBytes();
+      }
+      return size;
+   }
+
+   static long percentile(long[] sorted, double p) {
+      int index = (int) Math.ceil(p * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+   }
+
+   /**
+    * Samples ranks 0..n-1 with probability proportional to 1/(rank+1)^exponent.
+    */
+   static class ZipfDistribution {
+      final double[] cdf;
+
+      ZipfDistribution(int n, double exponent) {
+         cdf = new double[n];
+         double sum = 0;
+         for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+         }
+         for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+         }
+      }
+
+      int sample(Random random) {
+         int pos = Arrays.binarySearch(cdf, random.nextDouble());
+         return pos >= 0 ? pos : Math.min(-pos - 1, cdf.length - 1);
+      }
+   }
+}
@@ -0,0 +1,51 @@
+package org.leskes.benchmark.elasticfacets;
+
+import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.terms.TermsFacet;
+import org.leskes.elasticfacets.HashedStringsFacet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FacetReduceBenchmark {
+
+   @Param({"2", "10", "50"})
+   public int shards;
+
+   @Param({"100", "1000"})
+   public int fetchSize;
+
+   @Param({"10"})
+   public int size;
+
+   // reduce modifies the facets it is given, so they are rebuilt before every call
+   List<Facet> facets;
+
+   @Setup(Level.Invocation)
+   public void setup() {
+      Random random = new Random(shards);
+      facets = new ArrayList<Facet>(shards);
+      for (int s = 0; s < shards; s++) {
+         List<HashedStringsFacet.HashedStringEntry> entries = new ArrayList<HashedStringsFacet.HashedStringEntry>(fetchSize);
+         for (int i = 0; i < fetchSize; i++) {
+            // overlapping hashes between shards, as in real results
+            entries.add(new HashedStringsFacet.HashedStringEntry(null, random.nextInt(fetchSize * 2), i, 1 + random.nextInt(1000)));
+         }
+         facets.add(new HashedStringsFacet("facet", TermsFacet.ComparatorType.COUNT, size, entries, 0, 0));
+      }
+   }
+
+   @Benchmark
+   public Facet reduce() {
+      return ((HashedStringsFacet) facets.get(0)).reduce("facet", facets);
+   }
+}
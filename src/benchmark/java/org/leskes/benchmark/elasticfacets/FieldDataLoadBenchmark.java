@@ -0,0 +1,46 @@
+package org.leskes.benchmark.elasticfacets;
+
+import org.apache.lucene.index.IndexReader;
+import org.leskes.elasticfacets.fields.HashedStringFieldData;
+import org.leskes.elasticfacets.fields.MultiSweepFieldDataLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FieldDataLoadBenchmark {
+
+   @Param({"200000"})
+   public int docs;
+
+   @Param({"100", "10000", "1000000"})
+   public int cardinality;
+
+   @Param({"1", "4"})
+   public int valuesPerDoc;
+
+   IndexReader reader;
+
+   @Setup
+   public void setup() throws IOException {
+      reader = SyntheticIndex.build(docs, cardinality, valuesPerDoc, 0);
+   }
+
+   @TearDown
+   public void tearDown() throws IOException {
+      reader.close();
+   }
+
+   @Benchmark
+   public HashedStringFieldData load() throws IOException {
+      // load state lives in the context, so every load needs a fresh one
+      return MultiSweepFieldDataLoader.load(reader, SyntheticIndex.FIELD,
+              new HashedStringFieldData.HashedStringTypeLoader(0, 0, null, null).newLoadContext());
+   }
+}
@@ -0,0 +1,67 @@
+package org.leskes.benchmark.elasticfacets;
+
+import org.elasticsearch.index.field.data.FieldData;
+import org.leskes.elasticfacets.fields.MultiValueOrdinalArray;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OrdinalArrayBenchmark {
+
+   @Param({"1000000"})
+   public int docs;
+
+   @Param({"1", "4", "16"})
+   public int maxValuesPerDoc;
+
+   MultiValueOrdinalArray array;
+
+   @Setup
+   public void setup() {
+      Random random = new Random(0);
+      int[] ordinalsNoPerDoc = new int[docs];
+      for (int doc = 0; doc < docs; doc++) {
+         ordinalsNoPerDoc[doc] = random.nextInt(maxValuesPerDoc + 1);
+      }
+      array = new MultiValueOrdinalArray(ordinalsNoPerDoc);
+      MultiValueOrdinalArray.MultiValueOrdinalLoader loader = array.createLoader();
+      for (int doc = 0; doc < docs; doc++) {
+         for (int i = 0; i < ordinalsNoPerDoc[doc]; i++) {
+            loader.addDocOrdinal(doc, 1 + random.nextInt(100000));
+         }
+      }
+   }
+
+   @Benchmark
+   public long iterate() {
+      long sum = 0;
+      for (int doc = 0; doc < docs; doc++) {
+         MultiValueOrdinalArray.OrdinalIterator it = array.getOrdinalIteratorForDoc(doc);
+         for (int o = it.getNextOrdinal(); o != 0; o = it.getNextOrdinal()) {
+            sum += o;
+         }
+      }
+      return sum;
+   }
+
+   @Benchmark
+   public long forEachOrdinal() {
+      final long[] sum = new long[1];
+      FieldData.OrdinalInDocProc proc = new FieldData.OrdinalInDocProc() {
+         public void onOrdinal(int docId, int ordinal) {
+            sum[0] += ordinal;
+         }
+      };
+      for (int doc = 0; doc < docs; doc++) {
+         array.forEachOrdinalInDoc(doc, proc);
+      }
+      return sum[0];
+   }
+}
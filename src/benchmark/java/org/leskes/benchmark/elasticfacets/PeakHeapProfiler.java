@@ -0,0 +1,41 @@
+package org.leskes.benchmark.elasticfacets;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Reports the peak heap usage (sum of the peaks of all heap pools) seen during every iteration.
+ * Use with -prof org.leskes.benchmark.elasticfacets.PeakHeapProfiler
+ */
+public class PeakHeapProfiler implements InternalProfiler {
+
+   public String getDescription() {
+      return "Peak heap usage per iteration";
+   }
+
+   public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+      }
+   }
+
+   public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                      IterationResult result) {
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+      }
+      return Collections.singletonList(new ScalarResult("heap.peak", peak / (1024.0 * 1024.0), "MB", AggregationPolicy.MAX));
+   }
+}
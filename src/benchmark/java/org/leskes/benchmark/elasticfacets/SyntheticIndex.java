@@ -0,0 +1,41 @@
+package org.leskes.benchmark.elasticfacets;
+
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Builds single segment, in memory indexes with a string field of a given cardinality and number of values per doc.
+ */
+public class SyntheticIndex {
+
+   public static final String FIELD = "field";
+
+   public static IndexReader build(int docs, int cardinality, int valuesPerDoc, long seed) throws IOException {
+      RAMDirectory dir = new RAMDirectory();
+      IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_36, new KeywordAnalyzer()));
+      Random random = new Random(seed);
+      for (int i = 0; i < docs; i++) {
+         Document doc = new Document();
+         for (int v = 0; v < valuesPerDoc; v++) {
+            doc.add(new Field(FIELD, term(random.nextInt(cardinality)), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+         }
+         writer.addDocument(doc);
+      }
+      writer.forceMerge(1);
+      writer.close();
+      return IndexReader.open(dir);
+   }
+
+   public static String term(int i) {
+      return "term_" + i;
+   }
+}
@@ -2,6 +2,7 @@ package org.leskes.elasticfacets;
 
 import org.elasticsearch.action.ActionModule;
 import org.elasticsearch.common.inject.Binder;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
@@ -12,7 +13,14 @@ import org.elasticsearch.search.facet.FacetModule;
 import org.leskes.elasticfacets.cache.CacheStatsPerFieldAction;
 import org.leskes.elasticfacets.cache.RestCacheStatsPerFieldAction;
 import org.leskes.elasticfacets.cache.TransportCacheStatsPerFieldAction;
+import org.leskes.elasticfacets.fields.HashedStringFieldLoader;
 import org.leskes.elasticfacets.fields.HashedStringFieldSettings;
+import org.leskes.elasticfacets.fields.HashedStringFieldWarmer;
+import org.leskes.elasticfacets.stats.FacetStats;
+import org.leskes.elasticfacets.stats.FacetStatsAction;
+import org.leskes.elasticfacets.stats.RestFacetStatsAction;
+import org.leskes.elasticfacets.stats.TransportFacetStatsAction;
+import org.leskes.elasticfacets.utils.SizeSensitiveCacheRecycler;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -23,7 +31,8 @@ public class ElasticFacetsPlugin extends AbstractPlugin  {
 	
 	final static ESLogger logger = Loggers.getLogger(ElasticFacetsPlugin.class);
 
-	public ElasticFacetsPlugin() {
+	public ElasticFacetsPlugin(Settings settings) {
+		SizeSensitiveCacheRecycler.configure(settings);
 		logger.info("ElasticFacets plugin initialized");
     }
 
@@ -31,6 +40,27 @@ public class ElasticFacetsPlugin extends AbstractPlugin  {
 		return "ElasticFacetsPlugin";
 	}
 
+   @Override
+   public Collection<Module> modules(Settings settings) {
+      List<Module> ret = new ArrayList<Module>();
+      ret.add(new Module() {
+         @Override
+         public void configure(Binder binder) {
+            binder.bind(FacetStats.class).asEagerSingleton();
+            binder.bind(HashedStringFieldLoader.class).asEagerSingleton();
+            binder.bind(HashedStringFieldWarmer.class).asEagerSingleton();
+         }
+      });
+      return ret;
+   }
+
+   @Override
+   public Collection<Class<? extends LifecycleComponent>> services() {
+      Collection<Class<? extends LifecycleComponent>> services = new ArrayList<Class<? extends LifecycleComponent>>();
+      services.add(HashedStringFieldLoader.class);
+      return services;
+   }
+
    @Override
    public Collection<Module> shardModules(Settings settings) {
       List<Module> ret = new ArrayList<Module>();
@@ -44,20 +74,23 @@ public class ElasticFacetsPlugin extends AbstractPlugin  {
    }
 
    public String description() {
-		return "A plugin adding the Faceted Date Histogram facet type.";
+		return "A plugin adding the Faceted Date Histogram and Faceted Histogram facet types.";
 	}
 
    @Override
     public void processModule(Module module) {
 		if (module instanceof FacetModule) {
 	    	((FacetModule)module).addFacetProcessor(FacetedDateHistogramFacetProcessor.class);
+	    	((FacetModule)module).addFacetProcessor(FacetedHistogramFacetProcessor.class);
 	    	((FacetModule)module).addFacetProcessor(HashedStringsFacetProcessor.class);
 		}
         if (module instanceof ActionModule) {
             ((ActionModule)module).registerAction(CacheStatsPerFieldAction.INSTANCE, TransportCacheStatsPerFieldAction.class);
+            ((ActionModule)module).registerAction(FacetStatsAction.INSTANCE, TransportFacetStatsAction.class);
         }
         if (module instanceof RestModule) {
             ((RestModule)module).addRestAction(RestCacheStatsPerFieldAction.class);
+            ((RestModule)module).addRestAction(RestFacetStatsAction.class);
         }
     }
 
@@ -0,0 +1,142 @@
+package org.leskes.elasticfacets;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.search.facet.Facet;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Phase timings of a facet execution, enabled with "profile": true. Shards fill in their own phases, reduce sums them
+ * (keeping the slowest shard per phase) and adds its own time.
+ */
+public class FacetProfile {
+
+   public static enum Phase {
+      FIELD_DATA("field_data"),
+      COLLECT("collect"),
+      MERGE("merge"),
+      TERMS("terms"),
+      SERIALIZATION("serialization");
+
+      final XContentBuilderString name;
+
+      Phase(String name) {
+         this.name = new XContentBuilderString(name);
+      }
+   }
+
+   private static final Phase[] PHASES = Phase.values();
+
+   private int shards = 1;
+   private final long[] totalNanos = new long[PHASES.length];
+   private final long[] maxNanos = new long[PHASES.length];
+   private long reduceNanos;
+   private boolean reduced;
+
+   public void add(Phase phase, long nanos) {
+      totalNanos[phase.ordinal()] += nanos;
+      maxNanos[phase.ordinal()] = totalNanos[phase.ordinal()]; // a single shard is its own max
+   }
+
+   public long nanos(Phase phase) {
+      return totalNanos[phase.ordinal()];
+   }
+
+   /**
+    * Merges the shard level profiles of the given facets into a single profile, with the reduce time. Returns null if
+    * none of the facets was profiled.
+    */
+   public static FacetProfile reduce(List<Facet> facets, long reduceNanos) {
+      FacetProfile reduced = null;
+      for (Facet facet : facets) {
+         FacetProfile shard = ((Profiled) facet).profile();
+         if (shard == null) continue;
+         if (reduced == null) {
+            reduced = new FacetProfile();
+            reduced.shards = 0;
+            reduced.reduced = true;
+         }
+         reduced.shards += shard.shards;
+         for (int i = 0; i < PHASES.length; i++) {
+            reduced.totalNanos[i] += shard.totalNanos[i];
+            reduced.maxNanos[i] = Math.max(reduced.maxNanos[i], shard.maxNanos[i]);
+         }
+         reduced.reduceNanos += shard.reduceNanos;
+      }
+      if (reduced != null) reduced.reduceNanos += reduceNanos;
+      return reduced;
+   }
+
+   /**
+    * Implemented by facets which can carry a profile.
+    */
+   public static interface Profiled {
+      FacetProfile profile();
+   }
+
+   static final class Fields {
+      static final XContentBuilderString PROFILE = new XContentBuilderString("profile");
+      static final XContentBuilderString SHARDS = new XContentBuilderString("shards");
+      static final XContentBuilderString TOTAL_IN_MICROS = new XContentBuilderString("total_in_micros");
+      static final XContentBuilderString MAX_IN_MICROS = new XContentBuilderString("max_in_micros");
+      static final XContentBuilderString REDUCE_IN_MICROS = new XContentBuilderString("reduce_in_micros");
+   }
+
+   public XContentBuilder toXContent(XContentBuilder builder) throws IOException {
+      builder.startObject(Fields.PROFILE);
+      builder.field(Fields.SHARDS, shards);
+      for (Phase phase : PHASES) {
+         if (totalNanos[phase.ordinal()] == 0) continue;
+         builder.startObject(phase.name);
+         builder.field(Fields.TOTAL_IN_MICROS, totalNanos[phase.ordinal()] / 1000);
+         builder.field(Fields.MAX_IN_MICROS, maxNanos[phase.ordinal()] / 1000);
+         builder.endObject();
+      }
+      builder.field(Fields.REDUCE_IN_MICROS, reduceNanos / 1000);
+      builder.endObject();
+      return builder;
+   }
+
+   /**
+    * Reads a profile written by {@link #writeTo}, or null if there was none.
+    */
+   public static FacetProfile readOptional(StreamInput in) throws IOException {
+      if (!in.readBoolean()) return null;
+      FacetProfile profile = new FacetProfile();
+      profile.shards = in.readVInt();
+      for (int i = 0; i < PHASES.length; i++) {
+         profile.totalNanos[i] = in.readVLong();
+         profile.maxNanos[i] = in.readVLong();
+      }
+      profile.reduceNanos = in.readVLong();
+      profile.reduced = in.readBoolean();
+      return profile;
+   }
+
+   /**
+    * Writes the profile (or its absence). Should be called after the facet body was written, which took
+    * serializationNanos. Only the shard level serialization is recorded.
+    */
+   public static void writeOptional(FacetProfile profile, StreamOutput out, long serializationNanos) throws IOException {
+      if (profile == null) {
+         out.writeBoolean(false);
+         return;
+      }
+      if (!profile.reduced) {
+         profile.totalNanos[Phase.SERIALIZATION.ordinal()] = serializationNanos;
+         profile.maxNanos[Phase.SERIALIZATION.ordinal()] = serializationNanos;
+      }
+      out.writeBoolean(true);
+      out.writeVInt(profile.shards);
+      for (int i = 0; i < PHASES.length; i++) {
+         out.writeVLong(profile.totalNanos[i]);
+         out.writeVLong(profile.maxNanos[i]);
+      }
+      out.writeVLong(profile.reduceNanos);
+      out.writeBoolean(profile.reduced);
+   }
+}
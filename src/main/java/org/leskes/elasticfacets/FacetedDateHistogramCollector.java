@@ -6,9 +6,6 @@ import org.elasticsearch.common.joda.TimeZoneRounding;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
-import org.elasticsearch.common.xcontent.XContentFactory;
-import org.elasticsearch.common.xcontent.XContentParser;
-import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.cache.field.data.FieldDataCache;
 import org.elasticsearch.index.field.data.FieldDataType;
 import org.elasticsearch.index.field.data.longs.LongFieldData;
@@ -16,8 +13,11 @@ import org.elasticsearch.index.field.data.strings.StringFieldData;
 import org.elasticsearch.index.mapper.MapperService;
 import org.elasticsearch.search.facet.*;
 import org.elasticsearch.search.internal.SearchContext;
+import org.leskes.elasticfacets.stats.FacetStats;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
 
 
 
@@ -39,8 +39,20 @@ public class FacetedDateHistogramCollector extends
 	private LongFieldData keyFieldData;
 
 	private final DateHistogramProc histoProc;
+
+	private final DedupDateHistogramProc dedupProc;
+
+	private boolean multiValued;
+
+	private final long minDocCount;
 	
 	private final FacetCollector internalExampleCollector;
+
+	// null unless profiling was requested
+	private final FacetProfile profile;
+
+	private final FacetStats.FacetTimers timers;
+	private final FacetStats.CollectTimer collectTimer = new FacetStats.CollectTimer();
 	
 	private static ESLogger logger = Loggers.getLogger(FacetedDateHistogramCollector.class);
 
@@ -49,12 +61,15 @@ public class FacetedDateHistogramCollector extends
 	public FacetedDateHistogramCollector(String facetName,
 			String keyFieldName, 
 			TimeZoneRounding tzRounding,
-			FacetProcessor internalProcessor,
-			byte[] internalFacetConfig,
-			SearchContext context) throws IOException {
+			InternalCollectorFactory.Definition internalFacet,
+			long minDocCount, long minBound, long maxBound, int maxBuckets,
+			FacetStats.FacetTimers timers, FacetProfile profile, SearchContext context) throws IOException {
 		super(facetName);
+		this.timers = timers;
+		this.profile = profile;
 		this.fieldDataCache = context.fieldDataCache();
 		this.keyFieldName = keyFieldName;
+		this.minDocCount = minDocCount;
 		MapperService.SmartNameFieldMappers smartMappers = context
 				.smartFieldMappers(keyFieldName);
 		if (smartMappers == null || !smartMappers.hasMapper()) {
@@ -71,38 +86,14 @@ public class FacetedDateHistogramCollector extends
 		keyIndexFieldName = smartMappers.mapper().names().indexName();
 		keyFieldDataType = smartMappers.mapper().fieldDataType();
 		
-		InternalCollectorFactory  colFactory= new InternalCollectorFactory(facetName, internalProcessor, internalFacetConfig, context);
+		InternalCollectorFactory  colFactory= new InternalCollectorFactory(facetName, internalFacet.processor,
+				internalFacet.config, context);
 		
 		logger.debug("Facet {}: Test running internal facet processor ", facetName);
 		this.internalExampleCollector = colFactory.createInternalCollector();
 
-		this.histoProc = new DateHistogramProc(facetName,tzRounding,colFactory);
-	}
-	
-	protected static class InternalCollectorFactory {
-		private FacetProcessor internalProcessor;
-		private byte[] internalFacetConfig;
-		private SearchContext searchContext;
-		private String facetName;
-		
-		public InternalCollectorFactory(String facetName,FacetProcessor internalProcessor,byte[] internalFacetConfig, SearchContext searchContext)
-				{
-			this.internalProcessor = internalProcessor;
-			this.internalFacetConfig = internalFacetConfig;
-			this.searchContext = searchContext;
-			this.facetName = facetName;
-		}
-		
-		
-		public FacetCollector createInternalCollector() throws IOException {
-			XContentParser parser = XContentFactory.xContent(XContentType.JSON).createParser(internalFacetConfig);
-	        try {
-	            return internalProcessor.parse("facet", parser, searchContext);
-	        } finally {
-	            parser.close();
-	        }
-		}
-
+		this.histoProc = new DateHistogramProc(facetName,tzRounding,colFactory, minBound, maxBound, maxBuckets);
+		this.dedupProc = new DedupDateHistogramProc(histoProc);
 	}
 	
 	@Override
@@ -113,25 +104,58 @@ public class FacetedDateHistogramCollector extends
 
 	@Override
 	protected void doCollect(int doc) throws IOException {
-		keyFieldData.forEachValueInDoc(doc, histoProc);
+		// profiles time every doc, the latency stats a sample
+		if (!collectTimer.sample() && profile == null) {
+			collectValues(doc);
+			return;
+		}
+		long start = System.nanoTime();
+		collectValues(doc);
+		long took = System.nanoTime() - start;
+		collectTimer.record(took);
+		if (profile != null) profile.add(FacetProfile.Phase.COLLECT, took);
+	}
+
+	private void collectValues(int doc) throws IOException {
+		if (multiValued) {
+			dedupProc.reset();
+			keyFieldData.forEachValueInDoc(doc, dedupProc);
+			dedupProc.collect(doc);
+		} else {
+			keyFieldData.forEachValueInDoc(doc, histoProc);
+		}
 	}
 
 	@Override
 	protected void doSetNextReader(IndexReader reader, int docBase)
 			throws IOException {
+		long start = System.nanoTime();
 		keyFieldData = (LongFieldData) fieldDataCache.cache(keyFieldDataType,
 				reader, keyIndexFieldName);
+		long loaded = System.nanoTime();
+		timers.record(FacetStats.Phase.FIELD_DATA, loaded - start);
+		if (profile != null) profile.add(FacetProfile.Phase.FIELD_DATA, loaded - start);
+		multiValued = keyFieldData.multiValued();
 		
 		histoProc.setNextReader(reader, docBase);
 	}
 
 	@Override
 	public Facet facet() {
+		long start = System.nanoTime();
+		if (collectTimer.docs() > 0) timers.record(FacetStats.Phase.COLLECT, collectTimer.estimatedNanos());
 		for (Object o: histoProc.entries.internalValues()){
 			if (o == null) continue;
 			((FacetedDateHistogramFacet.Entry)o).facetize();
 		}
-		return new FacetedDateHistogramFacet(facetName,histoProc.entries);
+		FacetedDateHistogramFacet facet = new FacetedDateHistogramFacet(facetName,histoProc.entries, minDocCount);
+		if (profile != null) {
+			// building the internal facets of all buckets
+			profile.add(FacetProfile.Phase.MERGE, System.nanoTime() - start);
+			facet.profile(profile);
+		}
+		timers.record(FacetStats.Phase.FACET, System.nanoTime() - start);
+		return facet;
 	}
 	
 	
@@ -150,10 +174,39 @@ public class FacetedDateHistogramCollector extends
 		protected IndexReader currentIndexer;
 		protected int currentDocBase;
 
+		protected final String facetName;
+
+		// values outside of [minBound, maxBound] are ignored before rounding
+		protected final long minBound;
+		protected final long maxBound;
+
+		// maximum number of buckets (and therefore internal collectors) we are willing to create. 0 is unlimited.
+		protected final int maxBuckets;
+
+		// the [start, end] range of raw values that fall into the last used bucket. Values in time-ordered
+		// segments are clustered, so most values skip both the rounding and the lookup.
+		protected long lastStart = 1;
+		protected long lastEnd = 0;
+		protected FacetedDateHistogramFacet.Entry lastEntry;
+
+		// the ranges of the buckets hit more than once so far. Replaces rounding (and Joda calls for zone aware
+		// roundings) for the values of those buckets.
+		protected final BucketRangeTable rangeTable = new BucketRangeTable();
+
 		public DateHistogramProc(String facetName, TimeZoneRounding tzRounding, InternalCollectorFactory collectorFactor)
 		{
+			this(facetName, tzRounding, collectorFactor, Long.MIN_VALUE, Long.MAX_VALUE, 0);
+		}
+
+		public DateHistogramProc(String facetName, TimeZoneRounding tzRounding, InternalCollectorFactory collectorFactor,
+										 long minBound, long maxBound, int maxBuckets)
+		{
+			this.facetName = facetName;
 			this.tzRounding = tzRounding;
 			this.collectorFactory = collectorFactor;
+			this.minBound = minBound;
+			this.maxBound = maxBound;
+			this.maxBuckets = maxBuckets;
 			
 			this.currentIndexer = null;
 		}
@@ -174,41 +227,241 @@ public class FacetedDateHistogramCollector extends
 		}
 
 		public void onValue(int docId, long value) {
-			long time = tzRounding.calc(value);
-			
-			FacetedDateHistogramFacet.Entry entry;
-			entry = getOrCreateEntry(value, time);
-			
+			FacetedDateHistogramFacet.Entry entry = resolveEntry(value);
+			if (entry == null) return;
+
+			collect(entry, docId);
+		}
+
+		/**
+		 * returns the bucket entry value falls into, creating it if needed, or null if the value is out of bounds.
+		 */
+		protected FacetedDateHistogramFacet.Entry resolveEntry(long value) {
+			if (value < minBound || value > maxBound) return null;
+
+			if (value >= lastStart && value <= lastEnd) {
+				return lastEntry;
+			}
+			return findEntry(value);
+		}
+
+		protected void collect(FacetedDateHistogramFacet.Entry entry, int docId) {
+			entry.count++;
 			try {
 				entry.collector.collect(docId);
 			} catch (Exception e) {
 				throw new RuntimeException("Error creating an internal collector",e);
-			}			
+			}
+		}
 
+		protected FacetedDateHistogramFacet.Entry findEntry(long value) {
+			BucketRange range = rangeTable.find(value);
+			if (range == null) {
+				long time = tzRounding.calc(value);
+				FacetedDateHistogramFacet.Entry entry = entries.get(time);
+				if (entry == null) {
+					// a bucket hit once doesn't pay for finding its range, so sparse values cost a rounding each
+					entry = newEntry(time);
+					lastStart = value;
+					lastEnd = value;
+					lastEntry = entry;
+					return entry;
+				}
+				range = rangeTable.add(findRange(value, time, entry));
+			}
+			lastStart = range.start;
+			lastEnd = range.end;
+			lastEntry = range.entry;
+			return lastEntry;
 		}
 
-		private FacetedDateHistogramFacet.Entry getOrCreateEntry(
-				long value, long time) {
-			FacetedDateHistogramFacet.Entry entry;
-			entry = entries.get(time);
-			if (entry == null) {
-				try {
-					entry = new FacetedDateHistogramFacet.Entry(time,collectorFactory.createInternalCollector());
-					entry.collector.setNextReader(currentIndexer, currentDocBase);
-				} catch (Exception e) {
-					throw new RuntimeException("Error creating an internal collector",e);
+		// the last range searched for and its width, which predict the others for fixed intervals
+		protected long guessOrigin;
+		protected long guessWidth = 0;
+
+		/**
+		 * Rounding is monotonic, so the values rounding to the same time form a continuous range. Fixed intervals (away
+		 * from DST transitions) have ranges of the same width, so a range predicted from the first one is verified with
+		 * four roundings. Otherwise its edges are searched for.
+		 */
+		protected BucketRange findRange(long value, long time, FacetedDateHistogramFacet.Entry entry) {
+			if (guessWidth > 0) {
+				long offset = value - guessOrigin;
+				long buckets = offset / guessWidth;
+				if (offset % guessWidth < 0) buckets--;
+				long start = guessOrigin + buckets * guessWidth;
+				long end = start + guessWidth - 1;
+				if (start <= value && value <= end && start != Long.MIN_VALUE && end != Long.MAX_VALUE
+						&& tzRounding.calc(start) == time && tzRounding.calc(end) == time
+						&& tzRounding.calc(start - 1) != time && tzRounding.calc(end + 1) != time) {
+					return new BucketRange(start, end, entry);
 				}
-				
-		
-				entries.put(time, entry);
 			}
+			BucketRange range = new BucketRange(rangeStart(value, time), rangeEnd(value, time), entry);
+			if (range.end - range.start + 1 > 0) {
+				guessOrigin = range.start;
+				guessWidth = range.end - range.start + 1;
+			}
+			return range;
+		}
+
+		// the edges are found by exponential probing followed by a binary search. If the range is too big to probe
+		// we settle for a part of it, which is still correct.
+		private static final long MAX_PROBE_STEP = 1L << 42;
+
+		protected long rangeStart(long value, long time) {
+			long good = value;
+			long bad;
+			long step = 1;
+			while (true) {
+				if (step > MAX_PROBE_STEP || good - step > good) return good;
+				long probe = good - step;
+				if (tzRounding.calc(probe) != time) {
+					bad = probe;
+					break;
+				}
+				good = probe;
+				step <<= 1;
+			}
+			while (good - bad > 1) {
+				long mid = bad + (good - bad) / 2;
+				if (tzRounding.calc(mid) == time) good = mid;
+				else bad = mid;
+			}
+			return good;
+		}
+
+		protected long rangeEnd(long value, long time) {
+			long good = value;
+			long bad;
+			long step = 1;
+			while (true) {
+				if (step > MAX_PROBE_STEP || good + step < good) return good;
+				long probe = good + step;
+				if (tzRounding.calc(probe) != time) {
+					bad = probe;
+					break;
+				}
+				good = probe;
+				step <<= 1;
+			}
+			while (bad - good > 1) {
+				long mid = good + (bad - good) / 2;
+				if (tzRounding.calc(mid) == time) good = mid;
+				else bad = mid;
+			}
+			return good;
+		}
+
+		/**
+		 * Creates the entry of a new bucket.
+		 */
+		protected FacetedDateHistogramFacet.Entry newEntry(long time) {
+			if (maxBuckets > 0 && entries.size() >= maxBuckets) {
+				throw new FacetPhaseExecutionException(facetName, "Faceted date histogram would create more than ["
+						+ maxBuckets + "] buckets. Use a larger interval, hard_bounds or a higher max_buckets.");
+			}
+			FacetedDateHistogramFacet.Entry entry = new FacetedDateHistogramFacet.Entry(time, newCollector());
+			entries.put(time, entry);
 			return entry;
 		}
-	
-		
-	
 
+		protected FacetCollector newCollector() {
+			try {
+				FacetCollector collector = collectorFactory.createInternalCollector();
+				collector.setNextReader(currentIndexer, currentDocBase);
+				return collector;
+			} catch (Exception e) {
+				throw new RuntimeException("Error creating an internal collector",e);
+			}
+		}
+	}
+
+	/**
+	 * Collects the values of a multi valued doc into a small reusable set of buckets, so that a doc
+	 * with several values in the same bucket is collected into it only once.
+	 */
+	public static class DedupDateHistogramProc implements LongFieldData.LongValueInDocProc {
+
+		final DateHistogramProc histoProc;
 
+		long[] docTimes = new long[8];
+		FacetedDateHistogramFacet.Entry[] docEntries = new FacetedDateHistogramFacet.Entry[8];
+		int docEntryCount;
 
+		public DedupDateHistogramProc(DateHistogramProc histoProc) {
+			this.histoProc = histoProc;
+		}
+
+		public void reset() {
+			docEntryCount = 0;
+		}
+
+		public void onValue(int docId, long value) {
+			FacetedDateHistogramFacet.Entry entry = histoProc.resolveEntry(value);
+			if (entry == null) return;
+
+			long time = entry.time;
+			for (int i = 0; i < docEntryCount; i++) {
+				if (docTimes[i] == time) return;
+			}
+			if (docEntryCount == docTimes.length) {
+				long[] newTimes = new long[docEntryCount << 1];
+				FacetedDateHistogramFacet.Entry[] newEntries = new FacetedDateHistogramFacet.Entry[docEntryCount << 1];
+				System.arraycopy(docTimes, 0, newTimes, 0, docEntryCount);
+				System.arraycopy(docEntries, 0, newEntries, 0, docEntryCount);
+				docTimes = newTimes;
+				docEntries = newEntries;
+			}
+			docTimes[docEntryCount] = time;
+			docEntries[docEntryCount] = entry;
+			docEntryCount++;
+		}
+
+		public void collect(int docId) {
+			for (int i = 0; i < docEntryCount; i++) {
+				histoProc.collect(docEntries[i], docId);
+			}
+		}
+	}
+
+	/**
+	 * The [start, end] range of values rounding to a bucket.
+	 */
+	protected static class BucketRange {
+		final long start;
+		final long end;
+		final FacetedDateHistogramFacet.Entry entry;
+
+		BucketRange(long start, long end, FacetedDateHistogramFacet.Entry entry) {
+			this.start = start;
+			this.end = end;
+			this.entry = entry;
+		}
+	}
+
+	/**
+	 * Disjoint bucket ranges, sorted by their start.
+	 */
+	protected static class BucketRangeTable {
+		final TreeMap<Long, BucketRange> ranges = new TreeMap<Long, BucketRange>();
+
+		/**
+		 * returns the range containing value or null if not found.
+		 */
+		public BucketRange find(long value) {
+			Map.Entry<Long, BucketRange> floor = ranges.floorEntry(value);
+			if (floor == null || floor.getValue().end < value) return null;
+			return floor.getValue();
+		}
+
+		public BucketRange add(BucketRange range) {
+			ranges.put(range.start, range);
+			return range;
+		}
+
+		public int size() {
+			return ranges.size();
+		}
 	}
-}
\ No newline at end of file
+}
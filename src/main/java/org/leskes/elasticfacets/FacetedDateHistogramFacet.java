@@ -22,7 +22,7 @@ import java.util.*;
 /**
  *
  */
-public class FacetedDateHistogramFacet implements InternalFacet {
+public class FacetedDateHistogramFacet implements InternalFacet, FacetProfile.Profiled {
 
     private static final String STREAM_TYPE = "facetedDateHistogram";
 
@@ -76,6 +76,7 @@ public class FacetedDateHistogramFacet implements InternalFacet {
     public static class Entry extends EntryBase {
         protected InternalFacet internalFacet; 
         protected FacetCollector collector;
+        protected long count;
 
         public Entry(long time, FacetCollector collector) {
         	super(time);
@@ -95,6 +96,10 @@ public class FacetedDateHistogramFacet implements InternalFacet {
         	return internalFacet;
         }
 
+        public long count() {
+        	return count;
+        }
+
     }
     
     /**
@@ -102,6 +107,7 @@ public class FacetedDateHistogramFacet implements InternalFacet {
      */
     public static class MultiEntry extends EntryBase {
     	public List<Facet> facets;
+    	public long count;
     	
     	public MultiEntry(long time) {
         	super(time);
@@ -111,12 +117,18 @@ public class FacetedDateHistogramFacet implements InternalFacet {
 
 
     private String name;
+
+    // buckets with less documents than this are dropped when reducing
+    private long minDocCount;
     
 
     protected ExtTLongObjectHashMap<Entry> entries;
     
     protected List<Entry> entriesAsList;
 
+    // only set when profiling
+    FacetProfile profile;
+
 
 
     public List<Entry> collapseToAList() {
@@ -132,12 +144,25 @@ public class FacetedDateHistogramFacet implements InternalFacet {
     }
 
     public FacetedDateHistogramFacet(String name, ExtTLongObjectHashMap<Entry> entries) {
+    	this(name, entries, 0);
+    }
+
+    public FacetedDateHistogramFacet(String name, ExtTLongObjectHashMap<Entry> entries, long minDocCount) {
     	// Now we own the entries map. It is MUST come from the cache recycler..
         this.name = name;
+        this.minDocCount = minDocCount;
         
         this.entries = entries;
     }
 
+    public FacetProfile profile() {
+        return profile;
+    }
+
+    public void profile(FacetProfile profile) {
+        this.profile = profile;
+    }
+
     void releaseEntries() {
     	if (entries != null) {
 	        CacheRecycler.pushLongObjectMap(entries);
@@ -148,11 +173,18 @@ public class FacetedDateHistogramFacet implements InternalFacet {
 
 
     public Facet reduce(String name, List<Facet> facets,FacetProcessors facetProcessors) {
+        long start = System.nanoTime();
         if (facets.size() == 1) {
             // we need to sort it
             FacetedDateHistogramFacet internalFacet = (FacetedDateHistogramFacet) facets.get(0);
             List<Entry> entries = internalFacet.collapseToAList();
+            if (internalFacet.minDocCount > 0) {
+                for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+                    if (it.next().count < internalFacet.minDocCount) it.remove();
+                }
+            }
             Collections.sort(entries, comparator);
+            internalFacet.profile = FacetProfile.reduce(facets, System.nanoTime() - start);
             return internalFacet;
         }
 
@@ -167,6 +199,7 @@ public class FacetedDateHistogramFacet implements InternalFacet {
                     map.put(current.time, current);
                 }
                 current.facets.add(entry.internalFacet);
+                current.count += entry.count;
             }
         }
 
@@ -187,16 +220,18 @@ public class FacetedDateHistogramFacet implements InternalFacet {
         // just initialize it as already ordered facet
         FacetedDateHistogramFacet ret = new FacetedDateHistogramFacet();
         ret.name = name;
+        ret.minDocCount = ((FacetedDateHistogramFacet) facets.get(0)).minDocCount;
         ret.entriesAsList = new ArrayList<Entry>(ordered.size());
         
         for (MultiEntry me : ordered) {
+        	if (me.count < ret.minDocCount) continue;
         	Entry e = new Entry(me.time);
-        	Facet f = me.facets.get(0);
-        	e.internalFacet = (InternalFacet)facetProcessors.processor(f.getType()).reduce(f.getName(), me.facets);
+        	e.count = me.count;
+        	e.internalFacet = InternalCollectorFactory.reduceInternal(me.facets, facetProcessors);
         	ret.entriesAsList.add(e);
         }
-        	
-        
+
+        ret.profile = FacetProfile.reduce(facets, System.nanoTime() - start);
         return ret;
     }
 
@@ -204,6 +239,7 @@ public class FacetedDateHistogramFacet implements InternalFacet {
         static final XContentBuilderString _TYPE = new XContentBuilderString("_type");
         static final XContentBuilderString ENTRIES = new XContentBuilderString("entries");
         static final XContentBuilderString TIME = new XContentBuilderString("time");
+        static final XContentBuilderString COUNT = new XContentBuilderString("count");
     }
 
     public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
@@ -213,10 +249,12 @@ public class FacetedDateHistogramFacet implements InternalFacet {
         for (Entry entry : collapseToAList()) {
             builder.startObject();
             builder.field(Fields.TIME, entry.time);
+            builder.field(Fields.COUNT, entry.count);
             entry.internalFacet.toXContent(builder,params);
             builder.endObject();
         }
         builder.endArray();
+        if (profile != null) profile.toXContent(builder);
         builder.endObject();
         return builder;
     }
@@ -227,30 +265,99 @@ public class FacetedDateHistogramFacet implements InternalFacet {
         return facet;
     }
 
+    /*
+       Wire format: entries are written sorted by time. Times are written as the first time followed by
+       vLong deltas in units of the largest common divisor of all deltas (the interval for fixed intervals).
+       The internal facets usually share a stream type, which is then written only once. Otherwise a flag
+       marks the types as mixed and each internal facet is preceded by its own.
+       Times are followed by all counts and then all internal facet payloads.
+       A profile, if any, comes last.
+     */
+
     public void readFrom(StreamInput in) throws IOException {
+        readEntries(in);
+        profile = FacetProfile.readOptional(in);
+    }
+
+    public void writeTo(StreamOutput out) throws IOException {
+        long start = System.nanoTime();
+        writeEntries(out);
+        FacetProfile.writeOptional(profile, out, System.nanoTime() - start);
+    }
+
+    private void readEntries(StreamInput in) throws IOException {
         name = in.readUTF();
+        minDocCount = in.readVLong();
 
         int size = in.readVInt();
-        entries = CacheRecycler.popLongObjectMap();
-        for (int i = 0; i < size; i++) {
-        	Entry e = new Entry(in.readLong(),null);
-        	
-        	String internal_type = in.readUTF();
-        	InternalFacet facet = (InternalFacet)InternalFacet.Streams.stream(internal_type).readFacet(internal_type, in);
-        	e.internalFacet = facet;
-            entries.put(e.time,e);
+        entriesAsList = new ArrayList<Entry>(size);
+        if (size == 0) return;
+
+        boolean mixedTypes = in.readBoolean();
+        String internalType = mixedTypes ? null : in.readUTF();
+
+        long time = in.readLong();
+        long unit = in.readVLong();
+        entriesAsList.add(new Entry(time, null));
+        for (int i = 1; i < size; i++) {
+            time += in.readVLong() * unit;
+            entriesAsList.add(new Entry(time, null));
+        }
+        for (Entry e : entriesAsList) {
+            e.count = in.readVLong();
+        }
+        for (Entry e : entriesAsList) {
+            String type = mixedTypes ? in.readUTF() : internalType;
+            e.internalFacet = (InternalFacet) InternalFacet.Streams.stream(type).readFacet(type, in);
         }
     }
 
-    public void writeTo(StreamOutput out) throws IOException {
+    private void writeEntries(StreamOutput out) throws IOException {
         out.writeUTF(name);
-        out.writeVInt(entries.size());
-        for (Entry e : collapseToAList()) {
-            out.writeLong(e.time);
-            out.writeUTF(e.internalFacet.streamType());
+        out.writeVLong(minDocCount);
+        List<Entry> entryList = collapseToAList();
+        Collections.sort(entryList, comparator);
+        out.writeVInt(entryList.size());
+        if (entryList.isEmpty()) return;
+
+        String internalType = entryList.get(0).internalFacet.streamType();
+        boolean mixedTypes = false;
+        for (Entry e : entryList) {
+            if (!internalType.equals(e.internalFacet.streamType())) {
+                mixedTypes = true;
+                break;
+            }
+        }
+        out.writeBoolean(mixedTypes);
+        if (!mixedTypes) out.writeUTF(internalType);
+
+        long unit = 0;
+        for (int i = 1; i < entryList.size(); i++) {
+            unit = gcd(unit, entryList.get(i).time - entryList.get(i - 1).time);
+        }
+        if (unit == 0) unit = 1;
+
+        out.writeLong(entryList.get(0).time);
+        out.writeVLong(unit);
+        for (int i = 1; i < entryList.size(); i++) {
+            out.writeVLong((entryList.get(i).time - entryList.get(i - 1).time) / unit);
+        }
+        for (Entry e : entryList) {
+            out.writeVLong(e.count);
+        }
+        for (Entry e : entryList) {
+            if (mixedTypes) out.writeUTF(e.internalFacet.streamType());
             e.internalFacet.writeTo(out);
         }
-        releaseEntries();
+    }
+
+    static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
     }
 
 
@@ -1,6 +1,5 @@
 package org.leskes.elasticfacets;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
@@ -10,7 +9,7 @@ import java.util.Set;
 import org.elasticsearch.common.collect.ImmutableMap;
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.inject.Inject;
-import org.elasticsearch.common.jackson.core.JsonFactory;
+import org.elasticsearch.common.joda.FormatDateTimeFormatter;
 import org.elasticsearch.common.joda.Joda;
 import org.elasticsearch.common.joda.TimeZoneRounding;
 import org.elasticsearch.common.joda.time.Chronology;
@@ -19,10 +18,7 @@ import org.elasticsearch.common.joda.time.DateTimeZone;
 import org.elasticsearch.common.joda.time.chrono.ISOChronology;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
-import org.elasticsearch.common.xcontent.XContentGenerator;
-import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.XContentParser;
-import org.elasticsearch.common.xcontent.json.JsonXContentGenerator;
 import org.elasticsearch.index.field.data.FieldDataType;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.search.facet.Facet;
@@ -31,19 +27,26 @@ import org.elasticsearch.search.facet.FacetPhaseExecutionException;
 import org.elasticsearch.search.facet.FacetProcessor;
 import org.elasticsearch.search.facet.FacetProcessors;
 import org.elasticsearch.search.internal.SearchContext;
+import org.leskes.elasticfacets.stats.FacetStats;
 
 
 public class FacetedDateHistogramFacetProcessor extends AbstractComponent implements FacetProcessor  {
 
 	private final ImmutableMap<String, DateFieldParser> dateFieldParsers;
 	private FacetProcessors processors;
-	
-	private static JsonFactory jsonFactory = new JsonFactory();
 
+	// node wide safety net, used when a request doesn't specify max_buckets. 0 means unlimited.
+	private final int defaultMaxBuckets;
+
+	private final FacetStats.FacetTimers timers;
+
+	private static final FormatDateTimeFormatter boundsFormatter = Joda.forPattern("dateOptionalTime");
+	
 
     @Inject
-    public FacetedDateHistogramFacetProcessor(Settings settings) {
+    public FacetedDateHistogramFacetProcessor(Settings settings, FacetStats facetStats) {
         super(settings);
+        this.timers = facetStats.facet(FacetedDateHistogramFacet.TYPE);
         FacetedDateHistogramFacet.registerStreams();
         
         HashMap<String, DateFieldParser> dateFieldParsersMap = new HashMap<String, DateFieldParser>();
@@ -63,6 +66,8 @@ public class FacetedDateHistogramFacetProcessor extends AbstractComponent implem
         dateFieldParsersMap.put("second", new DateFieldParser.SecondOfMinute());
         dateFieldParsersMap.put("1s", new DateFieldParser.SecondOfMinute());;
         dateFieldParsers = ImmutableMap.copyOf(dateFieldParsersMap);
+
+        defaultMaxBuckets = settings.getAsInt("facet.faceted_date_histogram.max_buckets", 0);
     }
     
     @Inject
@@ -75,6 +80,7 @@ public class FacetedDateHistogramFacetProcessor extends AbstractComponent implem
     }
 
     public FacetCollector parse(String facetName, XContentParser parser, SearchContext context) throws IOException {
+        long start = System.nanoTime();
         String keyField = null;
         Map<String, Object> params = null;
         String interval = null;
@@ -85,9 +91,13 @@ public class FacetedDateHistogramFacetProcessor extends AbstractComponent implem
         long postOffset = 0;
         float factor = 1.0f;
         Chronology chronology = ISOChronology.getInstanceUTC();
+        long minDocCount = 0;
+        long minBound = Long.MIN_VALUE;
+        long maxBound = Long.MAX_VALUE;
+        int maxBuckets = defaultMaxBuckets;
+        boolean profile = false;
 
-        FacetProcessor internalProcessor = null; 
-        byte[] internalConfig = null;
+        InternalCollectorFactory.Definition internalFacet = null;
         
         XContentParser.Token token;
         String fieldName = null;
@@ -97,27 +107,19 @@ public class FacetedDateHistogramFacetProcessor extends AbstractComponent implem
             } else if (token == XContentParser.Token.START_OBJECT) {
                 if ("params".equals(fieldName)) {
                     params = parser.map();
-                } else if ("facet".equals(fieldName)) {
-                	token = parser.nextToken();
-                	if (token != XContentParser.Token.FIELD_NAME)
-                		throw new FacetPhaseExecutionException(facetName, "No facet type defined under facet node");
-                	String facetType = parser.currentName();
-                	internalProcessor = processors.processor(facetType);
-                    if (internalProcessor == null) {
-                        throw new FacetPhaseExecutionException(facetName, "No facet type found for [" + facetType + "]");
+                } else if ("hard_bounds".equals(fieldName) || "hardBounds".equals(fieldName)) {
+                    String boundName = null;
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                        if (token == XContentParser.Token.FIELD_NAME) {
+                            boundName = parser.currentName();
+                        } else if ("min".equals(boundName)) {
+                            minBound = parseBound(parser, token);
+                        } else if ("max".equals(boundName)) {
+                            maxBound = parseBound(parser, token);
+                        }
                     }
-                    ;
-                    // Store underlying facet configuration
-                	token = parser.nextToken(); // move the start of object...
-                    ByteArrayOutputStream memstream = new ByteArrayOutputStream(20);
-                    XContentGenerator generator = new JsonXContentGenerator(jsonFactory.createJsonGenerator(memstream));
-                    XContentHelper.copyCurrentStructure(generator, parser);
-                    generator.close();
-                    memstream.close();
-                    internalConfig = memstream.toByteArray(); // now we're at the end of the underlying config.
-                                    		
-                    while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT); // eat everything else under the "facet" clause
-                	
+                } else if ("facet".equals(fieldName)) {
+                    internalFacet = InternalCollectorFactory.parseDefinition(facetName, parser, processors);
                 }
                 
             } 
@@ -142,6 +144,12 @@ public class FacetedDateHistogramFacetProcessor extends AbstractComponent implem
                     postOffset = parseOffset(parser.text());
                 } else if ("factor".equals(fieldName)) {
                     factor = parser.floatValue();
+                } else if ("min_doc_count".equals(fieldName) || "minDocCount".equals(fieldName)) {
+                    minDocCount = parser.longValue();
+                } else if ("max_buckets".equals(fieldName) || "maxBuckets".equals(fieldName)) {
+                    maxBuckets = parser.intValue();
+                } else if ("profile".equals(fieldName)) {
+                    profile = parser.booleanValue();
                 }
             }
         }
@@ -163,10 +171,14 @@ public class FacetedDateHistogramFacetProcessor extends AbstractComponent implem
             throw new FacetPhaseExecutionException(facetName, "[interval] is required to be set for histogram facet");
         }
 
-        if (internalProcessor == null) {
+        if (internalFacet == null) {
             throw new FacetPhaseExecutionException(facetName, "faceted histogram misses an internal facet definition.");
         }
 
+        if (minBound > maxBound) {
+            throw new FacetPhaseExecutionException(facetName, "[hard_bounds] min must not be greater than max");
+        }
+
         TimeZoneRounding.Builder tzRoundingBuilder;
         DateFieldParser fieldParser = dateFieldParsers.get(interval);
         if (fieldParser != null) {
@@ -187,10 +199,21 @@ public class FacetedDateHistogramFacetProcessor extends AbstractComponent implem
         
         
         
-        return new FacetedDateHistogramCollector(facetName, keyField, tzRounding, internalProcessor,internalConfig,context);
+        FacetedDateHistogramCollector collector = new FacetedDateHistogramCollector(facetName, keyField, tzRounding,
+                internalFacet, minDocCount, minBound, maxBound, maxBuckets, timers,
+                profile ? new FacetProfile() : null, context);
+        timers.record(FacetStats.Phase.PARSE, System.nanoTime() - start);
+        return collector;
        
     }
 
+    private long parseBound(XContentParser parser, XContentParser.Token token) throws IOException {
+        if (token == XContentParser.Token.VALUE_NUMBER) {
+            return parser.longValue();
+        }
+        return boundsFormatter.parser().parseMillis(parser.text());
+    }
+
     private long parseOffset(String offset) throws IOException {
         if (offset.charAt(0) == '-') {
             return -TimeValue.parseTimeValue(offset.substring(1), null).millis();
@@ -218,8 +241,11 @@ public class FacetedDateHistogramFacetProcessor extends AbstractComponent implem
     }
 
     public Facet reduce(String name, List<Facet> facets) {
+        long start = System.nanoTime();
         FacetedDateHistogramFacet first = (FacetedDateHistogramFacet) facets.get(0);
-        return first.reduce(name, facets, processors);
+        Facet reduced = first.reduce(name, facets, processors);
+        timers.record(FacetStats.Phase.REDUCE, System.nanoTime() - start);
+        return reduced;
     }
 
     static interface DateFieldParser {
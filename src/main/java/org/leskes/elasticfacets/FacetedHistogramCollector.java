@@ -0,0 +1,301 @@
+package org.leskes.elasticfacets;
+
+import org.apache.lucene.index.IndexReader;
+import org.elasticsearch.common.CacheRecycler;
+import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
+import org.elasticsearch.index.cache.field.data.FieldDataCache;
+import org.elasticsearch.index.field.data.FieldDataType;
+import org.elasticsearch.index.field.data.NumericFieldData;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.search.facet.*;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A histogram facet collector over a numeric field with a fixed interval, running an internal facet per bucket.
+ */
+public class FacetedHistogramCollector extends AbstractFacetCollector {
+
+	private final String keyIndexFieldName;
+
+	private final FieldDataCache fieldDataCache;
+
+	private final FieldDataType keyFieldDataType;
+	private NumericFieldData keyFieldData;
+	private boolean multiValued;
+
+	private final HistogramProc histoProc;
+	private final DedupHistogramProc dedupProc;
+
+	private final FacetCollector internalExampleCollector;
+
+	private final long minDocCount;
+
+	public FacetedHistogramCollector(String facetName, String keyFieldName, double interval,
+												InternalCollectorFactory.Definition internalFacet,
+												long minDocCount, double minBound, double maxBound, int maxBuckets,
+												SearchContext context) throws IOException {
+		super(facetName);
+		this.fieldDataCache = context.fieldDataCache();
+		this.minDocCount = minDocCount;
+		MapperService.SmartNameFieldMappers smartMappers = context.smartFieldMappers(keyFieldName);
+		if (smartMappers == null || !smartMappers.hasMapper()) {
+			throw new FacetPhaseExecutionException(facetName, "No mapping found for field [" + keyFieldName + "]");
+		}
+
+		// add type filter if there is exact doc mapper associated with it
+		if (smartMappers.explicitTypeInNameWithDocMapper()) {
+			setFilter(context.filterCache().cache(smartMappers.docMapper().typeFilter()));
+		}
+
+		keyIndexFieldName = smartMappers.mapper().names().indexName();
+		keyFieldDataType = smartMappers.mapper().fieldDataType();
+
+		InternalCollectorFactory colFactory = new InternalCollectorFactory(facetName, internalFacet.processor,
+				internalFacet.config, context);
+		this.internalExampleCollector = colFactory.createInternalCollector();
+
+		this.histoProc = new HistogramProc(facetName, interval, colFactory, minBound, maxBound, maxBuckets);
+		this.dedupProc = new DedupHistogramProc(histoProc);
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return internalExampleCollector.acceptsDocsOutOfOrder();
+	}
+
+	@Override
+	protected void doCollect(int doc) throws IOException {
+		if (multiValued) {
+			dedupProc.reset();
+			keyFieldData.forEachValueInDoc(doc, dedupProc);
+			dedupProc.collect(doc);
+		} else {
+			keyFieldData.forEachValueInDoc(doc, histoProc);
+		}
+	}
+
+	@Override
+	protected void doSetNextReader(IndexReader reader, int docBase) throws IOException {
+		keyFieldData = (NumericFieldData) fieldDataCache.cache(keyFieldDataType, reader, keyIndexFieldName);
+		multiValued = keyFieldData.multiValued();
+
+		histoProc.setNextReader(reader, docBase);
+	}
+
+	@Override
+	public Facet facet() {
+		List<FacetedHistogramFacet.Entry> entries = histoProc.entriesInOrder();
+		for (FacetedHistogramFacet.Entry e : entries) {
+			e.facetize();
+		}
+		return new FacetedHistogramFacet(facetName, histoProc.interval, entries, minDocCount);
+	}
+
+
+	public static class HistogramProc implements NumericFieldData.DoubleValueInDocProc {
+
+		// a dense window of buckets is used as long as it covers no more than this many slots. Otherwise
+		// we fall back to a hash map.
+		static final int MAX_DENSE_SPAN = 1 << 16;
+
+		final double interval;
+		final String facetName;
+		final InternalCollectorFactory collectorFactory;
+
+		// values outside of [minBound, maxBound] are ignored
+		final double minBound;
+		final double maxBound;
+
+		// maximum number of buckets (and therefore internal collectors) we are willing to create. 0 is unlimited.
+		final int maxBuckets;
+
+		// dense layout: slots[i] holds bucket baseBucket + i
+		long baseBucket;
+		FacetedHistogramFacet.Entry[] slots;
+
+		// sparse layout, only used when the buckets are too far apart
+		ExtTLongObjectHashMap<FacetedHistogramFacet.Entry> sparse;
+
+		final List<FacetedHistogramFacet.Entry> entries = new ArrayList<FacetedHistogramFacet.Entry>();
+
+		IndexReader currentReader;
+		int currentDocBase;
+
+		public HistogramProc(String facetName, double interval, InternalCollectorFactory collectorFactory,
+									double minBound, double maxBound, int maxBuckets) {
+			this.facetName = facetName;
+			this.interval = interval;
+			this.collectorFactory = collectorFactory;
+			this.minBound = minBound;
+			this.maxBound = maxBound;
+			this.maxBuckets = maxBuckets;
+		}
+
+		public void setNextReader(IndexReader reader, int docBase) throws IOException {
+			currentReader = reader;
+			currentDocBase = docBase;
+			for (FacetedHistogramFacet.Entry e : entries) {
+				e.collector.setNextReader(reader, docBase);
+			}
+		}
+
+		public void onValue(int docId, double value) {
+			FacetedHistogramFacet.Entry entry = resolveEntry(value);
+			if (entry == null) return;
+
+			collect(entry, docId);
+		}
+
+		protected void collect(FacetedHistogramFacet.Entry entry, int docId) {
+			entry.count++;
+			try {
+				entry.collector.collect(docId);
+			} catch (Exception e) {
+				throw new RuntimeException("Error running an internal collector", e);
+			}
+		}
+
+		/**
+		 * returns the bucket entry value falls into, creating it if needed, or null if the value is out of bounds
+		 * or not a number.
+		 */
+		protected FacetedHistogramFacet.Entry resolveEntry(double value) {
+			// NaN fails any comparison and would otherwise land in bucket 0
+			if (Double.isNaN(value) || value < minBound || value > maxBound) return null;
+
+			long bucket = (long) Math.floor(value / interval);
+			if (sparse == null) {
+				long slot = bucket - baseBucket;
+				if (slots != null && slot >= 0 && slot < slots.length) {
+					FacetedHistogramFacet.Entry entry = slots[(int) slot];
+					if (entry != null) return entry;
+				}
+			} else {
+				FacetedHistogramFacet.Entry entry = sparse.get(bucket);
+				if (entry != null) return entry;
+			}
+			return createEntry(bucket);
+		}
+
+		private FacetedHistogramFacet.Entry createEntry(long bucket) {
+			if (maxBuckets > 0 && entries.size() >= maxBuckets) {
+				throw new FacetPhaseExecutionException(facetName, "Faceted histogram would create more than ["
+						+ maxBuckets + "] buckets. Use a larger interval, hard_bounds or a higher max_buckets.");
+			}
+			FacetedHistogramFacet.Entry entry;
+			try {
+				entry = new FacetedHistogramFacet.Entry(bucket, interval, collectorFactory.createInternalCollector());
+				entry.collector.setNextReader(currentReader, currentDocBase);
+			} catch (Exception e) {
+				throw new RuntimeException("Error creating an internal collector", e);
+			}
+			entries.add(entry);
+
+			if (sparse != null) {
+				sparse.put(bucket, entry);
+			} else if (slots == null) {
+				baseBucket = bucket;
+				slots = new FacetedHistogramFacet.Entry[16];
+				slots[0] = entry;
+			} else {
+				long newBase = Math.min(baseBucket, bucket);
+				long newEnd = Math.max(baseBucket + slots.length, bucket + 1);
+				if (newEnd - newBase > MAX_DENSE_SPAN) {
+					switchToSparse();
+					sparse.put(bucket, entry);
+				} else {
+					if (newBase != baseBucket || newEnd != baseBucket + slots.length) {
+						// grow with some slack in the direction we grew in, to avoid copying on every new bucket
+						long span = newEnd - newBase;
+						long slack = Math.min(span, MAX_DENSE_SPAN - span);
+						if (newBase < baseBucket) newBase -= slack;
+						else newEnd += slack;
+						FacetedHistogramFacet.Entry[] newSlots = new FacetedHistogramFacet.Entry[(int) (newEnd - newBase)];
+						System.arraycopy(slots, 0, newSlots, (int) (baseBucket - newBase), slots.length);
+						slots = newSlots;
+						baseBucket = newBase;
+					}
+					slots[(int) (bucket - baseBucket)] = entry;
+				}
+			}
+			return entry;
+		}
+
+		private void switchToSparse() {
+			sparse = CacheRecycler.popLongObjectMap();
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null) sparse.put(baseBucket + i, slots[i]);
+			}
+			slots = null;
+		}
+
+		/**
+		 * returns all entries ordered by key and releases the bucket lookup structures.
+		 */
+		public List<FacetedHistogramFacet.Entry> entriesInOrder() {
+			List<FacetedHistogramFacet.Entry> ret;
+			if (sparse == null) {
+				ret = new ArrayList<FacetedHistogramFacet.Entry>(entries.size());
+				if (slots != null) {
+					for (FacetedHistogramFacet.Entry e : slots) {
+						if (e != null) ret.add(e);
+					}
+				}
+			} else {
+				ret = new ArrayList<FacetedHistogramFacet.Entry>(entries);
+				Collections.sort(ret, FacetedHistogramFacet.comparator);
+				CacheRecycler.pushLongObjectMap(sparse);
+				sparse = null;
+			}
+			slots = null;
+			return ret;
+		}
+	}
+
+	/**
+	 * Collects the values of a multi valued doc into a small reusable set of buckets, so that a doc
+	 * with several values in the same bucket is collected into it only once.
+	 */
+	public static class DedupHistogramProc implements NumericFieldData.DoubleValueInDocProc {
+
+		final HistogramProc histoProc;
+
+		FacetedHistogramFacet.Entry[] docEntries = new FacetedHistogramFacet.Entry[8];
+		int docEntryCount;
+
+		public DedupHistogramProc(HistogramProc histoProc) {
+			this.histoProc = histoProc;
+		}
+
+		public void reset() {
+			docEntryCount = 0;
+		}
+
+		public void onValue(int docId, double value) {
+			FacetedHistogramFacet.Entry entry = histoProc.resolveEntry(value);
+			if (entry == null) return;
+
+			for (int i = 0; i < docEntryCount; i++) {
+				if (docEntries[i] == entry) return;
+			}
+			if (docEntryCount == docEntries.length) {
+				FacetedHistogramFacet.Entry[] newEntries = new FacetedHistogramFacet.Entry[docEntryCount << 1];
+				System.arraycopy(docEntries, 0, newEntries, 0, docEntryCount);
+				docEntries = newEntries;
+			}
+			docEntries[docEntryCount++] = entry;
+		}
+
+		public void collect(int docId) {
+			for (int i = 0; i < docEntryCount; i++) {
+				histoProc.collect(docEntries[i], docId);
+			}
+		}
+	}
+}
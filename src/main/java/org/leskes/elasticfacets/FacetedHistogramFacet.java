@@ -0,0 +1,255 @@
+package org.leskes.elasticfacets;
+
+import org.elasticsearch.common.CacheRecycler;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.FacetCollector;
+import org.elasticsearch.search.facet.FacetProcessors;
+import org.elasticsearch.search.facet.InternalFacet;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A numeric histogram with a fixed interval, holding an internal facet per bucket.
+ */
+public class FacetedHistogramFacet implements InternalFacet {
+
+	private static final String STREAM_TYPE = "facetedHistogram";
+
+	public static void registerStreams() {
+		Streams.registerStream(STREAM, STREAM_TYPE);
+	}
+
+	static Stream STREAM = new Stream() {
+		public Facet readFacet(String type, StreamInput in) throws IOException {
+			return readFacetedHistogramFacet(in);
+		}
+	};
+
+	public String streamType() {
+		return STREAM_TYPE;
+	}
+
+	public static final String TYPE = "faceted_histogram";
+
+	protected static final Comparator<Entry> comparator = new Comparator<Entry>() {
+
+		public int compare(Entry o1, Entry o2) {
+			return (o1.bucket < o2.bucket ? -1 : (o1.bucket == o2.bucket ? 0 : 1));
+		}
+	};
+
+	/**
+	 * A histogram entry representing a single bucket within the result of a faceted histogram.
+	 */
+	public static class Entry {
+		// the key divided by the interval
+		public final long bucket;
+		public final double key;
+		protected InternalFacet internalFacet;
+		protected FacetCollector collector;
+		protected long count;
+
+		public Entry(long bucket, double interval, FacetCollector collector) {
+			this.bucket = bucket;
+			this.key = bucket * interval;
+			this.collector = collector;
+		}
+
+		public void facetize() {
+			this.internalFacet = (InternalFacet) collector.facet();
+			this.collector = null;
+		}
+
+		public Facet facet() {
+			return internalFacet;
+		}
+
+		public long count() {
+			return count;
+		}
+	}
+
+	private String name;
+
+	private double interval;
+
+	// buckets with less documents than this are dropped when reducing
+	private long minDocCount;
+
+	// always sorted by key
+	protected List<Entry> entries;
+
+	private FacetedHistogramFacet() {
+	}
+
+	public FacetedHistogramFacet(String name, double interval, List<Entry> entries, long minDocCount) {
+		this.name = name;
+		this.interval = interval;
+		this.entries = entries;
+		this.minDocCount = minDocCount;
+	}
+
+	public List<Entry> entries() {
+		return entries;
+	}
+
+	public Facet reduce(String name, List<Facet> facets, FacetProcessors facetProcessors) {
+		if (facets.size() == 1) {
+			FacetedHistogramFacet facet = (FacetedHistogramFacet) facets.get(0);
+			if (facet.minDocCount > 0) {
+				for (Iterator<Entry> it = facet.entries.iterator(); it.hasNext(); ) {
+					if (it.next().count < facet.minDocCount) it.remove();
+				}
+			}
+			return facet;
+		}
+
+		ExtTLongObjectHashMap<List<Facet>> internalFacets = CacheRecycler.popLongObjectMap();
+		TreeMap<Long, Entry> merged = new TreeMap<Long, Entry>();
+		FacetedHistogramFacet first = (FacetedHistogramFacet) facets.get(0);
+		for (Facet facet : facets) {
+			for (Entry entry : ((FacetedHistogramFacet) facet).entries) {
+				Entry current = merged.get(entry.bucket);
+				if (current == null) {
+					current = new Entry(entry.bucket, first.interval, null);
+					merged.put(entry.bucket, current);
+					internalFacets.put(entry.bucket, new ArrayList<Facet>(facets.size()));
+				}
+				current.count += entry.count;
+				internalFacets.get(entry.bucket).add(entry.internalFacet);
+			}
+		}
+
+		List<Entry> reduced = new ArrayList<Entry>(merged.size());
+		for (Entry e : merged.values()) {
+			if (e.count < first.minDocCount) continue;
+			e.internalFacet = InternalCollectorFactory.reduceInternal(internalFacets.get(e.bucket), facetProcessors);
+			reduced.add(e);
+		}
+		CacheRecycler.pushLongObjectMap(internalFacets);
+
+		return new FacetedHistogramFacet(name, first.interval, reduced, first.minDocCount);
+	}
+
+	static final class Fields {
+		static final XContentBuilderString _TYPE = new XContentBuilderString("_type");
+		static final XContentBuilderString ENTRIES = new XContentBuilderString("entries");
+		static final XContentBuilderString KEY = new XContentBuilderString("key");
+		static final XContentBuilderString COUNT = new XContentBuilderString("count");
+	}
+
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject(name);
+		builder.field(Fields._TYPE, TYPE);
+		builder.startArray(Fields.ENTRIES);
+		for (Entry entry : entries) {
+			builder.startObject();
+			// integral keys are reported as such, as they were before intervals could be fractions
+			if (entry.key == Math.rint(entry.key) && Math.abs(entry.key) < Long.MAX_VALUE) {
+				builder.field(Fields.KEY, (long) entry.key);
+			} else {
+				builder.field(Fields.KEY, entry.key);
+			}
+			builder.field(Fields.COUNT, entry.count);
+			entry.internalFacet.toXContent(builder, params);
+			builder.endObject();
+		}
+		builder.endArray();
+		builder.endObject();
+		return builder;
+	}
+
+	public static FacetedHistogramFacet readFacetedHistogramFacet(StreamInput in) throws IOException {
+		FacetedHistogramFacet facet = new FacetedHistogramFacet();
+		facet.readFrom(in);
+		return facet;
+	}
+
+	/*
+	   Same layout as FacetedDateHistogramFacet, but as the interval is fixed keys are written as the first
+	   bucket followed by bucket deltas.
+	 */
+
+	public void readFrom(StreamInput in) throws IOException {
+		name = in.readUTF();
+		interval = in.readDouble();
+		minDocCount = in.readVLong();
+
+		int size = in.readVInt();
+		entries = new ArrayList<Entry>(size);
+		if (size == 0) return;
+
+		boolean mixedTypes = in.readBoolean();
+		String internalType = mixedTypes ? null : in.readUTF();
+		long bucket = in.readLong();
+		entries.add(new Entry(bucket, interval, null));
+		for (int i = 1; i < size; i++) {
+			bucket += in.readVLong();
+			entries.add(new Entry(bucket, interval, null));
+		}
+		for (Entry e : entries) {
+			e.count = in.readVLong();
+		}
+		for (Entry e : entries) {
+			String type = mixedTypes ? in.readUTF() : internalType;
+			e.internalFacet = (InternalFacet) InternalFacet.Streams.stream(type).readFacet(type, in);
+		}
+	}
+
+	public void writeTo(StreamOutput out) throws IOException {
+		out.writeUTF(name);
+		out.writeDouble(interval);
+		out.writeVLong(minDocCount);
+		out.writeVInt(entries.size());
+		if (entries.isEmpty()) return;
+
+		// buckets may hold different internal facet types, e.g. once reduced over shards which map a field differently
+		String internalType = entries.get(0).internalFacet.streamType();
+		boolean mixedTypes = false;
+		for (Entry e : entries) {
+			if (!internalType.equals(e.internalFacet.streamType())) {
+				mixedTypes = true;
+				break;
+			}
+		}
+		out.writeBoolean(mixedTypes);
+		if (!mixedTypes) out.writeUTF(internalType);
+
+		long bucket = entries.get(0).bucket;
+		out.writeLong(bucket);
+		for (int i = 1; i < entries.size(); i++) {
+			long next = entries.get(i).bucket;
+			out.writeVLong(next - bucket);
+			bucket = next;
+		}
+		for (Entry e : entries) {
+			out.writeVLong(e.count);
+		}
+		for (Entry e : entries) {
+			if (mixedTypes) out.writeUTF(e.internalFacet.streamType());
+			e.internalFacet.writeTo(out);
+		}
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public String getName() {
+		return name();
+	}
+
+	public String type() {
+		return TYPE;
+	}
+
+	public String getType() {
+		return type();
+	}
+}
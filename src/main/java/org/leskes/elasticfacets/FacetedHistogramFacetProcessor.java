@@ -0,0 +1,122 @@
+package org.leskes.elasticfacets;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.field.data.FieldDataType;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.FacetCollector;
+import org.elasticsearch.search.facet.FacetPhaseExecutionException;
+import org.elasticsearch.search.facet.FacetProcessor;
+import org.elasticsearch.search.facet.FacetProcessors;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+
+public class FacetedHistogramFacetProcessor extends AbstractComponent implements FacetProcessor {
+
+	private FacetProcessors processors;
+
+	// node wide safety net, used when a request doesn't specify max_buckets. 0 means unlimited.
+	private final int defaultMaxBuckets;
+
+	@Inject
+	public FacetedHistogramFacetProcessor(Settings settings) {
+		super(settings);
+		FacetedHistogramFacet.registerStreams();
+		defaultMaxBuckets = settings.getAsInt("facet.faceted_histogram.max_buckets", 0);
+	}
+
+	@Inject
+	public void SetProcessors(Set<FacetProcessor> processors) {
+		this.processors = new FacetProcessors(processors);
+	}
+
+	public String[] types() {
+		return new String[]{FacetedHistogramFacet.TYPE};
+	}
+
+	public FacetCollector parse(String facetName, XContentParser parser, SearchContext context) throws IOException {
+		String keyField = null;
+		double interval = 0;
+		long minDocCount = 0;
+		double minBound = Double.NEGATIVE_INFINITY;
+		double maxBound = Double.POSITIVE_INFINITY;
+		int maxBuckets = defaultMaxBuckets;
+
+		InternalCollectorFactory.Definition internalFacet = null;
+
+		XContentParser.Token token;
+		String fieldName = null;
+		while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+			if (token == XContentParser.Token.FIELD_NAME) {
+				fieldName = parser.currentName();
+			} else if (token == XContentParser.Token.START_OBJECT) {
+				if ("hard_bounds".equals(fieldName) || "hardBounds".equals(fieldName)) {
+					String boundName = null;
+					while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+						if (token == XContentParser.Token.FIELD_NAME) {
+							boundName = parser.currentName();
+						} else if ("min".equals(boundName)) {
+							minBound = parser.doubleValue();
+						} else if ("max".equals(boundName)) {
+							maxBound = parser.doubleValue();
+						}
+					}
+				} else if ("facet".equals(fieldName)) {
+					internalFacet = InternalCollectorFactory.parseDefinition(facetName, parser, processors);
+				}
+			} else if (token.isValue()) {
+				if ("field".equals(fieldName) || "key_field".equals(fieldName)) {
+					keyField = parser.text();
+				} else if ("interval".equals(fieldName)) {
+					interval = parser.doubleValue();
+				} else if ("min_doc_count".equals(fieldName) || "minDocCount".equals(fieldName)) {
+					minDocCount = parser.longValue();
+				} else if ("max_buckets".equals(fieldName) || "maxBuckets".equals(fieldName)) {
+					maxBuckets = parser.intValue();
+				}
+			}
+		}
+
+		if (keyField == null) {
+			throw new FacetPhaseExecutionException(facetName, "key field is required to be set for histogram facet, either using [field] or using [key_field]");
+		}
+
+		FieldMapper mapper = context.smartNameFieldMapper(keyField);
+		if (mapper == null) {
+			throw new FacetPhaseExecutionException(facetName, "(key) field [" + keyField + "] not found");
+		}
+		FieldDataType type = mapper.fieldDataType();
+		if (type != FieldDataType.DefaultTypes.BYTE && type != FieldDataType.DefaultTypes.SHORT &&
+				type != FieldDataType.DefaultTypes.INT && type != FieldDataType.DefaultTypes.LONG &&
+				type != FieldDataType.DefaultTypes.FLOAT && type != FieldDataType.DefaultTypes.DOUBLE) {
+			throw new FacetPhaseExecutionException(facetName, "(key) field [" + keyField + "] is not of a numeric type");
+		}
+
+		if (!(interval > 0) || Double.isInfinite(interval)) {
+			throw new FacetPhaseExecutionException(facetName, "[interval] is required to be set to a positive value for histogram facet");
+		}
+
+		if (internalFacet == null) {
+			throw new FacetPhaseExecutionException(facetName, "faceted histogram misses an internal facet definition.");
+		}
+
+		if (minBound > maxBound) {
+			throw new FacetPhaseExecutionException(facetName, "[hard_bounds] min must not be greater than max");
+		}
+
+		return new FacetedHistogramCollector(facetName, keyField, interval, internalFacet,
+				minDocCount, minBound, maxBound, maxBuckets, context);
+	}
+
+	public Facet reduce(String name, List<Facet> facets) {
+		FacetedHistogramFacet first = (FacetedHistogramFacet) facets.get(0);
+		return first.reduce(name, facets, processors);
+	}
+}
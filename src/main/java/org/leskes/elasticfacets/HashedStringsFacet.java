@@ -25,7 +25,7 @@ import java.util.List;
 /**
  *
  */
-public class HashedStringsFacet implements TermsFacet, InternalFacet{
+public class HashedStringsFacet implements TermsFacet, InternalFacet, FacetProfile.Profiled {
 
    private static final String STREAM_TYPE = "hashed_terms_facet";
 
@@ -153,6 +153,7 @@ public class HashedStringsFacet implements TermsFacet, InternalFacet{
    long total;
    protected Collection<HashedStringEntry> entries;
    TermsFacet.ComparatorType comparatorType;
+   FacetProfile profile;
 
 
    private HashedStringsFacet() {
@@ -169,9 +170,20 @@ public class HashedStringsFacet implements TermsFacet, InternalFacet{
    }
 
 
+   public FacetProfile profile() {
+      return profile;
+   }
+
+   public void profile(FacetProfile profile) {
+      this.profile = profile;
+   }
+
    public Facet reduce(String name, List<Facet> facets) {
+      long start = System.nanoTime();
       if (facets.size() == 1) {
-         return facets.get(0);
+         HashedStringsFacet facet = (HashedStringsFacet) facets.get(0);
+         facet.profile = FacetProfile.reduce(facets, System.nanoTime() - start);
+         return facet;
       }
       HashedStringsFacet first = (HashedStringsFacet) facets.get(0);
       TObjectIntHashMap<HashedStringEntry> aggregated = CacheRecycler.popObjectIntMap();
@@ -199,6 +211,7 @@ public class HashedStringsFacet implements TermsFacet, InternalFacet{
 
       CacheRecycler.pushObjectIntMap(aggregated);
 
+      first.profile = FacetProfile.reduce(facets, System.nanoTime() - start);
       return first;
    }
 
@@ -272,6 +285,7 @@ public class HashedStringsFacet implements TermsFacet, InternalFacet{
          builder.endObject();
       }
       builder.endArray();
+      if (profile != null) profile.toXContent(builder);
       builder.endObject();
       return builder;
    }
@@ -295,9 +309,11 @@ public class HashedStringsFacet implements TermsFacet, InternalFacet{
       for (int i = 0; i < size; i++) {
          entries.add(new HashedStringEntry(in.readOptionalString(), in.readVInt(), in.readVInt(), in.readVInt()));
       }
+      profile = FacetProfile.readOptional(in);
    }
 
    public void writeTo(StreamOutput out) throws IOException {
+      long start = System.nanoTime();
       out.writeString(name);
       out.writeByte(comparatorType.id());
       out.writeVInt(requiredSize);
@@ -311,6 +327,7 @@ public class HashedStringsFacet implements TermsFacet, InternalFacet{
          out.writeVInt(entry.docId);
          out.writeVInt(entry.count);
       }
+      FacetProfile.writeOptional(profile, out, System.nanoTime() - start);
    }
 
 
@@ -20,11 +20,14 @@ import org.elasticsearch.search.facet.terms.TermsFacet;
 import org.elasticsearch.search.facet.terms.support.EntryPriorityQueue;
 import org.elasticsearch.search.internal.SearchContext;
 import org.leskes.elasticfacets.fields.HashedStringFieldData;
+import org.leskes.elasticfacets.fields.HashedStringFieldLoader;
 import org.leskes.elasticfacets.fields.HashedStringFieldSettings;
 import org.leskes.elasticfacets.fields.HashedStringFieldType;
+import org.leskes.elasticfacets.stats.FacetStats;
 import org.leskes.elasticfacets.utils.SizeSensitiveCacheRecycler;
 
 import java.io.IOException;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -86,9 +89,19 @@ public class HashedStringsFacetCollector extends AbstractFacetCollector {
 
    private final HashedStringFieldSettings.FieldTypeFactory hashedStringTypeFactory;
 
+   // loads the other segments of the shard while the first ones are collected
+   private final HashedStringFieldLoader fieldLoader;
+   private boolean loadingInBackground;
+
    long missing;
    long total;
 
+   // null unless profiling was requested
+   private final FacetProfile profile;
+
+   private final FacetStats.FacetTimers timers;
+   private final FacetStats.CollectTimer collectTimer = new FacetStats.CollectTimer();
+
    private final TIntHashSet excluded;
    private final TIntHashSet included;
 
@@ -97,8 +110,12 @@ public class HashedStringsFacetCollector extends AbstractFacetCollector {
                                       OUTPUT_MODE output_mode,
                                       TIntHashSet included, TIntHashSet excluded,
                                       String output_script, String output_scriptLang, SearchContext context,
-                                      Map<String, Object> params, HashedStringFieldSettings.FieldTypeFactory loaderForField) {
+                                      Map<String, Object> params, HashedStringFieldSettings.FieldTypeFactory loaderForField,
+                                      HashedStringFieldLoader fieldLoader, FacetStats.FacetTimers timers,
+                                      FacetProfile profile) {
       super(facetName);
+      this.timers = timers;
+      this.profile = profile;
       this.fieldDataCache = context.fieldDataCache();
       this.size = size;
       this.fetch_size = fetch_size;
@@ -107,6 +124,7 @@ public class HashedStringsFacetCollector extends AbstractFacetCollector {
       this.context = context;
       this.output_mode = output_mode;
       this.hashedStringTypeFactory = loaderForField;
+      this.fieldLoader = fieldLoader;
 
 
       MapperService.SmartNameFieldMappers smartMappers = context.smartFieldMappers(fieldName);
@@ -171,100 +189,87 @@ public class HashedStringsFacetCollector extends AbstractFacetCollector {
       if (current != null) {
          missing += current.missing;
          total += current.total;
-         if (current.values.length > 0) {
+         if (current.values.limit() > 0) {
             aggregators.add(current);
+         } else {
+            current.close();
          }
       }
-      fieldData = (HashedStringFieldData) fieldDataCache.cache(hashedStringTypeFactory.getTypeForField(indexFieldName),
-              reader, indexFieldName);
+      long start = System.nanoTime();
+      if (!loadingInBackground) {
+         loadingInBackground = true;
+         fieldLoader.loadInBackground(context.searcher(), hashedStringTypeFactory.segmentLoader(fieldDataCache),
+                 context.searcher().subReaders(), indexFieldName, reader);
+      }
+      fieldData = hashedStringTypeFactory.loadFieldData(fieldDataCache, reader, indexFieldName);
+      long loaded = System.nanoTime();
+      timers.record(FacetStats.Phase.FIELD_DATA, loaded - start);
+      if (profile != null) profile.add(FacetProfile.Phase.FIELD_DATA, loaded - start);
       current = new ReaderAggregator(fieldData, docBase);
    }
 
    @Override
    protected void doCollect(int doc) throws IOException {
+      // profiles time every doc, the latency stats a sample
+      if (!collectTimer.sample() && profile == null) {
+         fieldData.forEachOrdinalInDoc(doc, current);
+         return;
+      }
+      long start = System.nanoTime();
       fieldData.forEachOrdinalInDoc(doc, current);
+      long took = System.nanoTime() - start;
+      collectTimer.record(took);
+      if (profile != null) profile.add(FacetProfile.Phase.COLLECT, took);
    }
 
 
    @Override
    public Facet facet() {
+      long facetStart = System.nanoTime();
+      if (collectTimer.docs() > 0) timers.record(FacetStats.Phase.COLLECT, collectTimer.estimatedNanos());
       if (current != null) {
          missing += current.missing;
          total += current.total;
          // if we have values for this one, add it
-         if (current.values.length > 0) {
+         if (current.values.limit() > 0) {
             aggregators.add(current);
+         } else {
+            current.close();
          }
-      }
-
-      AggregatorPriorityQueue queue = new AggregatorPriorityQueue(aggregators.size());
-
-      for (ReaderAggregator aggregator : aggregators) {
-         if (aggregator.nextPosition()) {
-            queue.add(aggregator);
-         }
+         current = null;
       }
 
       // if there is one shard, there will not be a reduce phase, so we must not deliver too much
       int queue_size = numberOfShards == 1 ? size : fetch_size;
 
-      // YACK, we repeat the same logic, but once with an optimizer priority queue for smaller sizes
-      if (queue_size < EntryPriorityQueue.LIMIT) {
-         // optimize to use priority size
-         EntryPriorityQueue ordered = new EntryPriorityQueue(queue_size, comparatorType.comparator());
-
-         while (queue.size() > 0) {
-            ReaderAggregator agg = queue.top();
-            int value = agg.currentValue;
-            int count = 0;
-            int docId = agg.currentDocId;
-            do {
-               if (agg.currentCount != 0) {
-                  count += agg.currentCount;
-                  docId = agg.currentDocId;
-               }
-
-               if (agg.nextPosition()) {
-                  agg = queue.updateTop();
-               } else {
-                  // we are done with this reader
-                  queue.pop();
-                  agg = queue.top();
-               }
-            } while (agg != null && value == agg.currentValue);
-
-            assert (agg == null || value < agg.currentValue);
-
-            if (count > minCount) {
-               if (excluded != null && excluded.contains(value)) {
-                  continue;
-               }
-               if (included != null && !included.contains(value)) {
-                  continue;
-               }
-               HashedStringsFacet.HashedStringEntry entry = new HashedStringsFacet.HashedStringEntry(null, value, docId, count);
-               ordered.insertWithOverflow(entry);
+      // the aggregators hold leased (possibly off heap) buffers, which must go back to the recycler whatever happens
+      try {
+         if (queue_size < EntryPriorityQueue.LIMIT) {
+            long start = profile == null ? 0 : System.nanoTime();
+            HashedStringsFacet.HashedStringEntry[] list = mergeAggregators(aggregators, queue_size,
+                    comparatorType, minCount, excluded, included);
+            if (profile != null) {
+               long merged = System.nanoTime();
+               profile.add(FacetProfile.Phase.MERGE, merged - start);
+               start = merged;
             }
-         }
-         HashedStringsFacet.HashedStringEntry[] list = new HashedStringsFacet.HashedStringEntry[ordered.size()];
-         for (int i = ordered.size() - 1; i >= 0; i--) {
-            HashedStringsFacet.HashedStringEntry entry = (HashedStringsFacet.HashedStringEntry) ordered.pop();
-            loadTermIntoEntry(entry);
-            list[i] = entry;
-
-
-         }
+            for (HashedStringsFacet.HashedStringEntry entry : list) {
+               loadTermIntoEntry(entry);
+            }
+            if (profile != null) profile.add(FacetProfile.Phase.TERMS, System.nanoTime() - start);
 
-         for (ReaderAggregator aggregator : aggregators) {
-            aggregator.close();
+            HashedStringsFacet facet = new HashedStringsFacet(facetName, comparatorType, size, Arrays.asList(list), missing, total);
+            facet.profile(profile);
+            timers.record(FacetStats.Phase.FACET, System.nanoTime() - facetStart);
+            return facet;
          }
 
-         return new HashedStringsFacet(facetName, comparatorType, size, Arrays.asList(list), missing, total);
+         // TODO
+         throw new UnsupportedOperationException("Large facet sizes (> 5000) are not yet implemented by HashedStringsFacet");
+      } finally {
+         closeAggregators();
       }
 
-      // TODO
-      throw new UnsupportedOperationException("Large facet sizes (> 5000) are not yet implemented by HashedStringsFacet");
-
 //        BoundedTreeSet<InternalStringTermsFacet.StringEntry> ordered = new BoundedTreeSet<InternalStringTermsFacet.StringEntry>(comparatorType.comparator(), size);
 //
 //        while (queue.size() > 0) {
@@ -302,6 +307,70 @@ public class HashedStringsFacetCollector extends AbstractFacetCollector {
 //        return new InternalStringTermsFacet(facetName, comparatorType, size, ordered, missing, total);
    }
 
+   private void closeAggregators() {
+      for (ReaderAggregator aggregator : aggregators) {
+         aggregator.close();
+      }
+      aggregators.clear();
+   }
+
+   /**
+    * Merges the per reader counts (sorted by hash) into the top queueSize entries. Terms are not loaded.
+    * Aggregators are consumed but not closed.
+    */
+   public static HashedStringsFacet.HashedStringEntry[] mergeAggregators(List<ReaderAggregator> aggregators, int queueSize,
+                                                                         TermsFacet.ComparatorType comparatorType, int minCount,
+                                                                         TIntHashSet excluded, TIntHashSet included) {
+      AggregatorPriorityQueue queue = new AggregatorPriorityQueue(aggregators.size());
+
+      for (ReaderAggregator aggregator : aggregators) {
+         if (aggregator.nextPosition()) {
+            queue.add(aggregator);
+         }
+      }
+
+      EntryPriorityQueue ordered = new EntryPriorityQueue(queueSize, comparatorType.comparator());
+
+      while (queue.size() > 0) {
+         ReaderAggregator agg = queue.top();
+         int value = agg.currentValue;
+         int count = 0;
+         int docId = agg.currentDocId;
+         do {
+            if (agg.currentCount != 0) {
+               count += agg.currentCount;
+               docId = agg.currentDocId;
+            }
+
+            if (agg.nextPosition()) {
+               agg = queue.updateTop();
+            } else {
+               // we are done with this reader
+               queue.pop();
+               agg = queue.top();
+            }
+         } while (agg != null && value == agg.currentValue);
+
+         assert (agg == null || value < agg.currentValue);
+
+         if (count > minCount) {
+            if (excluded != null && excluded.contains(value)) {
+               continue;
+            }
+            if (included != null && !included.contains(value)) {
+               continue;
+            }
+            HashedStringsFacet.HashedStringEntry entry = new HashedStringsFacet.HashedStringEntry(null, value, docId, count);
+            ordered.insertWithOverflow(entry);
+         }
+      }
+      HashedStringsFacet.HashedStringEntry[] list = new HashedStringsFacet.HashedStringEntry[ordered.size()];
+      for (int i = ordered.size() - 1; i >= 0; i--) {
+         list[i] = (HashedStringsFacet.HashedStringEntry) ordered.pop();
+      }
+      return list;
+   }
+
    private void loadTermIntoEntry(HashedStringsFacet.HashedStringEntry hashedEntry) {
       switch (output_mode) {
          case HASH:
@@ -337,9 +406,15 @@ public class HashedStringsFacetCollector extends AbstractFacetCollector {
 
    public static class ReaderAggregator implements FieldData.OrdinalInDocProc {
 
-      final int[] values;
-      final int[] counts;
-      final int[] docIdsForValues; // of every value keep a docid where we run into it.
+      // sorted hashes by ordinal, possibly mapped from disk
+      final IntBuffer values;
+      // large scratch buffers, off heap when big enough (see SizeSensitiveCacheRecycler.popIntBuffer)
+      final IntBuffer counts;
+      final IntBuffer docIdsForValues; // of every value keep a docid where we run into it.
+      // terms beyond the field's top_k, only counted towards the total. 0 if there is none.
+      final int otherOrdinal;
+      // positions of terms end here
+      final int end;
 
       int position = 0; // first value is a null value.
       int currentValue;
@@ -349,16 +424,44 @@ public class HashedStringsFacetCollector extends AbstractFacetCollector {
       int missing;
       int docBase;
 
+      // ordinals counted so far, so close() only clears those. Once more than maxTouched ordinals were hit a full
+      // fill is cheaper and tracking stops (touched == null).
+      int[] touched;
+      int touchedCount;
+      final int maxTouched;
+      boolean closed;
+
       public ReaderAggregator(HashedStringFieldData fieldData, int docBase) {
-         this.values = fieldData.values();
-         this.counts = SizeSensitiveCacheRecycler.popIntArray(fieldData.values().length);
-         this.docIdsForValues = SizeSensitiveCacheRecycler.popIntArray(fieldData.values().length);
+         this.values = fieldData.valueBuffer();
+         this.counts = SizeSensitiveCacheRecycler.popIntBuffer(values.limit());
+         this.docIdsForValues = SizeSensitiveCacheRecycler.popIntBuffer(values.limit());
          this.docBase = docBase;
+         this.otherOrdinal = fieldData.otherOrdinal();
+         this.end = otherOrdinal > 0 ? otherOrdinal : values.limit();
+         this.maxTouched = values.limit() >>> 3;
+         this.touched = SizeSensitiveCacheRecycler.popIntArray(Math.min(64, maxTouched));
       }
 
+      /**
+       * Returns the buffers to the recycler. Safe to call more than once.
+       */
       public void close() {
-         SizeSensitiveCacheRecycler.pushIntArray(counts);
-         SizeSensitiveCacheRecycler.pushIntArray(docIdsForValues);
+         if (closed) return;
+         closed = true;
+         if (touched == null) {
+            SizeSensitiveCacheRecycler.pushIntBuffer(counts);
+            SizeSensitiveCacheRecycler.pushIntBuffer(docIdsForValues);
+            return;
+         }
+         for (int i = 0; i < touchedCount; i++) {
+            counts.put(touched[i], 0);
+            docIdsForValues.put(touched[i], 0);
+         }
+         Arrays.fill(touched, 0, touchedCount, 0);
+         SizeSensitiveCacheRecycler.pushClearedIntBuffer(counts);
+         SizeSensitiveCacheRecycler.pushClearedIntBuffer(docIdsForValues);
+         SizeSensitiveCacheRecycler.pushClearedIntArray(touched);
+         touched = null;
       }
 
       public void onOrdinal(int docId, int ordinal) {
@@ -366,18 +469,41 @@ public class HashedStringsFacetCollector extends AbstractFacetCollector {
             missing++;
             return; // no value no count..
          }
-         if (counts[ordinal]++ == 0)
-            docIdsForValues[ordinal] = docId + docBase;
+         if (ordinal == otherOrdinal) {
+            total++;
+            return;
+         }
+         int count = counts.get(ordinal);
+         counts.put(ordinal, count + 1);
+         if (count == 0) {
+            docIdsForValues.put(ordinal, docId + docBase);
+            if (touched != null) touch(ordinal);
+         }
          total++;
       }
 
+      private void touch(int ordinal) {
+         if (touchedCount == touched.length) {
+            if (touchedCount >= maxTouched) {
+               SizeSensitiveCacheRecycler.pushIntArray(touched);
+               touched = null;
+               return;
+            }
+            int[] grown = SizeSensitiveCacheRecycler.popIntArray(Math.min(touchedCount * 2, maxTouched));
+            System.arraycopy(touched, 0, grown, 0, touchedCount);
+            SizeSensitiveCacheRecycler.pushIntArray(touched);
+            touched = grown;
+         }
+         touched[touchedCount++] = ordinal;
+      }
+
       public boolean nextPosition() {
-         if (++position >= values.length) {
+         if (++position >= end) {
             return false;
          }
-         currentValue = values[position];
-         currentDocId = docIdsForValues[position];
-         currentCount = counts[position];
+         currentValue = values.get(position);
+         currentDocId = docIdsForValues.get(position);
+         currentCount = counts.get(position);
          return true;
       }
    }
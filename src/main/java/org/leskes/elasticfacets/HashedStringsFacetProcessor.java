@@ -14,8 +14,10 @@ import org.elasticsearch.search.facet.FacetCollector;
 import org.elasticsearch.search.facet.FacetProcessor;
 import org.elasticsearch.search.facet.terms.TermsFacet;
 import org.elasticsearch.search.internal.SearchContext;
+import org.leskes.elasticfacets.fields.HashedStringFieldLoader;
 import org.leskes.elasticfacets.fields.HashedStringFieldSettings;
 import org.leskes.elasticfacets.fields.HashedStringFieldType;
+import org.leskes.elasticfacets.stats.FacetStats;
 
 import java.io.IOException;
 import java.util.List;
@@ -27,13 +29,18 @@ public class HashedStringsFacetProcessor extends AbstractComponent implements
    final static ESLogger logger = Loggers
            .getLogger(HashedStringsFacetProcessor.class);
    private final IndicesService indicesService;
+   private final FacetStats.FacetTimers timers;
+   private final HashedStringFieldLoader fieldLoader;
 
 
    @Inject
-   public HashedStringsFacetProcessor(Settings settings, IndicesService indicesService)
+   public HashedStringsFacetProcessor(Settings settings, IndicesService indicesService, FacetStats facetStats,
+                                      HashedStringFieldLoader fieldLoader)
    {
       super(settings);
       this.indicesService = indicesService;
+      this.fieldLoader = fieldLoader;
+      this.timers = facetStats.facet(HashedStringsFacet.TYPE);
 
       HashedStringsFacet.registerStreams();
 
@@ -42,6 +49,7 @@ public class HashedStringsFacetProcessor extends AbstractComponent implements
 
    public FacetCollector parse(String facetName, XContentParser parser,
                                SearchContext context) throws IOException {
+      long start = System.nanoTime();
 
       String field = null;
       int size = 10;
@@ -58,6 +66,7 @@ public class HashedStringsFacetProcessor extends AbstractComponent implements
       TIntHashSet excluded = new TIntHashSet();
       TIntHashSet included = new TIntHashSet();
       TermsFacet.ComparatorType comparatorType = TermsFacet.ComparatorType.COUNT;
+      boolean profile = false;
 
       String currentFieldName = null;
       XContentParser.Token token;
@@ -99,6 +108,8 @@ public class HashedStringsFacetProcessor extends AbstractComponent implements
                output_mode = HashedStringsFacetCollector.OUTPUT_MODE.fromString(parser.text());
             } else if ("lang".equals(currentFieldName)) {
                output_scriptLang = parser.text();
+            } else if ("profile".equals(currentFieldName)) {
+               profile = parser.booleanValue();
             } else if (token == XContentParser.Token.START_OBJECT) {
                if ("params".equals(currentFieldName)) {
                   params = parser.map();
@@ -121,9 +132,11 @@ public class HashedStringsFacetProcessor extends AbstractComponent implements
 
       HashedStringFieldSettings.FieldTypeFactory fieldTypeFactory = fieldSettings.fieldTypeFactory;
 
-      return new HashedStringsFacetCollector(facetName, field, size, fetch_size, comparatorType, allTerms,
-              output_mode, included, excluded, output_script, output_scriptLang, context, params,
-              fieldTypeFactory);
+      HashedStringsFacetCollector collector = new HashedStringsFacetCollector(facetName, field, size, fetch_size,
+              comparatorType, allTerms, output_mode, included, excluded, output_script, output_scriptLang, context,
+              params, fieldTypeFactory, fieldLoader, timers, profile ? new FacetProfile() : null);
+      timers.record(FacetStats.Phase.PARSE, System.nanoTime() - start);
+      return collector;
    }
 
    public String[] types() {
@@ -132,8 +145,11 @@ public class HashedStringsFacetProcessor extends AbstractComponent implements
 
    @Override
    public Facet reduce(String name, List<Facet> facets) {
+      long start = System.nanoTime();
       HashedStringsFacet first = (HashedStringsFacet) facets.get(0);
-      return first.reduce(name, facets);
+      Facet reduced = first.reduce(name, facets);
+      timers.record(FacetStats.Phase.REDUCE, System.nanoTime() - start);
+      return reduced;
    }
 
 
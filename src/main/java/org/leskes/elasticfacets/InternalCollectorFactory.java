@@ -0,0 +1,98 @@
+package org.leskes.elasticfacets;
+
+import org.elasticsearch.common.jackson.core.JsonFactory;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentGenerator;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContentGenerator;
+import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.FacetCollector;
+import org.elasticsearch.search.facet.FacetPhaseExecutionException;
+import org.elasticsearch.search.facet.FacetProcessor;
+import org.elasticsearch.search.facet.FacetProcessors;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Creates the internal (per bucket) collectors of the faceted histograms from a stored facet definition.
+ */
+public class InternalCollectorFactory {
+
+	private static JsonFactory jsonFactory = new JsonFactory();
+
+	private final FacetProcessor internalProcessor;
+	private final byte[] internalFacetConfig;
+	private final SearchContext searchContext;
+	private final String facetName;
+
+	public InternalCollectorFactory(String facetName, FacetProcessor internalProcessor, byte[] internalFacetConfig,
+											  SearchContext searchContext) {
+		this.internalProcessor = internalProcessor;
+		this.internalFacetConfig = internalFacetConfig;
+		this.searchContext = searchContext;
+		this.facetName = facetName;
+	}
+
+	public FacetCollector createInternalCollector() throws IOException {
+		XContentParser parser = XContentFactory.xContent(XContentType.JSON).createParser(internalFacetConfig);
+		try {
+			return internalProcessor.parse("facet", parser, searchContext);
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Holds the internal facet processor and its configuration, as parsed from the "facet" clause.
+	 */
+	public static class Definition {
+		public final FacetProcessor processor;
+		public final byte[] config;
+
+		public Definition(FacetProcessor processor, byte[] config) {
+			this.processor = processor;
+			this.config = config;
+		}
+	}
+
+	/**
+	 * Parses the object under the "facet" clause. The parser should be positioned at its START_OBJECT.
+	 */
+	public static Definition parseDefinition(String facetName, XContentParser parser, FacetProcessors processors)
+			throws IOException {
+		XContentParser.Token token = parser.nextToken();
+		if (token != XContentParser.Token.FIELD_NAME)
+			throw new FacetPhaseExecutionException(facetName, "No facet type defined under facet node");
+		String facetType = parser.currentName();
+		FacetProcessor internalProcessor = processors.processor(facetType);
+		if (internalProcessor == null) {
+			throw new FacetPhaseExecutionException(facetName, "No facet type found for [" + facetType + "]");
+		}
+		// Store underlying facet configuration
+		parser.nextToken(); // move the start of object...
+		ByteArrayOutputStream memstream = new ByteArrayOutputStream(20);
+		XContentGenerator generator = new JsonXContentGenerator(jsonFactory.createJsonGenerator(memstream));
+		XContentHelper.copyCurrentStructure(generator, parser);
+		generator.close();
+		memstream.close();
+		byte[] internalConfig = memstream.toByteArray(); // now we're at the end of the underlying config.
+
+		while (parser.nextToken() != XContentParser.Token.END_OBJECT) ; // eat everything else under the "facet" clause
+
+		return new Definition(internalProcessor, internalConfig);
+	}
+
+	/**
+	 * Reduces the internal facets of a single bucket, as collected from the different shards.
+	 */
+	public static InternalFacet reduceInternal(List<Facet> facets, FacetProcessors processors) {
+		Facet f = facets.get(0);
+		return (InternalFacet) processors.processor(f.getType()).reduce(f.getName(), facets);
+	}
+}
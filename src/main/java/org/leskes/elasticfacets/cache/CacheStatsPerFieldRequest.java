@@ -1,13 +1,100 @@
 package org.leskes.elasticfacets.cache;
 
+import org.elasticsearch.ElasticSearchIllegalArgumentException;
 import org.elasticsearch.action.support.nodes.NodesOperationRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
 
 public class CacheStatsPerFieldRequest extends NodesOperationRequest<CacheStatsPerFieldRequest> {
 
+    public static enum Level {
+        SHARD,
+        SEGMENT;
+
+        public static Level fromString(String level) {
+            if ("shard".equals(level) || "shards".equals(level)) return SHARD;
+            if ("segment".equals(level) || "segments".equals(level)) return SEGMENT;
+            throw new ElasticSearchIllegalArgumentException("No cache stats level matching [" + level + "]");
+        }
+    }
+
+    private String[] indices = Strings.EMPTY_ARRAY;
+    private String[] fields = Strings.EMPTY_ARRAY;
+    private Level level = Level.SHARD;
+    private boolean untrackedFields = false;
+
     protected CacheStatsPerFieldRequest() {
     }
 
     public CacheStatsPerFieldRequest(String ... nodeIds) {
         super(nodeIds);
     }
+
+    /**
+     * Only report these indices. Empty means all.
+     */
+    public CacheStatsPerFieldRequest indices(String... indices) {
+        this.indices = indices;
+        return this;
+    }
+
+    public String[] indices() {
+        return indices;
+    }
+
+    /**
+     * Only report fields matching these simple (*) patterns. Empty means all.
+     */
+    public CacheStatsPerFieldRequest fields(String... fields) {
+        this.fields = fields;
+        return this;
+    }
+
+    public String[] fields() {
+        return fields;
+    }
+
+    public CacheStatsPerFieldRequest level(Level level) {
+        this.level = level;
+        return this;
+    }
+
+    public Level level() {
+        return level;
+    }
+
+    /**
+     * Whether to break field data loaded by elasticsearch itself down per field, which peeks the cache for every
+     * mapped field of every segment. Otherwise it is reported as a single {@link CacheStatsPerFieldStats#UNTRACKED_FIELD}
+     * entry per index. Defaults to false.
+     */
+    public CacheStatsPerFieldRequest untrackedFields(boolean untrackedFields) {
+        this.untrackedFields = untrackedFields;
+        return this;
+    }
+
+    public boolean untrackedFields() {
+        return untrackedFields;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        indices = in.readStringArray();
+        fields = in.readStringArray();
+        level = Level.values()[in.readByte()];
+        untrackedFields = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeStringArray(indices);
+        out.writeStringArray(fields);
+        out.writeByte((byte) level.ordinal());
+        out.writeBoolean(untrackedFields);
+    }
 }
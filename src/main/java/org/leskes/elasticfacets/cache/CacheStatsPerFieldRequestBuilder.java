@@ -35,6 +35,26 @@ public class CacheStatsPerFieldRequestBuilder extends
       super((InternalGenericClient)client, new CacheStatsPerFieldRequest());
    }
 
+   public CacheStatsPerFieldRequestBuilder setIndices(String... indices) {
+      request.indices(indices);
+      return this;
+   }
+
+   public CacheStatsPerFieldRequestBuilder setFields(String... fields) {
+      request.fields(fields);
+      return this;
+   }
+
+   public CacheStatsPerFieldRequestBuilder setLevel(CacheStatsPerFieldRequest.Level level) {
+      request.level(level);
+      return this;
+   }
+
+   public CacheStatsPerFieldRequestBuilder setUntrackedFields(boolean untrackedFields) {
+      request.untrackedFields(untrackedFields);
+      return this;
+   }
+
    @Override
     protected void doExecute(ActionListener<CacheStatsPerFieldResponse> listener) {
        ((ClusterAdminClient) client).execute(CacheStatsPerFieldAction.INSTANCE, request, listener);
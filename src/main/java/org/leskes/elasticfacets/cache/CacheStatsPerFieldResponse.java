@@ -27,6 +27,7 @@ import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -73,13 +74,37 @@ public class CacheStatsPerFieldResponse extends NodesOperationResponse<CacheStat
                 builder.field("hostname", nodeFieldStats.hostname(), XContentBuilder.FieldCaseConversion.NONE);
             }
 
-            builder.startObject("fields");
+            // sorted by size, largest first
+            builder.startArray("fields");
             for (CacheStatsPerFieldStats.FieldEntry fe : nodeFieldStats.fieldEntries()){
-                builder.startObject(fe.fieldName);
+                builder.startObject();
+                builder.field("index", fe.index, XContentBuilder.FieldCaseConversion.NONE);
+                if (fe.shardId != CacheStatsPerFieldStats.NO_SHARD) builder.field("shard", fe.shardId);
+                builder.field("field", fe.fieldName, XContentBuilder.FieldCaseConversion.NONE);
                 builder.field("size",fe.size);
+                if (fe.hasLoadStats()) {
+                    builder.field("load_count", fe.loadCount);
+                    builder.field("load_time_in_millis", TimeUnit.NANOSECONDS.toMillis(fe.totalLoadTimeNanos));
+                    builder.field("max_load_time_in_millis", TimeUnit.NANOSECONDS.toMillis(fe.maxLoadTimeNanos));
+                    builder.field("unique_terms", fe.uniqueTerms);
+                    builder.field("collisions", fe.collisions);
+                    builder.field("multi_valued", fe.multiValued);
+                    builder.field("skipped_terms", fe.skippedTerms);
+                    builder.field("skipped_docs", fe.skippedDocs);
+                    if (fe.budgetMinDocsPerTerm > 0) {
+                        builder.field("budget_min_docs_per_term", fe.budgetMinDocsPerTerm);
+                    }
+                }
+                if (fe.segments != null) {
+                    builder.startObject("segments");
+                    for (CacheStatsPerFieldStats.SegmentEntry se : fe.segments) {
+                        builder.field(se.segment, se.size);
+                    }
+                    builder.endObject();
+                }
                 builder.endObject();
             }
-            builder.endObject(); // fields
+            builder.endArray(); // fields
 
             builder.endObject(); // node
         }
@@ -7,18 +7,91 @@ import org.elasticsearch.common.io.stream.StreamOutput;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 public class CacheStatsPerFieldStats extends NodeOperationResponse {
 
+    /**
+     * Field name of the entry holding the field data loaded by elasticsearch itself, unless broken down per field.
+     * Such entries are per index rather than per shard and have {@link #NO_SHARD} as shard id.
+     */
+    public static final String UNTRACKED_FIELD = "_untracked";
+    public static final int NO_SHARD = -1;
+
+    public static class SegmentEntry {
+        public final String segment;
+        public final long size;
+
+        public SegmentEntry(String segment, long size) {
+            this.segment = segment;
+            this.size = size;
+        }
+    }
+
     public static class FieldEntry {
+        public final String index;
+        public final int shardId;
         public final String fieldName;
         public final long size;
 
-        public FieldEntry(String fieldName, long size) {
+        // only filled at the segment level
+        public List<SegmentEntry> segments;
+
+        // load statistics, only available for fields loaded by this plugin
+        public long loadCount;
+        public long totalLoadTimeNanos;
+        public long maxLoadTimeNanos;
+        public long uniqueTerms;
+        public long collisions;
+        public long skippedTerms;
+        public long skippedDocs;
+        // min docs per term cut off forced by max_memory, 0 if none
+        public int budgetMinDocsPerTerm;
+        public boolean multiValued;
+
+        public FieldEntry(String index, int shardId, String fieldName, long size) {
+            this.index = index;
+            this.shardId = shardId;
             this.fieldName = fieldName;
             this.size = size;
         }
+
+        public static final Comparator<FieldEntry> SIZE_DESC = new Comparator<FieldEntry>() {
+            public int compare(FieldEntry o1, FieldEntry o2) {
+                return o1.size > o2.size ? -1 : (o1.size == o2.size ? 0 : 1);
+            }
+        };
+
+        public boolean hasLoadStats() {
+            return loadCount > 0;
+        }
+
+        void readLoadStats(StreamInput in) throws IOException {
+            loadCount = in.readVLong();
+            if (loadCount == 0) return;
+            totalLoadTimeNanos = in.readVLong();
+            maxLoadTimeNanos = in.readVLong();
+            uniqueTerms = in.readVLong();
+            collisions = in.readVLong();
+            skippedTerms = in.readVLong();
+            skippedDocs = in.readVLong();
+            budgetMinDocsPerTerm = in.readVInt();
+            multiValued = in.readBoolean();
+        }
+
+        void writeLoadStats(StreamOutput out) throws IOException {
+            out.writeVLong(loadCount);
+            if (loadCount == 0) return;
+            out.writeVLong(totalLoadTimeNanos);
+            out.writeVLong(maxLoadTimeNanos);
+            out.writeVLong(uniqueTerms);
+            out.writeVLong(collisions);
+            out.writeVLong(skippedTerms);
+            out.writeVLong(skippedDocs);
+            out.writeVInt(budgetMinDocsPerTerm);
+            out.writeBoolean(multiValued);
+        }
     }
 
     private long timestamp;
@@ -51,7 +124,15 @@ public class CacheStatsPerFieldStats extends NodeOperationResponse {
         int size = in.readVInt();
         fieldEntries = new ArrayList<FieldEntry>(size);
         for(int i=0;i<size;i++) {
-            FieldEntry e = new FieldEntry(in.readString(),in.readVLong());
+            FieldEntry e = new FieldEntry(in.readString(), in.readVInt(), in.readString(), in.readVLong());
+            e.readLoadStats(in);
+            if (in.readBoolean()) {
+                int segmentCount = in.readVInt();
+                e.segments = new ArrayList<SegmentEntry>(segmentCount);
+                for (int j = 0; j < segmentCount; j++) {
+                    e.segments.add(new SegmentEntry(in.readString(), in.readVLong()));
+                }
+            }
             fieldEntries.add(e);
         }
     }
@@ -68,8 +149,21 @@ public class CacheStatsPerFieldStats extends NodeOperationResponse {
         }
         out.writeVInt(fieldEntries.size());
         for (FieldEntry e: fieldEntries) {
+            out.writeString(e.index);
+            out.writeVInt(e.shardId);
             out.writeString(e.fieldName);
             out.writeVLong(e.size);
+            e.writeLoadStats(out);
+            if (e.segments == null) {
+                out.writeBoolean(false);
+            } else {
+                out.writeBoolean(true);
+                out.writeVInt(e.segments.size());
+                for (SegmentEntry segment : e.segments) {
+                    out.writeString(segment.segment);
+                    out.writeVLong(segment.size);
+                }
+            }
         }
     }
 
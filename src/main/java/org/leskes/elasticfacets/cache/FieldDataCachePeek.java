@@ -0,0 +1,45 @@
+package org.leskes.elasticfacets.cache;
+
+import org.apache.lucene.index.IndexReader;
+import org.elasticsearch.index.cache.field.data.FieldDataCache;
+import org.elasticsearch.index.field.data.FieldData;
+import org.elasticsearch.index.field.data.FieldDataType;
+
+import java.io.IOException;
+
+/**
+ * Looks up field data already cached for a segment, without loading it. The field data cache has no lookup
+ * method, but it only consults the type when the field is missing, so a type which refuses to load does the trick.
+ */
+public class FieldDataCachePeek {
+
+   private static class NotCachedException extends RuntimeException {
+      @Override
+      public synchronized Throwable fillInStackTrace() {
+         return this; // used for control flow only
+      }
+   }
+
+   private static final NotCachedException NOT_CACHED = new NotCachedException();
+
+   private static final FieldDataType<FieldData> PEEK_TYPE = new FieldDataType<FieldData>() {
+      public FieldDataType.ExtendedFieldComparatorSource newFieldComparatorSource(FieldDataCache cache, String missing) {
+         throw new UnsupportedOperationException();
+      }
+
+      public FieldData load(IndexReader reader, String fieldName) throws IOException {
+         throw NOT_CACHED;
+      }
+   };
+
+   /**
+    * @return the cached field data of the segment or null if it is not loaded.
+    */
+   public static FieldData peek(FieldDataCache cache, IndexReader segmentReader, String field) throws IOException {
+      try {
+         return cache.cache(PEEK_TYPE, segmentReader, field);
+      } catch (NotCachedException e) {
+         return null;
+      }
+   }
+}
@@ -21,6 +21,7 @@ package org.leskes.elasticfacets.cache;
 
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
@@ -50,6 +51,12 @@ public class RestCacheStatsPerFieldAction extends BaseRestHandler {
     public void handleRequest(final RestRequest request, final RestChannel channel) {
         String[] nodesIds = RestActions.splitNodes(request.param("nodeId"));
         CacheStatsPerFieldRequest nodesRequest = new CacheStatsPerFieldRequest(nodesIds);
+        nodesRequest.indices(Strings.splitStringByCommaToArray(request.param("index", "")));
+        nodesRequest.fields(Strings.splitStringByCommaToArray(request.param("fields", "")));
+        if (request.hasParam("level")) {
+            nodesRequest.level(CacheStatsPerFieldRequest.Level.fromString(request.param("level")));
+        }
+        nodesRequest.untrackedFields(request.paramAsBoolean("untracked_fields", false));
         client.admin().cluster().execute(CacheStatsPerFieldAction.INSTANCE,
                 nodesRequest, new ActionListener<CacheStatsPerFieldResponse>() {
             @Override
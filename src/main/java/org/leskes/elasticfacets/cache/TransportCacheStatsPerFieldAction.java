@@ -19,6 +19,8 @@
 
 package org.leskes.elasticfacets.cache;
 
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
 import org.elasticsearch.ElasticSearchException;
 import org.elasticsearch.action.support.nodes.NodeOperationRequest;
 import org.elasticsearch.action.support.nodes.TransportNodesOperationAction;
@@ -26,22 +28,37 @@ import org.elasticsearch.cluster.ClusterName;
 import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.collect.Sets;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Injector;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.network.NetworkUtils;
+import org.elasticsearch.common.regex.Regex;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.index.cache.field.data.FieldDataCache;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.field.data.FieldData;
 import org.elasticsearch.index.mapper.DocumentMapper;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.service.IndexService;
+import org.elasticsearch.index.shard.IllegalIndexShardStateException;
+import org.elasticsearch.index.shard.IndexShardMissingException;
+import org.elasticsearch.index.shard.service.IndexShard;
 import org.elasticsearch.indices.IndicesService;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
+import org.leskes.elasticfacets.fields.FieldLoadStats;
+import org.leskes.elasticfacets.fields.HashedStringFieldSettings;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
@@ -117,26 +134,166 @@ public class TransportCacheStatsPerFieldAction extends TransportNodesOperationAc
 
     @Override
     protected CacheStatsPerFieldStats nodeOperation(CacheStatsPerFieldStatsRequest nodeStatsRequest) throws ElasticSearchException {
+        CacheStatsPerFieldRequest request = nodeStatsRequest.request;
         List<CacheStatsPerFieldStats.FieldEntry> entries = Lists.newArrayList();
         for (IndexService indexService : indicesService) {
-            logger.debug("Starting to analyze index {}",indexService.settingsService().index().name());
-            FieldDataCache fieldData = indexService.cache().fieldData();
-            for (DocumentMapper mapper : indexService.mapperService()) {
-                for (FieldMapper fieldMapper : mapper.mappers()) {
-                    String field = fieldMapper.names().indexName();
-                    logger.debug("Calculating size for field {}",field);
-                    long size = fieldData.sizeInBytes(field);
-                    if (size > 0) {
-                        logger.debug("Size for field {}: {}",field,size);
-                        entries.add(new CacheStatsPerFieldStats.FieldEntry(field,size));
+            String index = indexService.index().name();
+            if (request.indices().length > 0 && !Arrays.asList(request.indices()).contains(index)) continue;
+
+            logger.debug("Starting to analyze index {}", index);
+            FieldDataCache fieldDataCache = indexService.cache().fieldData();
+            Map<Integer, Map<String, FieldSize>> shardSizes = Maps.newHashMap();
+
+            // field data loaded by this plugin is tracked as it is loaded, O(loaded segments & fields)
+            long trackedSize = 0;
+            for (int shardId : indexService.shardIds()) {
+                Injector shardInjector = indexService.shardInjector(shardId);
+                if (shardInjector == null) continue; // shard was closed in the meantime
+                Map<String, FieldSize> sizes = Maps.newHashMap();
+                shardSizes.put(shardId, sizes);
+                trackedSize += collectTracked(request, shardInjector.getInstance(HashedStringFieldSettings.class).loadStats,
+                        fieldDataCache, sizes);
+            }
+
+            // anything else was loaded by elasticsearch, which offers no load/evict hooks. Only walk the mappings
+            // for those when asked to, as it peeks every mapped field of every segment.
+            long untrackedSize = fieldDataCache.sizeInBytes() - trackedSize;
+            if (untrackedSize > 0 && request.untrackedFields()) {
+                Set<String> fields = Sets.newHashSet();
+                for (DocumentMapper mapper : indexService.mapperService()) {
+                    for (FieldMapper fieldMapper : mapper.mappers()) {
+                        String field = fieldMapper.names().indexName();
+                        if (matches(request, field)) fields.add(field);
                     }
-                    else logger.debug("Field {} is has no cache. Skipping.",field);
+                }
+                for (Map.Entry<Integer, Map<String, FieldSize>> shard : shardSizes.entrySet()) {
+                    Set<String> untracked = Sets.newHashSet(fields);
+                    untracked.removeAll(shard.getValue().keySet());
+                    try {
+                        collectUntracked(request, indexService.shardSafe(shard.getKey()), untracked, fieldDataCache, shard.getValue());
+                    } catch (IndexShardMissingException e) {
+                        logger.trace("Shard {} of index {} is gone. Skipping.", shard.getKey(), index);
+                    } catch (IllegalIndexShardStateException e) {
+                        logger.trace("Shard {} of index {} is not started. Skipping.", shard.getKey(), index);
+                    } catch (IOException e) {
+                        throw new ElasticSearchException("Failed to collect cache stats of shard " + shard.getKey() +
+                                " of index " + index, e);
+                    }
+                }
+            } else if (untrackedSize > 0 && request.fields().length == 0) {
+                // the cache is shared by the shards of the index, so is the remainder
+                entries.add(new CacheStatsPerFieldStats.FieldEntry(index, CacheStatsPerFieldStats.NO_SHARD,
+                        CacheStatsPerFieldStats.UNTRACKED_FIELD, untrackedSize));
+            }
+
+            for (Map.Entry<Integer, Map<String, FieldSize>> shard : shardSizes.entrySet()) {
+                for (Map.Entry<String, FieldSize> field : shard.getValue().entrySet()) {
+                    FieldSize size = field.getValue();
+                    CacheStatsPerFieldStats.FieldEntry entry =
+                            new CacheStatsPerFieldStats.FieldEntry(index, shard.getKey(), field.getKey(), size.size);
+                    entry.segments = size.segments;
+                    FieldLoadStats.Entry fieldLoadStats = size.loadStats;
+                    if (fieldLoadStats != null) {
+                        entry.loadCount = fieldLoadStats.loadCount();
+                        entry.totalLoadTimeNanos = fieldLoadStats.totalLoadTimeNanos();
+                        entry.maxLoadTimeNanos = fieldLoadStats.maxLoadTimeNanos();
+                        entry.uniqueTerms = fieldLoadStats.uniqueTerms();
+                        entry.collisions = fieldLoadStats.collisions();
+                        entry.skippedTerms = fieldLoadStats.skippedTerms();
+                        entry.skippedDocs = fieldLoadStats.skippedDocs();
+                        entry.budgetMinDocsPerTerm = fieldLoadStats.budgetMinDocsPerTerm();
+                        entry.multiValued = fieldLoadStats.multiValued();
+                    }
+                    entries.add(entry);
                 }
             }
         }
+        Collections.sort(entries, CacheStatsPerFieldStats.FieldEntry.SIZE_DESC);
         return new CacheStatsPerFieldStats(clusterService.localNode(),hostname, System.currentTimeMillis(),entries);
     }
 
+    private static class FieldSize {
+        long size;
+        List<CacheStatsPerFieldStats.SegmentEntry> segments;
+        FieldLoadStats.Entry loadStats;
+
+        void add(CacheStatsPerFieldRequest request, String segment, long segmentSize) {
+            size += segmentSize;
+            if (request.level() == CacheStatsPerFieldRequest.Level.SEGMENT) {
+                if (segments == null) segments = Lists.newArrayList();
+                segments.add(new CacheStatsPerFieldStats.SegmentEntry(segment, segmentSize));
+            }
+        }
+    }
+
+    private static boolean matches(CacheStatsPerFieldRequest request, String field) {
+        return request.fields().length == 0 || Regex.simpleMatch(request.fields(), field);
+    }
+
+    /**
+     * Adds the shard's field data loaded by this plugin, as recorded by its load stats. Returns the total size.
+     */
+    private long collectTracked(CacheStatsPerFieldRequest request, FieldLoadStats loadStats, FieldDataCache fieldDataCache,
+                                Map<String, FieldSize> sizes) {
+        long total = 0;
+        for (FieldLoadStats.LoadedFieldData loaded : loadStats.loadedFieldData()) {
+            // the cache may have dropped the data, e.g. when cleared. Make sure it is still the cached one.
+            IndexReader reader = loaded.reader();
+            FieldData fieldData = loaded.fieldData();
+            try {
+                if (reader == null || fieldData == null || FieldDataCachePeek.peek(fieldDataCache, reader, loaded.field) != fieldData) {
+                    loadStats.forget(loaded);
+                    continue;
+                }
+            } catch (IOException e) {
+                throw new ElasticSearchException("Failed to check cached field data of field " + loaded.field, e);
+            }
+            total += loaded.sizeInBytes;
+            if (!matches(request, loaded.field)) continue;
+            fieldSize(sizes, loaded.field).add(request, loaded.segment, loaded.sizeInBytes);
+        }
+        for (Map.Entry<String, FieldSize> size : sizes.entrySet()) {
+            size.getValue().loadStats = loadStats.get(size.getKey());
+        }
+        return total;
+    }
+
+    private static FieldSize fieldSize(Map<String, FieldSize> sizes, String field) {
+        FieldSize size = sizes.get(field);
+        if (size == null) {
+            size = new FieldSize();
+            sizes.put(field, size);
+        }
+        return size;
+    }
+
+    private void collectUntracked(CacheStatsPerFieldRequest request, IndexShard indexShard, Set<String> fields,
+                                  FieldDataCache fieldDataCache, Map<String, FieldSize> sizes) throws IOException {
+        Engine.Searcher searcher = indexShard.searcher();
+        try {
+            IndexReader[] segments = searcher.searcher().subReaders();
+            for (String field : fields) {
+                FieldSize size = null;
+                for (IndexReader segment : segments) {
+                    FieldData fieldData = FieldDataCachePeek.peek(fieldDataCache, segment, field);
+                    if (fieldData == null) continue;
+                    if (size == null) size = fieldSize(sizes, field);
+                    size.add(request, segmentName(segment), fieldData.sizeInBytes());
+                }
+                if (size == null) logger.trace("Field {} of shard {} has no cache. Skipping.", field, indexShard.shardId());
+            }
+        } finally {
+            searcher.release();
+        }
+    }
+
+    private static String segmentName(IndexReader segment) {
+        if (segment instanceof SegmentReader) {
+            return ((SegmentReader) segment).getSegmentName();
+        }
+        return segment.toString();
+    }
+
     @Override
     protected boolean accumulateExceptions() {
         return false;
@@ -0,0 +1,226 @@
+package org.leskes.elasticfacets.fields;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An exclude_regex prepared for checking every term of a field. Alternatives which are a literal, optionally preceded
+ * or followed by ".*" (exact terms, prefixes, suffixes and infixes), are checked with plain string comparisons. Only
+ * the remaining alternatives, if any, run the regular expression.
+ * <p/>
+ * The terms starting with a prefix alternative form a range of the terms dictionary, so sweeps seek past such ranges
+ * instead of checking their terms one by one (see {@link #skippedPrefixes()}). The ranges also hold terms with line
+ * breaks after the prefix, which ".*" only matches with {@link Pattern#DOTALL}, so ranges are only skipped with it.
+ * <p/>
+ * Immutable, every sweep checks terms with a {@link TermMatcher} of its own.
+ */
+public class ExcludePattern {
+
+   private static final int IGNORE_CASE = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+   // flags literals can be checked with, case insensitive literals are compared with unicode case folding
+   private static final int LITERAL_FLAGS = IGNORE_CASE | Pattern.DOTALL;
+
+   private final Pattern pattern;
+   private final boolean ignoreCase;
+   // whether ".*" matches line terminators
+   private final boolean dotAll;
+   private final String[] exact;
+   private final String[] prefixes;
+   private final String[] suffixes;
+   private final String[] infixes;
+   // the alternatives which are not literals, null if there are none
+   private final Pattern rest;
+   private final String[] skippedPrefixes;
+
+   public ExcludePattern(Pattern pattern) {
+      this.pattern = pattern;
+      int flags = pattern.flags();
+      this.ignoreCase = (flags & IGNORE_CASE) == IGNORE_CASE;
+      this.dotAll = (flags & Pattern.DOTALL) != 0;
+      boolean literalFlags = (flags & ~LITERAL_FLAGS) == 0 && (ignoreCase || (flags & Pattern.CASE_INSENSITIVE) == 0);
+      List<String> exact = new ArrayList<String>();
+      List<String> prefixes = new ArrayList<String>();
+      List<String> suffixes = new ArrayList<String>();
+      List<String> infixes = new ArrayList<String>();
+      List<String> rest = new ArrayList<String>();
+
+      List<String> alternatives = literalFlags ? alternatives(pattern.pattern()) : null;
+      if (alternatives == null) {
+         rest.add(pattern.pattern());
+      } else {
+         for (String alternative : alternatives) {
+            String body = alternative;
+            boolean leading = body.startsWith(".*");
+            if (leading) body = body.substring(2);
+            boolean trailing = body.endsWith(".*") && !escaped(body, body.length() - 2);
+            if (trailing) body = body.substring(0, body.length() - 2);
+            String literal = literal(body);
+            if (literal == null) {
+               rest.add(alternative);
+            } else if (leading) {
+               (trailing ? infixes : suffixes).add(literal);
+            } else {
+               (trailing ? prefixes : exact).add(literal);
+            }
+         }
+      }
+
+      this.exact = exact.toArray(new String[exact.size()]);
+      this.prefixes = prefixes.toArray(new String[prefixes.size()]);
+      this.suffixes = suffixes.toArray(new String[suffixes.size()]);
+      this.infixes = infixes.toArray(new String[infixes.size()]);
+      if (rest.isEmpty()) {
+         this.rest = null;
+      } else if (alternatives == null || rest.size() == alternatives.size()) {
+         this.rest = pattern;
+      } else {
+         StringBuilder joined = new StringBuilder();
+         for (String alternative : rest) {
+            if (joined.length() > 0) joined.append('|');
+            joined.append(alternative);
+         }
+         this.rest = Pattern.compile(joined.toString(), pattern.flags());
+      }
+      this.skippedPrefixes = dotAll ? skippedPrefixes(this.prefixes, ignoreCase) : new String[0];
+   }
+
+   public Pattern pattern() {
+      return pattern;
+   }
+
+   /**
+    * @return sorted prefixes, none starting with another, of terms which all match the pattern. Empty if there are
+    * none, which is always the case without {@link Pattern#DOTALL}.
+    */
+   public String[] skippedPrefixes() {
+      return skippedPrefixes;
+   }
+
+   public TermMatcher newMatcher() {
+      return new TermMatcher();
+   }
+
+   /**
+    * Checks terms against the pattern. Not thread safe.
+    */
+   public class TermMatcher {
+      private final Matcher restMatcher = rest != null ? rest.matcher("") : null;
+      private Matcher fullMatcher;
+
+      TermMatcher() {
+      }
+
+      /**
+       * @return whether the whole term matches the pattern.
+       */
+      public boolean matches(String term) {
+         for (String literal : exact) {
+            if (ignoreCase ? term.equalsIgnoreCase(literal) : term.equals(literal)) return true;
+         }
+         if (prefixes.length + suffixes.length + infixes.length > 0) {
+            if (!dotAll && hasLineTerminator(term)) {
+               // ".*" stops at line breaks, leave it to the regular expression
+               if (fullMatcher == null) fullMatcher = pattern.matcher("");
+               return fullMatcher.reset(term).matches();
+            }
+            for (String literal : prefixes) {
+               if (term.regionMatches(ignoreCase, 0, literal, 0, literal.length())) return true;
+            }
+            for (String literal : suffixes) {
+               int offset = term.length() - literal.length();
+               if (offset >= 0 && term.regionMatches(ignoreCase, offset, literal, 0, literal.length())) return true;
+            }
+            for (String literal : infixes) {
+               for (int offset = term.length() - literal.length(); offset >= 0; offset--) {
+                  if (term.regionMatches(ignoreCase, offset, literal, 0, literal.length())) return true;
+               }
+            }
+         }
+         return restMatcher != null && restMatcher.reset(term).matches();
+      }
+   }
+
+   /**
+    * @return the top level alternatives of the regex, or null if it has groups, classes or quotes which may hold a '|'.
+    */
+   static List<String> alternatives(String regex) {
+      List<String> ret = new ArrayList<String>();
+      int start = 0;
+      for (int i = 0; i < regex.length(); i++) {
+         char c = regex.charAt(i);
+         if (c == '\\') {
+            if (++i < regex.length() && regex.charAt(i) == 'Q') return null;
+         } else if (c == '(' || c == '[') {
+            return null;
+         } else if (c == '|') {
+            ret.add(regex.substring(start, i));
+            start = i + 1;
+         }
+      }
+      ret.add(regex.substring(start));
+      return ret;
+   }
+
+   /**
+    * @return the string the regex matches, or null if it matches anything but a single literal.
+    */
+   static String literal(String regex) {
+      StringBuilder ret = new StringBuilder(regex.length());
+      for (int i = 0; i < regex.length(); i++) {
+         char c = regex.charAt(i);
+         if (c == '\\') {
+            if (++i == regex.length()) return null;
+            c = regex.charAt(i);
+            // classes like \d, back references and escapes like \t
+            if (Character.isLetterOrDigit(c)) return null;
+         } else if (".^$?*+{}()[]|".indexOf(c) >= 0) {
+            return null;
+         }
+         ret.append(c);
+      }
+      return ret.toString();
+   }
+
+   // whether the char at the position is escaped by an odd number of backslashes
+   private static boolean escaped(String regex, int position) {
+      int backslashes = 0;
+      for (int i = position - 1; i >= 0 && regex.charAt(i) == '\\'; i--) backslashes++;
+      return backslashes % 2 == 1;
+   }
+
+   private static boolean hasLineTerminator(String term) {
+      for (int i = 0; i < term.length(); i++) {
+         char c = term.charAt(i);
+         if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') return true;
+      }
+      return false;
+   }
+
+   private static String[] skippedPrefixes(String[] prefixes, boolean ignoreCase) {
+      List<String> ranges = new ArrayList<String>();
+      for (String prefix : prefixes) {
+         if (prefix.isEmpty()) continue; // all terms, which the sweep would skip one by one anyway
+         ranges.add(prefix);
+         if (ignoreCase) {
+            // terms are usually lower cased when indexed. Other case mixes are still matched term by term.
+            for (String variant : new String[]{prefix.toLowerCase(Locale.ROOT), prefix.toUpperCase(Locale.ROOT)}) {
+               if (variant.length() == prefix.length() && variant.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                  ranges.add(variant);
+               }
+            }
+         }
+      }
+      String[] sorted = ranges.toArray(new String[ranges.size()]);
+      Arrays.sort(sorted);
+      List<String> ret = new ArrayList<String>();
+      for (String prefix : sorted) {
+         // a prefix sorts right before the prefixes extending it
+         if (ret.isEmpty() || !prefix.startsWith(ret.get(ret.size() - 1))) ret.add(prefix);
+      }
+      return ret.toArray(new String[ret.size()]);
+   }
+}
@@ -0,0 +1,188 @@
+package org.leskes.elasticfacets.fields;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.index.field.data.FieldData;
+import org.leskes.elasticfacets.stats.FacetStats;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Accumulates field data load statistics per field. Every load is for a single segment, so term and doc counters
+ * are summed over all loads.
+ * <p/>
+ * Also keeps a registry of the field data currently loaded per segment, so loaded sizes can be reported without
+ * walking the mappings. Segments are dropped when their reader is closed. Field data evicted in any other way is
+ * only weakly referenced, so callers should check it is still cached (see {@link LoadedFieldData}).
+ */
+public class FieldLoadStats implements IndexReader.ReaderFinishedListener {
+
+   public static class LoadedFieldData {
+      public final String field;
+      public final String segment;
+      public final long sizeInBytes;
+      private final Object segmentKey;
+      private final WeakReference<IndexReader> reader;
+      private final WeakReference<FieldData> fieldData;
+
+      LoadedFieldData(IndexReader reader, String field, FieldData fieldData) {
+         this.field = field;
+         this.segment = reader instanceof SegmentReader ? ((SegmentReader) reader).getSegmentName() : reader.toString();
+         this.sizeInBytes = fieldData.sizeInBytes();
+         this.segmentKey = reader.getCoreCacheKey();
+         this.reader = new WeakReference<IndexReader>(reader);
+         this.fieldData = new WeakReference<FieldData>(fieldData);
+      }
+
+      /**
+       * @return the segment's reader, or null if it is no longer open.
+       */
+      public IndexReader reader() {
+         IndexReader r = reader.get();
+         return r == null || r.getRefCount() <= 0 ? null : r;
+      }
+
+      /**
+       * @return the loaded field data, or null if it was already garbage collected.
+       */
+      public FieldData fieldData() {
+         return fieldData.get();
+      }
+   }
+
+   public static class Entry {
+      long loadCount;
+      long totalLoadTimeNanos;
+      long maxLoadTimeNanos;
+      long uniqueTerms;
+      long collisions;
+      long skippedTerms;
+      long skippedDocs;
+      int budgetMinDocsPerTerm;
+      boolean multiValued;
+
+      synchronized void onLoad(HashedStringFieldData fieldData, long loadTimeNanos, int skippedTerms, int skippedDocs,
+                               int budgetMinDocsPerTerm) {
+         loadCount++;
+         totalLoadTimeNanos += loadTimeNanos;
+         maxLoadTimeNanos = Math.max(maxLoadTimeNanos, loadTimeNanos);
+         uniqueTerms += fieldData.termCount();
+         collisions += fieldData.collisions();
+         this.skippedTerms += skippedTerms;
+         this.skippedDocs += skippedDocs;
+         this.budgetMinDocsPerTerm = Math.max(this.budgetMinDocsPerTerm, budgetMinDocsPerTerm);
+         multiValued |= fieldData.multiValued();
+      }
+
+      public synchronized long loadCount() {
+         return loadCount;
+      }
+
+      public synchronized long totalLoadTimeNanos() {
+         return totalLoadTimeNanos;
+      }
+
+      public synchronized long maxLoadTimeNanos() {
+         return maxLoadTimeNanos;
+      }
+
+      public synchronized long uniqueTerms() {
+         return uniqueTerms;
+      }
+
+      public synchronized long collisions() {
+         return collisions;
+      }
+
+      public synchronized long skippedTerms() {
+         return skippedTerms;
+      }
+
+      public synchronized long skippedDocs() {
+         return skippedDocs;
+      }
+
+      /**
+       * @return the highest min docs per term cut off max_memory forced on a segment, 0 if it never did.
+       */
+      public synchronized int budgetMinDocsPerTerm() {
+         return budgetMinDocsPerTerm;
+      }
+
+      public synchronized boolean multiValued() {
+         return multiValued;
+      }
+   }
+
+   private final ConcurrentMap<String, Entry> entries = ConcurrentCollections.newConcurrentMap();
+
+   // node level load latencies, may be null
+   private final FacetStats facetStats;
+
+   // segment core key -> field -> loaded data
+   private final ConcurrentMap<Object, ConcurrentMap<String, LoadedFieldData>> loaded = ConcurrentCollections.newConcurrentMap();
+
+   public FieldLoadStats(FacetStats facetStats) {
+      this.facetStats = facetStats;
+   }
+
+   /**
+    * @param budgetMinDocsPerTerm the min docs per term cut off max_memory forced on the segment, 0 if none.
+    */
+   public void onLoad(IndexReader reader, String field, HashedStringFieldData fieldData, long loadTimeNanos,
+                      int skippedTerms, int skippedDocs, int budgetMinDocsPerTerm) {
+      if (facetStats != null) facetStats.recordFieldDataLoad(field, loadTimeNanos);
+      ConcurrentMap<String, LoadedFieldData> segmentFields = loaded.get(reader.getCoreCacheKey());
+      if (segmentFields == null) {
+         ConcurrentMap<String, LoadedFieldData> newSegmentFields = ConcurrentCollections.newConcurrentMap();
+         segmentFields = loaded.putIfAbsent(reader.getCoreCacheKey(), newSegmentFields);
+         if (segmentFields == null) {
+            segmentFields = newSegmentFields;
+            reader.addReaderFinishedListener(this);
+         }
+      }
+      segmentFields.put(field, new LoadedFieldData(reader, field, fieldData));
+
+      Entry entry = entries.get(field);
+      if (entry == null) {
+         Entry newEntry = new Entry();
+         entry = entries.putIfAbsent(field, newEntry);
+         if (entry == null) entry = newEntry;
+      }
+      entry.onLoad(fieldData, loadTimeNanos, skippedTerms, skippedDocs, budgetMinDocsPerTerm);
+   }
+
+   public void finished(IndexReader reader) {
+      loaded.remove(reader.getCoreCacheKey());
+   }
+
+   /**
+    * @return all field data loaded and not yet released. O(loaded segments * loaded fields).
+    */
+   public List<LoadedFieldData> loadedFieldData() {
+      List<LoadedFieldData> ret = new ArrayList<LoadedFieldData>();
+      for (ConcurrentMap<String, LoadedFieldData> segmentFields : loaded.values()) {
+         ret.addAll(segmentFields.values());
+      }
+      return ret;
+   }
+
+   /**
+    * Removes an entry which is no longer cached.
+    */
+   public void forget(LoadedFieldData loadedFieldData) {
+      ConcurrentMap<String, LoadedFieldData> segmentFields = loaded.get(loadedFieldData.segmentKey);
+      if (segmentFields != null) segmentFields.remove(loadedFieldData.field, loadedFieldData);
+   }
+
+   /**
+    * @return the stats of the field or null if it was never loaded.
+    */
+   public Entry get(String field) {
+      return entries.get(field);
+   }
+}
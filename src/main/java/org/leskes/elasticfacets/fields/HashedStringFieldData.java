@@ -18,10 +18,12 @@ import org.elasticsearch.index.field.data.FieldDataType;
 import org.elasticsearch.search.internal.SearchContext;
 
 import java.io.IOException;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.regex.Matcher;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.regex.Pattern;
 
 /**
@@ -33,40 +35,100 @@ public abstract class HashedStringFieldData extends FieldData<HashedStringDocFie
 
    protected static final ESLogger logger = Loggers.getLogger(HashedStringFieldData.class);
 
+   // sorted hashes by ordinal, null when they are served from a mapped file (see mappedValues)
    protected final int[] values;
+   protected final IntBuffer mappedValues;
+
+   // the last ordinal when terms beyond top_k were folded into it, otherwise 0. Its value is 0 as well.
+   protected final int otherOrdinal;
 
    protected int collisions;
 
    protected HashedStringFieldData(String fieldName, int[] values) {
+      this(fieldName, values, 0);
+   }
+
+   protected HashedStringFieldData(String fieldName, int[] values, int otherOrdinal) {
       super(fieldName);
       this.values = values;
-      if (values.length == 0)
+      this.mappedValues = null;
+      this.otherOrdinal = otherOrdinal;
+      countCollisions(IntBuffer.wrap(values));
+   }
+
+   protected HashedStringFieldData(String fieldName, IntBuffer mappedValues, int otherOrdinal) {
+      super(fieldName);
+      this.values = null;
+      this.mappedValues = mappedValues;
+      this.otherOrdinal = otherOrdinal;
+      countCollisions(mappedValues);
+   }
+
+   private void countCollisions(IntBuffer values) {
+      int length = otherOrdinal > 0 ? otherOrdinal : values.limit();
+      if (length == 0)
          collisions = 0;
       else {
-         int prv = values[0];
-         for (int i = 1; i < values.length; i++) {
-            if (values[i] == prv) collisions++;
-            prv = values[i];
+         int prv = values.get(0);
+         for (int i = 1; i < length; i++) {
+            int value = values.get(i);
+            if (value == prv) collisions++;
+            prv = value;
          }
       }
 
       if (collisions > 0)
-         logger.warn("HashedStringFieldData initialized, but with {} collisions. Total value count: {}", collisions, values.length);
+         logger.warn("HashedStringFieldData initialized, but with {} collisions. Total value count: {}", collisions, length);
    }
 
+   /**
+    * @return the sorted hashes, by ordinal. A copy when they are served from a mapped file, prefer
+    * {@link #valueBuffer()} where that matters.
+    */
    public int[] values() {
-      return values;
+      if (values != null) return values;
+      int[] copy = new int[mappedValues.limit()];
+      mappedValues.duplicate().get(copy);
+      return copy;
+   }
+
+   /**
+    * @return the sorted hashes, by ordinal, without copying them.
+    */
+   public IntBuffer valueBuffer() {
+      return values != null ? IntBuffer.wrap(values) : mappedValues.duplicate();
+   }
+
+   public int valueCount() {
+      return values != null ? values.length : mappedValues.limit();
    }
 
    public int collisions() {
       return collisions;
    }
 
+   /**
+    * @return the ordinal standing for all terms which are not among the top_k terms of the segment, or 0 if every
+    * term has an ordinal of its own. It is always the last ordinal and has no hash, so facets only count it towards
+    * their total.
+    */
+   public int otherOrdinal() {
+      return otherOrdinal;
+   }
+
+   /**
+    * @return the number of distinct terms which have an ordinal of their own.
+    */
+   public int termCount() {
+      return valueCount() - (otherOrdinal > 0 ? 2 : 1); // first value is the "no value" place holder
+   }
 
+
+   // only what is on heap, the page cache holds mapped values
    @Override
    protected long computeSizeInBytes() {
       long size = RamUsage.NUM_BYTES_ARRAY_HEADER;
-      size += values.length * RamUsage.NUM_BYTES_INT;
+      if (values != null) size += values.length * RamUsage.NUM_BYTES_INT;
       return size;
    }
 
@@ -114,212 +176,619 @@ public abstract class HashedStringFieldData extends FieldData<HashedStringDocFie
    }
 
 
-   public static class HashedStringTypeLoader implements MultiSweepFieldDataLoader.TypeLoader<HashedStringFieldData> {
+   /**
+    * The load settings of a field. Immutable, so a single instance serves all loads of the field. The state of a
+    * single load lives in its {@link LoadContext}.
+    */
+   public static class HashedStringTypeLoader {
 
-      private final TIntArrayList hashed_terms = new TIntArrayList();
+      // doc freqs tracked when enforcing max_memory, the cut off never goes higher
+      static final int BUDGET_MAX_DOC_FREQ = 1024;
 
-      private int[] sorted_hashed_terms;
-      private int[] new_location_of_hashed_terms_in_sorted;
+      // unsorted ordinal of terms beyond top_k, right after the "no value" place holder
+      static final int OTHER_TERMS_ORDINAL = 1;
 
       final int max_terms_per_doc;
       final int min_docs_per_term;
-      final Matcher excludeMatcher;
+      final Pattern excludePattern;
+      final ExcludePattern compiledExcludePattern;
       final TIntHashSet excludeTerms;
+      // 0 for no budget
+      final long max_memory;
+      // 0 to give every term an ordinal
+      final int top_k;
 
-      OrdinalLoader ordinalLoader = null;
-      int[] docTermsCounts;
-      boolean multiValued = false;
-      final OpenBitSet skippedTermsCache = new OpenBitSet(1000);
-      int termsSkipped;
-      long stringTermsBytes;
-      int currentTerm;
-      int currentOrdinal; // if terms are rejected, ordinal is not upgraded.
-      boolean initialSweep;
-      String field;
+      final FieldLoadStats loadStats;
 
       public HashedStringTypeLoader(int max_terms_per_doc, int min_docs_per_term, Pattern excludePattern,
                                     TIntHashSet excludeTerms) {
+         this(max_terms_per_doc, min_docs_per_term, excludePattern, excludeTerms, null);
+      }
+
+      public HashedStringTypeLoader(int max_terms_per_doc, int min_docs_per_term, Pattern excludePattern,
+                                    TIntHashSet excludeTerms, FieldLoadStats loadStats) {
+         this(max_terms_per_doc, min_docs_per_term, excludePattern, excludeTerms, 0, 0, loadStats);
+      }
+
+      /**
+       * @param max_memory projected size in bytes of the field data of a segment above which terms of the segment
+       *                   are dropped by raising the min docs per term cut off. 0 for no budget.
+       * @param top_k      number of most frequent terms of a segment which get an ordinal of their own, the others
+       *                   share the segment's other ordinal. 0 for all terms.
+       */
+      public HashedStringTypeLoader(int max_terms_per_doc, int min_docs_per_term, Pattern excludePattern,
+                                    TIntHashSet excludeTerms, long max_memory, int top_k, FieldLoadStats loadStats) {
          super();
+         this.loadStats = loadStats;
+         this.max_memory = max_memory;
+         this.top_k = top_k;
          this.max_terms_per_doc = max_terms_per_doc;
          this.min_docs_per_term = min_docs_per_term;
-         this.excludeMatcher = excludePattern != null? excludePattern.matcher(""): null;
+         this.excludePattern = excludePattern;
+         this.compiledExcludePattern = excludePattern != null ? new ExcludePattern(excludePattern) : null;
          this.excludeTerms = excludeTerms;
-         // the first one indicates null value.
-         hashed_terms.add(0);
-
       }
 
-      @Override
-      public void init(String field, int docCount) {
-         docTermsCounts = new int[docCount];
-         currentTerm = -1;
-         currentOrdinal = 0; // first ordinal is 1
-         termsSkipped=0;
-         initialSweep = true;
-         this.field = field;
+      /**
+       * @return a hash of the settings which affect the loaded field data.
+       */
+      public int settingsHash() {
+         int hash = max_terms_per_doc;
+         hash = 31 * hash + min_docs_per_term;
+         if (excludePattern != null) {
+            hash = 31 * hash + excludePattern.pattern().hashCode();
+            hash = 31 * hash + excludePattern.flags();
+         }
+         if (excludeTerms != null) {
+            int[] terms = excludeTerms.toArray();
+            Arrays.sort(terms);
+            hash = 31 * hash + Arrays.hashCode(terms);
+         }
+         hash = 31 * hash + (int) (max_memory ^ (max_memory >>> 32));
+         hash = 31 * hash + top_k;
+         return hash;
+      }
 
-         logger.debug("Loading field {}, max_terms_per_doc={} min_docs_per_term={},excludeTerms#={}, excludePattern={}",
-                 field, max_terms_per_doc, min_docs_per_term, excludeTerms==null?0:excludeTerms.size(),
-                 excludeMatcher==null?"":excludeMatcher.pattern().pattern());
+      public LoadContext newLoadContext() {
+         return new LoadContext();
+      }
 
+      // terms starting with these are excluded, sweeps skip them as a whole
+      String[] skippedPrefixes() {
+         return compiledExcludePattern != null ? compiledExcludePattern.skippedPrefixes() : null;
       }
 
-      @Override
-      public boolean finalizeSweep() {
-         if (!initialSweep) return false;
-         initialSweep = false;
-         int docsSkipped = 0;
-
-         if (multiValued) {
-            if (max_terms_per_doc > 0) {
-               logger.debug("resetting doc with too many terms");
-               for (int i = 0; i < docTermsCounts.length; i++) {
-                  if (docTermsCounts[i] > max_terms_per_doc) {
-                     docTermsCounts[i] = 0; // reset.
-                     docsSkipped++;
+      public class LoadContext implements MultiSweepFieldDataLoader.ParallelTypeLoader<HashedStringFieldData>,
+              MultiSweepFieldDataLoader.PrefixSkippingSweeper {
+
+         private final TIntArrayList hashed_terms = new TIntArrayList();
+
+         private int[] sorted_hashed_terms;
+         private int[] new_location_of_hashed_terms_in_sorted;
+
+         final ExcludePattern.TermMatcher excludeMatcher =
+                 compiledExcludePattern != null ? compiledExcludePattern.newMatcher() : null;
+
+         OrdinalLoader ordinalLoader = null;
+         MultiValueOrdinalArray ordinalsArray;
+         int[] docTermsCounts;
+         boolean multiValued = false;
+         final OpenBitSet skippedTermsCache = new OpenBitSet(1000);
+         int termsSkipped;
+         int docsSkipped;
+         long stringTermsBytes;
+         int currentTerm;
+         int currentOrdinal; // if terms are rejected, ordinal is not upgraded.
+         boolean initialSweep;
+         String field;
+
+         // raised above min_docs_per_term when the field doesn't fit max_memory
+         int minDocsPerTerm = min_docs_per_term;
+         boolean budgetChecked;
+         // kept terms and their docs by doc freq, the last slot sums up all higher doc freqs. Only with a budget.
+         int[] termsByDocFreq;
+         long[] docsByDocFreq;
+
+         // doc freq of every term of the first sweep, 0 for skipped ones. Only with top_k.
+         TIntArrayList termDocFreqs;
+         // hash of every term of the first sweep, computed to check excludeTerms and reused by the second sweep
+         TIntArrayList termHashes;
+         // terms beyond top_k, sharing OTHER_TERMS_ORDINAL in the second sweep. Null if there are none.
+         OpenBitSet foldedTerms;
+         int termsFolded;
+         int termOrdinal; // ordinal of the docs of the current term
+
+         // doc term counts of all ranges of a parallel initial sweep, copied to docTermsCounts once it is done
+         AtomicIntegerArray rangeDocTermsCounts;
+         // index of the first term of every range but the first, set by a parallel initial sweep
+         int[] rangeFirstTerms;
+
+         // set when the caller records the load itself, e.g. for a copy of the loaded field data
+         boolean loadRecordedByCaller;
+
+         LoadContext() {
+            // the first one indicates null value.
+            hashed_terms.add(0);
+         }
+
+         @Override
+         public void init(String field, int docCount) {
+            docTermsCounts = new int[docCount];
+            currentTerm = -1;
+            currentOrdinal = 0; // first ordinal is 1
+            termsSkipped=0;
+            docsSkipped=0;
+            initialSweep = true;
+            this.field = field;
+            if (max_memory > 0) {
+               termsByDocFreq = new int[BUDGET_MAX_DOC_FREQ + 1];
+               docsByDocFreq = new long[BUDGET_MAX_DOC_FREQ + 1];
+            }
+            if (top_k > 0) termDocFreqs = new TIntArrayList();
+            if (excludeTerms != null) termHashes = new TIntArrayList();
+
+            logger.debug("Loading field {}, max_terms_per_doc={} min_docs_per_term={},excludeTerms#={}, excludePattern={}",
+                    field, max_terms_per_doc, min_docs_per_term, excludeTerms==null?0:excludeTerms.size(),
+                    excludePattern==null?"":excludePattern.pattern());
+
+         }
+
+         @Override
+         public boolean finalizeSweep() {
+            if (!initialSweep) return false;
+
+            if (max_memory > 0 && !budgetChecked) {
+               budgetChecked = true;
+               int cutOff = minDocsPerTermForBudget();
+               if (cutOff > minDocsPerTerm) {
+                  logger.info("Field {} doesn't fit max_memory of {} bytes, loading terms of at least {} docs",
+                          field, max_memory, cutOff);
+                  minDocsPerTerm = cutOff;
+                  // count again, with the new cut off
+                  Arrays.fill(docTermsCounts, 0);
+                  skippedTermsCache.clear(0, skippedTermsCache.size());
+                  multiValued = false;
+                  termsSkipped = 0;
+                  stringTermsBytes = 0;
+                  currentTerm = -1;
+                  if (termDocFreqs != null) termDocFreqs.resetQuick();
+                  if (termHashes != null) termHashes.resetQuick();
+                  return true;
+               }
+            }
+            termsByDocFreq = null;
+            docsByDocFreq = null;
+
+            if (termDocFreqs != null) {
+               foldTermsBeyondTopK();
+               termDocFreqs = null;
+            }
+
+            initialSweep = false;
+
+            if (multiValued) {
+               if (max_terms_per_doc > 0) {
+                  logger.debug("resetting doc with too many terms");
+                  for (int i = 0; i < docTermsCounts.length; i++) {
+                     if (docTermsCounts[i] > max_terms_per_doc) {
+                        docTermsCounts[i] = 0; // reset.
+                        docsSkipped++;
+                     }
                   }
+
                }
+               ordinalsArray = new MultiValueOrdinalArray(docTermsCounts);
+               // the ranges of a parallel sweep add ordinals to the same docs
+               ordinalLoader = rangeFirstTerms != null ?
+                       ordinalsArray.createConcurrentLoader() : ordinalsArray.createLoader();
+            }
+            else {
+               ordinalLoader = new SingleValueOrdinalLoader(docTermsCounts.length);
+            }
+
+            logger.debug("Field {} initial scan done. {} terms (original byte size {}, {} terms skipped, {} folded). {} docs ({} skipped) Proclaimed {}.",
+                    field, currentTerm+1, stringTermsBytes, termsSkipped, termsFolded, docTermsCounts.length, docsSkipped,
+                    multiValued ? "multi_valued" : "single_valued");
 
+            currentTerm = -1;
+            currentOrdinal = firstOrdinal();
+
+            return true;
+         }
+
+         /**
+          * @return the lowest min docs per term cut off for which the projected field data fits max_memory. Terms
+          * with higher doc freqs than tracked are never dropped.
+          */
+         int minDocsPerTermForBudget() {
+            long terms = 0;
+            long ordinals = 0;
+            for (int docFreq = 0; docFreq < termsByDocFreq.length; docFreq++) {
+               terms += termsByDocFreq[docFreq];
+               ordinals += docsByDocFreq[docFreq];
             }
-            MultiValueOrdinalArray ordinalsArray = new MultiValueOrdinalArray(docTermsCounts);
-            ordinalLoader = ordinalsArray.createLoader();
+            int maxDoc = docTermsCounts.length;
+            int cutOff = minDocsPerTerm;
+            for (int docFreq = 0; docFreq < BUDGET_MAX_DOC_FREQ; docFreq++) {
+               if (projectedBytes(terms, ordinals, maxDoc) <= max_memory) return cutOff;
+               // dropping the terms of this doc freq
+               terms -= termsByDocFreq[docFreq];
+               ordinals -= docsByDocFreq[docFreq];
+               cutOff = Math.max(cutOff, docFreq + 1);
+            }
+            logger.warn("Field {} doesn't fit max_memory of {} bytes even when only loading terms of at least {} docs",
+                    field, max_memory, cutOff);
+            return cutOff;
          }
-         else {
-            ordinalLoader = new SingleValueOrdinalLoader(docTermsCounts.length);
+
+         /**
+          * Marks the kept terms which are not among the top_k most frequent ones, ties broken by term order. Their
+          * docs get the other ordinal, which is reserved right after the "no value" place holder.
+          */
+         void foldTermsBeyondTopK() {
+            int kept = termDocFreqs.size() - termsSkipped;
+            if (kept <= top_k) return;
+            int[] docFreqs = new int[kept];
+            int i = 0;
+            for (int term = 0; term < termDocFreqs.size(); term++) {
+               if (!skippedTermsCache.get(term)) docFreqs[i++] = termDocFreqs.get(term);
+            }
+            Arrays.sort(docFreqs);
+            int threshold = docFreqs[kept - top_k];
+            int tiesKept = 0;
+            for (i = kept - top_k; i < kept && docFreqs[i] == threshold; i++) tiesKept++;
+
+            foldedTerms = new OpenBitSet(termDocFreqs.size());
+            for (int term = 0; term < termDocFreqs.size(); term++) {
+               if (skippedTermsCache.get(term)) continue;
+               int docFreq = termDocFreqs.get(term);
+               if (docFreq > threshold) continue;
+               if (docFreq == threshold && tiesKept > 0) {
+                  tiesKept--;
+                  continue;
+               }
+               foldedTerms.fastSet(term);
+               termsFolded++;
+            }
+            hashed_terms.add(0); // OTHER_TERMS_ORDINAL, moved last once sorted
+            logger.debug("Field {} keeps the top {} of {} terms, down to {} docs per term", field, top_k, kept,
+                    threshold);
          }
 
-         logger.debug("Field {} initial scan done. {} terms (original byte size {}, {} terms skipped). {} docs ({} skipped) Proclaimed {}.",
-                 field, currentTerm+1, stringTermsBytes, termsSkipped, docTermsCounts.length, docsSkipped,
-                 multiValued ? "multi_valued" : "single_valued");
+         // ordinal before the first term of the second sweep
+         int firstOrdinal() {
+            return foldedTerms != null ? OTHER_TERMS_ORDINAL : 0;
+         }
 
-         currentTerm = -1;
-         currentOrdinal = 0;
+         // sorted hashes and ordinals, as laid out by MultiValueOrdinalArray when multi valued
+         private long projectedBytes(long terms, long ordinals, int maxDoc) {
+            if (top_k > 0) terms = Math.min(terms, top_k + 1);
+            long bytes = (terms + 1) * RamUsage.NUM_BYTES_INT + (long) maxDoc * RamUsage.NUM_BYTES_INT;
+            if (multiValued) bytes += ordinals * RamUsage.NUM_BYTES_INT;
+            return bytes;
+         }
 
-         return true;
-      }
+         @Override
+         public String[] skippedPrefixes() {
+            return HashedStringTypeLoader.this.skippedPrefixes();
+         }
 
-      private boolean shouldSkipTerm(String term, int termDocCount) {
-         if  (min_docs_per_term > 0 && termDocCount < min_docs_per_term) return true;
-         if (excludeTerms != null && excludeTerms.contains(HashedStringFieldType.hashCode(term))) {
-            return true;
+         // the hash is only needed to check excludeTerms, and only computed when it is checked
+         private int excludeHash(String term, int termDocCount) {
+            return excludeTerms != null && termDocCount >= minDocsPerTerm ? HashedStringFieldType.hashCode(term) : 0;
          }
-         if (excludeMatcher != null)  {
-            excludeMatcher.reset(term);
-            if (excludeMatcher.matches()) return true;
+
+         private boolean shouldSkipTerm(String term, int termDocCount, int hash,
+                                        ExcludePattern.TermMatcher excludeMatcher) {
+            if  (minDocsPerTerm > 0 && termDocCount < minDocsPerTerm) return true;
+            if (excludeTerms != null && excludeTerms.contains(hash)) {
+               return true;
+            }
+            return excludeMatcher != null && excludeMatcher.matches(term);
          }
-         return false;
-      }
 
-      public MultiSweepFieldDataLoader.TERM_STATE collectTerm(String term, int termDocCount) {
-         currentTerm++;
-         if (initialSweep) {
-             stringTermsBytes += term.length()*2+40;
-            // only check skipping and cache it for the next round.
-            boolean skip = shouldSkipTerm(term, termDocCount);
-            if (skip) {
-               termsSkipped++;
-               skippedTermsCache.set(currentTerm);
+         public MultiSweepFieldDataLoader.TERM_STATE collectTerm(String term, int termDocCount) {
+            currentTerm++;
+            if (initialSweep) {
+                stringTermsBytes += term.length()*2+40;
+               // only check skipping and cache it for the next round.
+               int hash = excludeHash(term, termDocCount);
+               if (termHashes != null) termHashes.add(hash);
+               boolean skip = shouldSkipTerm(term, termDocCount, hash, excludeMatcher);
+               if (skip) {
+                  termsSkipped++;
+                  skippedTermsCache.set(currentTerm);
+                  if (termDocFreqs != null) termDocFreqs.add(0);
+                  return MultiSweepFieldDataLoader.TERM_STATE.SKIP;
+               }
+               if (termDocFreqs != null) termDocFreqs.add(termDocCount);
+               if (termsByDocFreq != null) {
+                  int slot = Math.min(termDocCount, BUDGET_MAX_DOC_FREQ);
+                  termsByDocFreq[slot]++;
+                  docsByDocFreq[slot] += termDocCount;
+               }
+               return MultiSweepFieldDataLoader.TERM_STATE.PROCESS;
+            }
+            // second sweep
+            if (skippedTermsCache.get(currentTerm))
                return MultiSweepFieldDataLoader.TERM_STATE.SKIP;
+            if (foldedTerms != null && foldedTerms.get(currentTerm)) {
+               termOrdinal = OTHER_TERMS_ORDINAL;
+               return MultiSweepFieldDataLoader.TERM_STATE.PROCESS;
             }
+
+            hashed_terms.add(termHashes != null ? termHashes.get(currentTerm) : HashedStringFieldType.hashCode(term));
+            termOrdinal = ++currentOrdinal;
             return MultiSweepFieldDataLoader.TERM_STATE.PROCESS;
          }
-         // second sweep
-         if (skippedTermsCache.get(currentTerm))
-            return MultiSweepFieldDataLoader.TERM_STATE.SKIP;
 
-         hashed_terms.add(HashedStringFieldType.hashCode(term));
-         currentOrdinal++;
-         return MultiSweepFieldDataLoader.TERM_STATE.PROCESS;
-      }
+         @Override
+         public void addTermDoc(int doc) {
+            if (initialSweep) {
+               if (rangeDocTermsCounts != null) rangeDocTermsCounts.incrementAndGet(doc);
+               else if (++docTermsCounts[doc] > 1) multiValued = true;
+            } else {
+               if (docTermsCounts[doc] >0) // 0 marks skipping
+                  ordinalLoader.addDocOrdinal(doc, termOrdinal);
+            }
+         }
 
-      @Override
-      public void addTermDoc(int doc) {
-         if (initialSweep) {
-            if (++docTermsCounts[doc] > 1) multiValued = true;
-         } else {
-            if (docTermsCounts[doc] >0) // 0 marks skipping
-               ordinalLoader.addDocOrdinal(doc, currentOrdinal);
+         @Override
+         public List<MultiSweepFieldDataLoader.TermDocsSweeper> newRangeSweepers(int count) {
+            List<MultiSweepFieldDataLoader.TermDocsSweeper> sweepers =
+                    new ArrayList<MultiSweepFieldDataLoader.TermDocsSweeper>(count);
+            if (initialSweep) {
+               rangeDocTermsCounts = new AtomicIntegerArray(docTermsCounts.length);
+               for (int range = 0; range < count; range++) sweepers.add(new RangeSweeper(-1, -1));
+               return sweepers;
+            }
+            // every range starts with the ordinal after the ones of the terms before it
+            int term = 0;
+            int ordinal = firstOrdinal();
+            for (int range = 0; range < count; range++) {
+               for (; term < rangeFirstTerms[range]; term++) {
+                  if (!skippedTermsCache.get(term) && (foldedTerms == null || !foldedTerms.get(term))) ordinal++;
+               }
+               sweepers.add(new RangeSweeper(rangeFirstTerms[range], ordinal));
+            }
+            return sweepers;
          }
-      }
 
-      @Override
-      public HashedStringFieldData buildFieldData() {
-         if (multiValued) {
-            MultiValueOrdinalArray array = ((MultiValueOrdinalArray.MultiValueOrdinalLoader) ordinalLoader).getArray();
-            return buildMultiValue(array);
-         } else {
-            int[] array = ((SingleValueOrdinalLoader) ordinalLoader).getOrdinals();
-            return buildSingleValue(array);
+         @Override
+         public void rangeSweepsDone(List<MultiSweepFieldDataLoader.TermDocsSweeper> sweepers) {
+            if (!initialSweep) {
+               // the context added the hashes of the first range
+               for (MultiSweepFieldDataLoader.TermDocsSweeper sweeper : sweepers) {
+                  RangeSweeper range = (RangeSweeper) sweeper;
+                  hashed_terms.addAll(range.hashedTerms);
+                  currentOrdinal = range.currentOrdinal;
+               }
+               if (multiValued) ((MultiValueOrdinalArray.ConcurrentMultiValueOrdinalLoader) ordinalLoader).finish();
+               return;
+            }
+
+            // append the terms of every range to the ones of the first
+            rangeFirstTerms = new int[sweepers.size()];
+            for (int i = 0; i < sweepers.size(); i++) {
+               RangeSweeper range = (RangeSweeper) sweepers.get(i);
+               int firstTerm = currentTerm + 1;
+               rangeFirstTerms[i] = firstTerm;
+               for (int term = 0; term <= range.currentTerm; term++) {
+                  if (range.skippedTerms.get(term)) skippedTermsCache.set(firstTerm + term);
+               }
+               termsSkipped += range.termsSkipped;
+               stringTermsBytes += range.stringTermsBytes;
+               if (termHashes != null) termHashes.addAll(range.termHashes);
+               if (termDocFreqs != null) termDocFreqs.addAll(range.termDocFreqs);
+               if (termsByDocFreq != null) {
+                  for (int slot = 0; slot < termsByDocFreq.length; slot++) {
+                     termsByDocFreq[slot] += range.termsByDocFreq[slot];
+                     docsByDocFreq[slot] += range.docsByDocFreq[slot];
+                  }
+               }
+               currentTerm += range.currentTerm + 1;
+            }
+            for (int doc = 0; doc < docTermsCounts.length; doc++) {
+               docTermsCounts[doc] = rangeDocTermsCounts.get(doc);
+               if (docTermsCounts[doc] > 1) multiValued = true;
+            }
+            rangeDocTermsCounts = null;
          }
-      }
 
-      protected void sort_values() {
-         // as we hashed the values they are not sorted. They need to be for proper working of the rest.
-         Integer[] translation_indices = new Integer[hashed_terms.size() - 1]; // drop the first "non value place"
-         for (int i = 0; i < translation_indices.length; i++)
-            translation_indices[i] = i + 1; // one offset for the dropped place
-         Arrays.sort(translation_indices, new Comparator<Integer>() {
+         /**
+          * Sweeps a term range other than the first, concurrently with the context which sweeps the first. The term
+          * level state of the initial sweep is kept per range and appended to the context's by
+          * {@link #rangeSweepsDone}, the second sweep reads it by the range's first term. Doc term counts are shared
+          * by all ranges.
+          */
+         class RangeSweeper implements MultiSweepFieldDataLoader.PrefixSkippingSweeper {
+            final ExcludePattern.TermMatcher excludeMatcher =
+                    compiledExcludePattern != null ? compiledExcludePattern.newMatcher() : null;
+            // index of the range's first term among all terms, second sweep only
+            final int firstTerm;
+            int currentTerm = -1;
+            int currentOrdinal;
+            int termOrdinal;
+
+            // initial sweep
+            final OpenBitSet skippedTerms = new OpenBitSet(64);
+            int termsSkipped;
+            long stringTermsBytes;
+            final TIntArrayList termHashes = LoadContext.this.termHashes != null ? new TIntArrayList() : null;
+            final TIntArrayList termDocFreqs = LoadContext.this.termDocFreqs != null ? new TIntArrayList() : null;
+            final int[] termsByDocFreq =
+                    LoadContext.this.termsByDocFreq != null ? new int[BUDGET_MAX_DOC_FREQ + 1] : null;
+            final long[] docsByDocFreq =
+                    LoadContext.this.termsByDocFreq != null ? new long[BUDGET_MAX_DOC_FREQ + 1] : null;
+
+            // second sweep, hashes of the terms getting an ordinal of their own, in ordinal order
+            final TIntArrayList hashedTerms = new TIntArrayList();
+
+            RangeSweeper(int firstTerm, int firstOrdinal) {
+               this.firstTerm = firstTerm;
+               this.currentOrdinal = firstOrdinal;
+            }
 
-            public int compare(Integer paramT1, Integer paramT2) {
-               int d1 = hashed_terms.get(paramT1);
-               int d2 = hashed_terms.get(paramT2);
-               return d1 < d2 ? -1 : (d1 == d2 ? 0 : 1);
+            @Override
+            public MultiSweepFieldDataLoader.TERM_STATE collectTerm(String term, int termDocCount) {
+               currentTerm++;
+               if (initialSweep) {
+                  stringTermsBytes += term.length() * 2 + 40;
+                  int hash = excludeHash(term, termDocCount);
+                  if (termHashes != null) termHashes.add(hash);
+                  if (shouldSkipTerm(term, termDocCount, hash, excludeMatcher)) {
+                     termsSkipped++;
+                     skippedTerms.set(currentTerm);
+                     if (termDocFreqs != null) termDocFreqs.add(0);
+                     return MultiSweepFieldDataLoader.TERM_STATE.SKIP;
+                  }
+                  if (termDocFreqs != null) termDocFreqs.add(termDocCount);
+                  if (termsByDocFreq != null) {
+                     int slot = Math.min(termDocCount, BUDGET_MAX_DOC_FREQ);
+                     termsByDocFreq[slot]++;
+                     docsByDocFreq[slot] += termDocCount;
+                  }
+                  return MultiSweepFieldDataLoader.TERM_STATE.PROCESS;
+               }
+               int globalTerm = firstTerm + currentTerm;
+               if (skippedTermsCache.get(globalTerm))
+                  return MultiSweepFieldDataLoader.TERM_STATE.SKIP;
+               if (foldedTerms != null && foldedTerms.get(globalTerm)) {
+                  termOrdinal = OTHER_TERMS_ORDINAL;
+                  return MultiSweepFieldDataLoader.TERM_STATE.PROCESS;
+               }
+               hashedTerms.add(LoadContext.this.termHashes != null ?
+                       LoadContext.this.termHashes.get(globalTerm) : HashedStringFieldType.hashCode(term));
+               termOrdinal = ++currentOrdinal;
+               return MultiSweepFieldDataLoader.TERM_STATE.PROCESS;
+            }
+
+            @Override
+            public String[] skippedPrefixes() {
+               return HashedStringTypeLoader.this.skippedPrefixes();
+            }
+
+            @Override
+            public void addTermDoc(int doc) {
+               if (initialSweep) {
+                  rangeDocTermsCounts.incrementAndGet(doc);
+               } else {
+                  if (docTermsCounts[doc] > 0) // 0 marks skipping
+                     ordinalLoader.addDocOrdinal(doc, termOrdinal);
+               }
+            }
+         }
+
+         @Override
+         public HashedStringFieldData buildFieldData() {
+            if (multiValued) {
+               return buildMultiValue(ordinalsArray);
+            } else {
+               int[] array = ((SingleValueOrdinalLoader) ordinalLoader).getOrdinals();
+               return buildSingleValue(array);
             }
          }
-         );
 
+         /**
+          * Leaves recording the load in the load stats to the caller, see {@link #recordLoad}.
+          */
+         public void recordLoadByCaller() {
+            loadRecordedByCaller = true;
+         }
 
-         // now build a sorted array and update the ordinal values (added the n value in the beginning)
-         sorted_hashed_terms = new int[hashed_terms.size()];
+         @Override
+         public void loadCompleted(IndexReader reader, HashedStringFieldData fieldData, long loadTimeNanos) {
+            if (!loadRecordedByCaller) recordLoad(reader, fieldData, loadTimeNanos);
+         }
 
-         new_location_of_hashed_terms_in_sorted = new int[hashed_terms.size()];
-         for (int i = 1; i <= translation_indices.length; i++) {
-            sorted_hashed_terms[i] = hashed_terms.get(translation_indices[i - 1]);
-            new_location_of_hashed_terms_in_sorted[translation_indices[i - 1]] = i;
+         /**
+          * Records the completed load in the load stats, with the field data instance which is actually cached.
+          */
+         public void recordLoad(IndexReader reader, HashedStringFieldData fieldData, long loadTimeNanos) {
+            if (loadStats != null) {
+               loadStats.onLoad(reader, field, fieldData, loadTimeNanos, termsSkipped, docsSkipped,
+                       minDocsPerTerm > min_docs_per_term ? minDocsPerTerm : 0);
+            }
          }
 
+         protected void sort_values() {
+            // as we hashed the values they are not sorted. They need to be for proper working of the rest.
+            // drop the first "non value place" and the other ordinal, if any
+            int firstTerm = firstOrdinal() + 1;
+            Integer[] translation_indices = new Integer[hashed_terms.size() - firstTerm];
+            for (int i = 0; i < translation_indices.length; i++)
+               translation_indices[i] = i + firstTerm; // offset for the dropped places
+            Arrays.sort(translation_indices, new Comparator<Integer>() {
+
+               public int compare(Integer paramT1, Integer paramT2) {
+                  int d1 = hashed_terms.get(paramT1);
+                  int d2 = hashed_terms.get(paramT2);
+                  return d1 < d2 ? -1 : (d1 == d2 ? 0 : 1);
+               }
+            }
+            );
 
-      }
 
-      protected void updateOrdinalArray(int[] ordinals) {
-         for (int i = 0; i < ordinals.length; i++)
-            ordinals[i] = new_location_of_hashed_terms_in_sorted[ordinals[i]];
-      }
+            // now build a sorted array and update the ordinal values (added the n value in the beginning)
+            sorted_hashed_terms = new int[hashed_terms.size()];
 
+            new_location_of_hashed_terms_in_sorted = new int[hashed_terms.size()];
+            for (int i = 1; i <= translation_indices.length; i++) {
+               sorted_hashed_terms[i] = hashed_terms.get(translation_indices[i - 1]);
+               new_location_of_hashed_terms_in_sorted[translation_indices[i - 1]] = i;
+            }
+            if (foldedTerms != null) {
+               // the other ordinal goes last, so the hashes before it stay sorted
+               new_location_of_hashed_terms_in_sorted[OTHER_TERMS_ORDINAL] = sortedOtherOrdinal();
+            }
 
-      public HashedStringFieldData buildSingleValue(int[] ordinals) {
+         }
 
-         sort_values();
+         private int sortedOtherOrdinal() {
+            return foldedTerms != null ? hashed_terms.size() - 1 : 0;
+         }
 
-         updateOrdinalArray(ordinals);
+         protected void updateOrdinalArray(int[] ordinals) {
+            for (int i = 0; i < ordinals.length; i++)
+               ordinals[i] = new_location_of_hashed_terms_in_sorted[ordinals[i]];
+         }
 
-         return new SingleValueHashedStringFieldData(field, sorted_hashed_terms, ordinals);
-      }
 
+         public HashedStringFieldData buildSingleValue(int[] ordinals) {
 
-      public HashedStringFieldData buildMultiValue(MultiValueOrdinalArray ordinalsArray) {
-         sort_values();
+            sort_values();
 
-         // we need to do translation, count again...
+            updateOrdinalArray(ordinals);
 
-         int[] docOrdinalCount = new int[ordinalsArray.maxDoc()];
-         for (int docId = 0; docId < docOrdinalCount.length; docId++) {
-            MultiValueOrdinalArray.OrdinalIterator ordIterator = ordinalsArray.getOrdinalIteratorForDoc(docId);
-            while (ordIterator.getNextOrdinal() != 0) docOrdinalCount[docId]++;
+            return new SingleValueHashedStringFieldData(field, sorted_hashed_terms, ordinals, sortedOtherOrdinal());
          }
 
-         MultiValueOrdinalArray translatedOrdinals = new MultiValueOrdinalArray(docOrdinalCount);
-         MultiValueOrdinalArray.MultiValueOrdinalLoader ordLoader = translatedOrdinals.createLoader();
-         for (int docId = 0; docId < docOrdinalCount.length; docId++) {
-            MultiValueOrdinalArray.OrdinalIterator ordIterator = ordinalsArray.getOrdinalIteratorForDoc(docId);
-            int o = ordIterator.getNextOrdinal();
-            while (o != 0) {
-               ordLoader.addDocOrdinal(docId, new_location_of_hashed_terms_in_sorted[o]);
-               o = ordIterator.getNextOrdinal();
+
+         public HashedStringFieldData buildMultiValue(MultiValueOrdinalArray ordinalsArray) {
+            sort_values();
+
+            // we need to do translation, count again...
+
+            int[] docOrdinalCount = new int[ordinalsArray.maxDoc()];
+            for (int docId = 0; docId < docOrdinalCount.length; docId++) {
+               MultiValueOrdinalArray.OrdinalIterator ordIterator = ordinalsArray.getOrdinalIteratorForDoc(docId);
+               while (ordIterator.getNextOrdinal() != 0) docOrdinalCount[docId]++;
             }
-         }
 
-         return new MultiValueHashedStringFieldData(field, sorted_hashed_terms, translatedOrdinals);
+            MultiValueOrdinalArray translatedOrdinals = new MultiValueOrdinalArray(docOrdinalCount);
+            MultiValueOrdinalArray.MultiValueOrdinalLoader ordLoader = translatedOrdinals.createLoader();
+            for (int docId = 0; docId < docOrdinalCount.length; docId++) {
+               MultiValueOrdinalArray.OrdinalIterator ordIterator = ordinalsArray.getOrdinalIteratorForDoc(docId);
+               int o = ordIterator.getNextOrdinal();
+               while (o != 0) {
+                  ordLoader.addDocOrdinal(docId, new_location_of_hashed_terms_in_sorted[o]);
+                  o = ordIterator.getNextOrdinal();
+               }
+            }
+
+            return new MultiValueHashedStringFieldData(field, sorted_hashed_terms, translatedOrdinals,
+                    sortedOtherOrdinal());
+         }
       }
    }
 
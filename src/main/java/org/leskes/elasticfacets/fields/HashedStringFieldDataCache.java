@@ -0,0 +1,115 @@
+package org.leskes.elasticfacets.fields;
+
+import org.apache.lucene.index.IndexReader;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.index.cache.field.data.FieldDataCache;
+import org.leskes.elasticfacets.cache.FieldDataCachePeek;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Loads hashed field data into the field data cache, at most once at a time per segment and field. Concurrent
+ * requests for a segment being loaded wait for that load instead of starting their own.
+ * <p/>
+ * The load itself runs outside of the field data cache, which would otherwise hold its per segment lock for the
+ * whole load and block loads of other fields of the same segment. The result is then put in the cache.
+ */
+public class HashedStringFieldDataCache {
+
+   private static class LoadKey {
+      final Object segmentKey;
+      final String field;
+
+      LoadKey(Object segmentKey, String field) {
+         this.segmentKey = segmentKey;
+         this.field = field;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof LoadKey)) return false;
+         LoadKey other = (LoadKey) o;
+         return segmentKey == other.segmentKey && field.equals(other.field);
+      }
+
+      @Override
+      public int hashCode() {
+         return 31 * System.identityHashCode(segmentKey) + field.hashCode();
+      }
+   }
+
+   /**
+    * Hands already loaded field data to the field data cache.
+    */
+   private static class LoadedFieldDataType extends HashedStringFieldType {
+      private final HashedStringFieldData fieldData;
+
+      LoadedFieldDataType(HashedStringFieldData fieldData) {
+         super(null);
+         this.fieldData = fieldData;
+      }
+
+      @Override
+      public HashedStringFieldData load(IndexReader reader, String fieldName) throws IOException {
+         return fieldData;
+      }
+   }
+
+   private final ConcurrentMap<LoadKey, FutureTask<HashedStringFieldData>> loading = ConcurrentCollections.newConcurrentMap();
+
+   /**
+    * @return the cached field data of the segment, loading it with the given type if needed.
+    */
+   public HashedStringFieldData cache(FieldDataCache fieldDataCache, final HashedStringFieldType type,
+                                      final IndexReader reader, final String field) throws IOException {
+      HashedStringFieldData fieldData = (HashedStringFieldData) FieldDataCachePeek.peek(fieldDataCache, reader, field);
+      if (fieldData != null) return fieldData;
+
+      LoadKey key = new LoadKey(reader.getCoreCacheKey(), field);
+      FutureTask<HashedStringFieldData> load = new FutureTask<HashedStringFieldData>(new Callable<HashedStringFieldData>() {
+         public HashedStringFieldData call() throws Exception {
+            return type.load(reader, field);
+         }
+      });
+      FutureTask<HashedStringFieldData> running = loading.putIfAbsent(key, load);
+      if (running != null) {
+         // somebody else is loading it, wait for the result
+         return (HashedStringFieldData) fieldDataCache.cache(new LoadedFieldDataType(get(running, field)), reader, field);
+      }
+      try {
+         load.run();
+         // still registered while publishing, so late comers either wait on us or find it cached
+         return (HashedStringFieldData) fieldDataCache.cache(new LoadedFieldDataType(get(load, field)), reader, field);
+      } finally {
+         loading.remove(key, load);
+      }
+   }
+
+   /**
+    * @return whether the field data of the segment is cached or being loaded, without loading it.
+    */
+   public boolean isCachedOrLoading(FieldDataCache fieldDataCache, IndexReader reader, String field) throws IOException {
+      return loading.containsKey(new LoadKey(reader.getCoreCacheKey(), field))
+              || FieldDataCachePeek.peek(fieldDataCache, reader, field) != null;
+   }
+
+   private static HashedStringFieldData get(FutureTask<HashedStringFieldData> load, String field) throws IOException {
+      try {
+         return load.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new ElasticSearchException("Interrupted while waiting for field data of field [" + field + "] to load", e);
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof IOException) throw (IOException) cause;
+         if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+         if (cause instanceof Error) throw (Error) cause;
+         throw new ElasticSearchException("Failed to load field data of field [" + field + "]", cause);
+      }
+   }
+}
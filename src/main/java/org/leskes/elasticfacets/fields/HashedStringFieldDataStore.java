@@ -0,0 +1,299 @@
+package org.leskes.elasticfacets.fields;
+
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.common.logging.ESLogger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Keeps the hashed field data of a shard's segments on disk, in the node's data directory of the shard, so a restarted
+ * node doesn't need to sweep the terms again. The files are node local: recovering a shard onto another node doesn't
+ * copy them, that node loads and writes its own. Segments are immutable, so a file stays valid as long as its segment
+ * exists. Files are named after the segment, the field and a hash of the field's load settings. Files of
+ * segments which were merged away, or written with other settings, are deleted whenever a new file is written.
+ * <p/>
+ * Segment names are only unique within a copy of a shard: a replica, or a primary which was recovered from one, names
+ * the segments it writes itself independently. A node may still hold files of an earlier copy of the shard, e.g.
+ * when a copy is recovered again into a shard directory the node kept. Files therefore also record the names and lengths of the segment's
+ * index files, and are dropped when read for a segment which doesn't match.
+ * <p/>
+ * Field data is either copied to the heap when read or served from the mapped file (see
+ * {@link MappedSingleValueHashedStringFieldData}). Every array of the file is mapped on its own, so files are not
+ * limited to 2GB.
+ * <p/>
+ * Like the field data cache, a file may hold values of documents which were deleted after it was written.
+ */
+public class HashedStringFieldDataStore {
+
+   static final String SUFFIX = ".hsf";
+   private static final String TMP_SUFFIX = ".tmp";
+
+   private static final int MAGIC = 0x48534644; // HSFD
+   private static final int VERSION = 3; // 2 added the other ordinal, 3 the segment identity
+   private static final int END = 0x454E4421;
+
+   private final File dir;
+   private final ESLogger logger;
+
+   public HashedStringFieldDataStore(File dir, ESLogger logger) {
+      this.dir = dir;
+      this.logger = logger;
+   }
+
+   /**
+    * @param mapped whether to serve the field data from the mapped file rather than copying it to the heap.
+    * @return the stored field data of the segment, or null if there is none. Corrupted files are deleted.
+    */
+   public HashedStringFieldData read(SegmentReader reader, String field, int settingsHash, boolean mapped) {
+      File file = new File(dir, fileName(reader.getSegmentName(), field, settingsHash));
+      if (!file.exists()) return null;
+      try {
+         RandomAccessFile raf = new RandomAccessFile(file, "r");
+         try {
+            // mappings stay valid once the channel is closed
+            return decode(new MappedReader(raf.getChannel()), field, reader.maxDoc(), segmentIdentity(reader), mapped);
+         } finally {
+            raf.close();
+         }
+      } catch (SegmentMismatchException e) {
+         logger.debug("stored hashed field data [{}] is of another segment with the same name, deleting it", file);
+         if (!file.delete()) logger.debug("failed to delete [{}]", file);
+         return null;
+      } catch (Exception e) {
+         logger.warn("failed to read stored hashed field data from [{}], deleting it", e, file);
+         if (!file.delete()) logger.debug("failed to delete [{}]", file);
+         return null;
+      }
+   }
+
+   /**
+    * Stores the field data of the segment. Failures are logged and otherwise ignored, the field data is simply loaded
+    * again next time.
+    */
+   public void write(SegmentReader reader, String field, int settingsHash, HashedStringFieldData fieldData) {
+      String segment = reader.getSegmentName();
+      String name = fileName(segment, field, settingsHash);
+      File file = new File(dir, name);
+      File tmp = new File(dir, name + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+      try {
+         if (!dir.exists() && !dir.mkdirs() && !dir.exists()) throw new IOException("failed to create " + dir);
+         RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+         try {
+            raf.setLength(0);
+            encode(raf.getChannel(), fieldData, reader.maxDoc(), segmentIdentity(reader));
+         } finally {
+            raf.close();
+         }
+         // readers never see partially written files
+         if (!tmp.renameTo(file)) throw new IOException("failed to rename " + tmp + " to " + file);
+      } catch (IOException e) {
+         logger.warn("failed to store hashed field data of field [{}] of segment [{}]", e, field, segment);
+         tmp.delete();
+         return;
+      }
+      deleteStale(reader.directory(), segment, fieldPart(field), name);
+   }
+
+   static String fileName(String segment, String field, int settingsHash) {
+      return segment + "." + fieldPart(field) + "." + Integer.toHexString(settingsHash) + SUFFIX;
+   }
+
+   // field names may hold any character, keep the file name safe and tell apart fields which sanitize the same
+   private static String fieldPart(String field) {
+      return field.replaceAll("[^A-Za-z0-9_]", "_") + "-" + Integer.toHexString(field.hashCode());
+   }
+
+   private void deleteStale(Directory directory, String segment, String fieldPart, String current) {
+      String[] names = dir.list();
+      if (names == null) return;
+      String sameField = segment + "." + fieldPart + ".";
+      for (String name : names) {
+         if (name.equals(current) || !(name.endsWith(SUFFIX) || name.endsWith(TMP_SUFFIX))) continue;
+         String fileSegment = name.substring(0, name.indexOf('.'));
+         boolean stale;
+         if (fileSegment.equals(segment)) {
+            stale = name.startsWith(sameField) && name.endsWith(SUFFIX); // written with other settings
+         } else {
+            stale = !segmentExists(directory, fileSegment);
+         }
+         if (stale) {
+            logger.trace("deleting stale hashed field data file [{}]", name);
+            if (!new File(dir, name).delete()) logger.debug("failed to delete [{}]", name);
+         }
+      }
+   }
+
+   /**
+    * @return a checksum of the names and lengths of the segment's index files, which tells apart segments of the same
+    * name written by different copies of a shard. Files of later deletes and norms updates are not included.
+    */
+   static long segmentIdentity(SegmentReader reader) throws IOException {
+      Directory directory = reader.directory();
+      String prefix = reader.getSegmentName() + ".";
+      String[] files = directory.listAll();
+      Arrays.sort(files);
+      long identity = 17;
+      for (String file : files) {
+         if (!file.startsWith(prefix)) continue;
+         identity = 31 * identity + file.hashCode();
+         identity = 31 * identity + directory.fileLength(file);
+      }
+      return identity;
+   }
+
+   private static class SegmentMismatchException extends IOException {
+      SegmentMismatchException() {
+         super("stored for another segment");
+      }
+   }
+
+   private static boolean segmentExists(Directory directory, String segment) {
+      try {
+         return directory.fileExists(segment + ".cfs") || directory.fileExists(segment + ".fnm");
+      } catch (IOException e) {
+         return true;
+      }
+   }
+
+   private static void encode(FileChannel channel, HashedStringFieldData fieldData, int maxDoc, long segmentIdentity)
+           throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+      putInt(channel, buffer, MAGIC);
+      putInt(channel, buffer, VERSION);
+      putInt(channel, buffer, maxDoc);
+      putInt(channel, buffer, (int) (segmentIdentity >>> 32));
+      putInt(channel, buffer, (int) segmentIdentity);
+      putInt(channel, buffer, fieldData.multiValued() ? 1 : 0);
+      putInt(channel, buffer, fieldData.otherOrdinal());
+      putInts(channel, buffer, fieldData.values());
+      if (fieldData.multiValued()) {
+         MultiValueOrdinalArray ordinals = ((MultiValueHashedStringFieldData) fieldData).ordinals();
+         putInt(channel, buffer, ordinals.MAX_STORAGE_SIZE);
+         putInt(channel, buffer, ordinals.MAX_STORAGE_SIZE_SHIFT);
+         putInts(channel, buffer, ordinals.firstLevel);
+         putInt(channel, buffer, ordinals.storageArrays.length);
+         for (int[] storage : ordinals.storageArrays) {
+            putInts(channel, buffer, storage);
+         }
+      } else {
+         putInts(channel, buffer, ((SingleValueHashedStringFieldData) fieldData).ordinals);
+      }
+      putInt(channel, buffer, END);
+      flush(channel, buffer);
+   }
+
+   private static void putInt(FileChannel channel, ByteBuffer buffer, int value) throws IOException {
+      if (buffer.remaining() < 4) flush(channel, buffer);
+      buffer.putInt(value);
+   }
+
+   private static void putInts(FileChannel channel, ByteBuffer buffer, int[] values) throws IOException {
+      putInt(channel, buffer, values.length);
+      int offset = 0;
+      while (offset < values.length) {
+         if (buffer.remaining() < 4) flush(channel, buffer);
+         int length = Math.min(values.length - offset, buffer.remaining() / 4);
+         buffer.asIntBuffer().put(values, offset, length);
+         buffer.position(buffer.position() + length * 4);
+         offset += length;
+      }
+   }
+
+   private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) channel.write(buffer);
+      buffer.clear();
+   }
+
+   private static HashedStringFieldData decode(MappedReader in, String field, int maxDoc, long segmentIdentity,
+                                               boolean mapped) throws IOException {
+      if (in.getInt() != MAGIC) throw new IOException("not a hashed field data file");
+      int version = in.getInt();
+      if (version != VERSION) throw new IOException("unsupported version " + version);
+      int storedMaxDoc = in.getInt();
+      if (storedMaxDoc != maxDoc) throw new SegmentMismatchException();
+      long storedIdentity = ((long) in.getInt() << 32) | (in.getInt() & 0xFFFFFFFFL);
+      if (storedIdentity != segmentIdentity) throw new SegmentMismatchException();
+      boolean multiValued = in.getInt() != 0;
+      int otherOrdinal = in.getInt();
+      IntBuffer values = in.getInts();
+      HashedStringFieldData fieldData;
+      if (multiValued) {
+         int maxStorageSize = in.getInt();
+         int maxStorageSizeShift = in.getInt();
+         IntBuffer firstLevel = in.getInts();
+         IntBuffer[] storageArrays = new IntBuffer[in.getInt()];
+         for (int i = 0; i < storageArrays.length; i++) {
+            storageArrays[i] = in.getInts();
+         }
+         if (mapped) {
+            fieldData = new MappedMultiValueHashedStringFieldData(field, values, firstLevel, storageArrays,
+                    maxStorageSizeShift, otherOrdinal);
+         } else {
+            int[][] storage = new int[storageArrays.length][];
+            for (int i = 0; i < storage.length; i++) {
+               storage[i] = toArray(storageArrays[i]);
+            }
+            fieldData = new MultiValueHashedStringFieldData(field, toArray(values),
+                    new MultiValueOrdinalArray(toArray(firstLevel), storage, maxStorageSize, maxStorageSizeShift),
+                    otherOrdinal);
+         }
+      } else {
+         IntBuffer ordinals = in.getInts();
+         if (mapped) {
+            fieldData = new MappedSingleValueHashedStringFieldData(field, values, ordinals, otherOrdinal);
+         } else {
+            fieldData = new SingleValueHashedStringFieldData(field, toArray(values), toArray(ordinals), otherOrdinal);
+         }
+      }
+      if (in.getInt() != END) throw new IOException("missing end marker");
+      return fieldData;
+   }
+
+   private static int[] toArray(IntBuffer buffer) {
+      int[] values = new int[buffer.limit()];
+      buffer.get(values);
+      return values;
+   }
+
+   /**
+    * Reads the header ints of a file and maps each of its int arrays.
+    */
+   private static class MappedReader {
+      private final FileChannel channel;
+      private final long size;
+      private final ByteBuffer intBuffer = ByteBuffer.allocate(4);
+      private long position;
+
+      MappedReader(FileChannel channel) throws IOException {
+         this.channel = channel;
+         this.size = channel.size();
+      }
+
+      int getInt() throws IOException {
+         intBuffer.clear();
+         while (intBuffer.hasRemaining()) {
+            if (channel.read(intBuffer, position + intBuffer.position()) < 0) throw new EOFException();
+         }
+         position += 4;
+         return intBuffer.getInt(0);
+      }
+
+      IntBuffer getInts() throws IOException {
+         int length = getInt();
+         long bytes = length * 4L;
+         if (length < 0 || position + bytes > size) throw new EOFException();
+         IntBuffer ints = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).asIntBuffer();
+         position += bytes;
+         return ints;
+      }
+   }
+}
@@ -0,0 +1,169 @@
+package org.leskes.elasticfacets.fields;
+
+import org.apache.lucene.index.IndexReader;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded node wide pool loading hashed field data of the segments of a shard in parallel. The caller keeps
+ * loading and collecting segment by segment as before: a segment whose background load is running is waited for
+ * (see {@link HashedStringFieldDataCache}), one whose load did not start yet is simply loaded by the caller and
+ * later skipped by the pool. Segments which are cached or being loaded are not queued at all, and a search fans out
+ * loads once per field no matter how many facets or buckets load it. Queued segments hold a reference, so they are
+ * not closed by a merge before their load ran; segments closed already are skipped.
+ * <p/>
+ * Settings:
+ * <ul>
+ * <li>facet.hashed_strings.loader.threads: pool size, defaults to the number of processors. 0 disables it.</li>
+ * <li>facet.hashed_strings.loader.queue_size: pending segment loads. Loads beyond it are left to the caller.
+ * Defaults to 1000.</li>
+ * <li>facet.hashed_strings.loader.parallel_sweep_min_docs: segments with at least this many docs are swept in term
+ * ranges of about the same number of docs, one per loader thread, which run on the pool concurrently. Defaults to
+ * 10000000, 0 disables it.</li>
+ * </ul>
+ */
+public class HashedStringFieldLoader extends AbstractLifecycleComponent<HashedStringFieldLoader> {
+
+   public static final String SETTINGS_PREFIX = "facet.hashed_strings.loader.";
+
+   private final ThreadPoolExecutor executor;
+
+   private final MultiSweepFieldDataLoader.ParallelSweeps parallelSweeps;
+
+   @Inject
+   public HashedStringFieldLoader(Settings settings) {
+      super(settings);
+      int threads = settings.getAsInt(SETTINGS_PREFIX + "threads", Runtime.getRuntime().availableProcessors());
+      int queueSize = settings.getAsInt(SETTINGS_PREFIX + "queue_size", 1000);
+      int parallelSweepMinDocs = settings.getAsInt(SETTINGS_PREFIX + "parallel_sweep_min_docs", 10000000);
+      if (threads < 0 || queueSize < 1 || parallelSweepMinDocs < 0) {
+         throw new ElasticSearchException("Invalid " + SETTINGS_PREFIX + "* settings: threads [" + threads
+                 + "] and parallel_sweep_min_docs [" + parallelSweepMinDocs + "] must be non negative and queue_size ["
+                 + queueSize + "] positive");
+      }
+      if (threads == 0) {
+         executor = null;
+      } else {
+         executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                 new LinkedBlockingQueue<Runnable>(queueSize),
+                 EsExecutors.daemonThreadFactory(settings, "hashed_strings_loader"));
+         executor.allowCoreThreadTimeOut(true);
+      }
+      if (executor == null || parallelSweepMinDocs == 0) {
+         parallelSweeps = null;
+      } else {
+         // the loading thread sweeps a range of its own
+         parallelSweeps = new MultiSweepFieldDataLoader.ParallelSweeps(executor, parallelSweepMinDocs,
+                 Math.max(2, threads));
+      }
+      logger.debug("using [{}] threads and a queue of [{}] for hashed field data loads, parallel sweeps from [{}] docs",
+              threads, queueSize, parallelSweepMinDocs);
+   }
+
+   /**
+    * Loads the field data of single segments, see {@link HashedStringFieldSettings.FieldTypeFactory#segmentLoader}.
+    */
+   public interface SegmentLoader {
+      /**
+       * @return whether the field data of the segment is cached or being loaded already.
+       */
+      boolean isCachedOrLoading(IndexReader segment, String field) throws IOException;
+
+      void load(IndexReader segment, String field) throws IOException;
+   }
+
+   // the fields each searcher fanned out loads for. Weak keys, so searchers of finished searches drop out.
+   private final Map<Object, Set<String>> fannedOut = new WeakHashMap<Object, Set<String>>();
+
+   /**
+    * Starts background loads of the field on all given segments but the one the caller is about to load itself and
+    * those which are cached or being loaded already. Done once per searcher and field, later calls with the same
+    * searcher (e.g. by the collectors of other facets of the same search) return right away.
+    *
+    * @param searcher the searcher the segments belong to, null to always fan out.
+    * @return the number of segments queued for loading.
+    */
+   public int loadInBackground(Object searcher, final SegmentLoader segmentLoader, IndexReader[] segments,
+                               final String field, IndexReader current) throws IOException {
+      if (executor == null || segments.length < 2 || !lifecycle.started()) return 0;
+      if (searcher != null) {
+         synchronized (fannedOut) {
+            Set<String> fields = fannedOut.get(searcher);
+            if (fields == null) {
+               fields = new HashSet<String>();
+               fannedOut.put(searcher, fields);
+            }
+            if (!fields.add(field)) return 0;
+         }
+      }
+      int queued = 0;
+      for (final IndexReader segment : segments) {
+         if (segment == current || segmentLoader.isCachedOrLoading(segment, field)) continue;
+         // the search may be done and the segment merged away before the load runs, keep it open until then
+         if (!segment.tryIncRef()) continue;
+         try {
+            executor.execute(new Runnable() {
+               @Override
+               public void run() {
+                  try {
+                     segmentLoader.load(segment, field);
+                  } catch (Throwable t) {
+                     // searches waiting for this load get the failure, later ones try again
+                     logger.warn("background load of hashed field data of field [{}] failed", t, field);
+                  } finally {
+                     release(segment);
+                  }
+               }
+            });
+            queued++;
+         } catch (RejectedExecutionException e) {
+            // queue is full, the remaining segments are loaded by the caller
+            release(segment);
+            break;
+         }
+      }
+      return queued;
+   }
+
+   // when the segment was closed meanwhile, this closes it for good and its cached field data is purged
+   private void release(IndexReader segment) {
+      try {
+         segment.decRef();
+      } catch (IOException e) {
+         logger.warn("failed to release segment [{}] after a background load", e, segment);
+      }
+   }
+
+   /**
+    * @return how to split the sweeps of large segments, null if they are not split.
+    */
+   public MultiSweepFieldDataLoader.ParallelSweeps parallelSweeps() {
+      return parallelSweeps;
+   }
+
+   @Override
+   protected void doStart() throws ElasticSearchException {
+   }
+
+   @Override
+   protected void doStop() throws ElasticSearchException {
+   }
+
+   @Override
+   protected void doClose() throws ElasticSearchException {
+      if (executor != null) executor.shutdownNow();
+   }
+}
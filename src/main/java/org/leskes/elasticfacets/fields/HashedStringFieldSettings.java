@@ -1,20 +1,30 @@
 package org.leskes.elasticfacets.fields;
 
 
+import org.apache.lucene.index.IndexReader;
 import org.elasticsearch.cluster.settings.DynamicSettings;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.regex.Regex;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.trove.set.hash.TIntHashSet;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.cache.field.data.FieldDataCache;
 import org.elasticsearch.index.settings.IndexDynamicSettings;
 import org.elasticsearch.index.settings.IndexSettings;
 import org.elasticsearch.index.settings.IndexSettingsService;
 import org.elasticsearch.index.shard.AbstractIndexShardComponent;
 import org.elasticsearch.index.shard.ShardId;
+import org.leskes.elasticfacets.stats.FacetStats;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 public class HashedStringFieldSettings extends AbstractIndexShardComponent {
@@ -24,15 +34,36 @@ public class HashedStringFieldSettings extends AbstractIndexShardComponent {
    @Inject
    protected HashedStringFieldSettings(ShardId shardId, @IndexSettings Settings indexSettings,
                                        IndexSettingsService indexSettingsService,
-                                       @IndexDynamicSettings DynamicSettings dynamicSettings) {
+                                       @IndexDynamicSettings DynamicSettings dynamicSettings,
+                                       FacetStats facetStats, HashedStringFieldLoader fieldLoader,
+                                       NodeEnvironment nodeEnvironment) {
       super(shardId, indexSettings);
+      loadStats = new FieldLoadStats(facetStats);
+      parallelSweeps = fieldLoader.parallelSweeps();
+      if (nodeEnvironment.hasNodeFile()) {
+         store = new HashedStringFieldDataStore(new File(nodeEnvironment.shardLocations(shardId)[0], "hashed_strings"),
+                 logger);
+      } else {
+         store = null;
+      }
       dynamicSettings.addDynamicSettings(HASHED_STRINGS_FIELD + ".*");
       fieldTypeFactory = processSettings(indexSettings);
       indexSettingsService.addListener(applySettings);
 
    }
 
-   public FieldTypeFactory fieldTypeFactory = null;
+   // replaced as a whole on settings changes
+   public volatile FieldTypeFactory fieldTypeFactory = null;
+
+   public final FieldLoadStats loadStats;
+
+   private final MultiSweepFieldDataLoader.ParallelSweeps parallelSweeps;
+
+   // null if the node has no data location
+   private final HashedStringFieldDataStore store;
+
+   // shared by all setting versions, so loads started before a settings change are still deduplicated
+   private final HashedStringFieldDataCache fieldDataCache = new HashedStringFieldDataCache();
 
    class ApplySettings implements IndexSettingsService.Listener{
       @Override
@@ -50,34 +81,92 @@ public class HashedStringFieldSettings extends AbstractIndexShardComponent {
       public int min_docs_per_term = 0;
       public TIntHashSet excludeTerms = null;
       public Pattern excludePattern = null;
+      public long max_memory = 0;
+      public int top_k = 0;
+      public boolean warm = false;
+      public boolean persist = false;
+      public boolean mmap = false;
 
       @Override
       public String toString() {
-         return String.format("{ max_terms_per_doc: %s, min_docs_per_term: %s, excludeTerms #: %s, excludePattern: %s} ",
+         return String.format("{ max_terms_per_doc: %s, min_docs_per_term: %s, excludeTerms #: %s, excludePattern: %s, max_memory: %s, top_k: %s, warm: %s, persist: %s, mmap: %s} ",
                  max_terms_per_doc, min_docs_per_term, excludeTerms == null? 0: excludeTerms.size(),
-                 excludePattern == null ? "" : excludePattern.pattern());
+                 excludePattern == null ? "" : excludePattern.pattern(), max_memory, top_k, warm, persist, mmap);
       }
    }
 
    public static class FieldTypeFactory {
-      Map<String,FieldSettings> fieldSettings;
-
-      public FieldTypeFactory(Map<String, FieldSettings> fieldSettings) {
+      final Map<String,FieldSettings> fieldSettings;
+      final FieldLoadStats loadStats;
+      final HashedStringFieldDataCache hashedFieldDataCache;
+      final MultiSweepFieldDataLoader.ParallelSweeps parallelSweeps;
+      final HashedStringFieldDataStore store;
+
+      // built once per settings version. Types are immutable so the same instance serves all loads of a field.
+      private final Map<String, HashedStringFieldType> types = new HashMap<String, HashedStringFieldType>();
+      private final HashedStringFieldType defaultType;
+
+      public FieldTypeFactory(Map<String, FieldSettings> fieldSettings, FieldLoadStats loadStats,
+                              HashedStringFieldDataCache hashedFieldDataCache,
+                              MultiSweepFieldDataLoader.ParallelSweeps parallelSweeps,
+                              HashedStringFieldDataStore store) {
          this.fieldSettings = fieldSettings;
+         this.loadStats = loadStats;
+         this.hashedFieldDataCache = hashedFieldDataCache;
+         this.parallelSweeps = parallelSweeps;
+         this.store = store;
+         for (Map.Entry<String, FieldSettings> entry : fieldSettings.entrySet()) {
+            FieldSettings s = entry.getValue();
+            HashedStringFieldData.HashedStringTypeLoader loader = new HashedStringFieldData.HashedStringTypeLoader(
+                    s.max_terms_per_doc, s.min_docs_per_term, s.excludePattern, s.excludeTerms, s.max_memory, s.top_k,
+                    loadStats);
+            if ((s.persist || s.mmap) && store != null) {
+               types.put(entry.getKey(), new PersistedHashedStringFieldType(loader, parallelSweeps, store, s.mmap));
+            } else {
+               types.put(entry.getKey(), new HashedStringFieldType(loader, parallelSweeps));
+            }
+         }
+         defaultType = types.get("");
       }
 
-      public HashedStringFieldType getTypeForField(String field) {
-         logger.trace("getting type for field {}",field);
-         FieldSettings s= fieldSettings.get(field);
+      /**
+       * @return the hashed field data of the segment, loading it if not yet cached. Concurrent loads of the same
+       * segment and field are done once.
+       */
+      public HashedStringFieldData loadFieldData(FieldDataCache fieldDataCache, IndexReader reader, String field)
+              throws IOException {
+         return hashedFieldDataCache.cache(fieldDataCache, getTypeForField(field), reader, field);
+      }
+
+      /**
+       * @return loads of single segments into the given cache, for the {@link HashedStringFieldLoader} pool.
+       */
+      public HashedStringFieldLoader.SegmentLoader segmentLoader(final FieldDataCache fieldDataCache) {
+         return new HashedStringFieldLoader.SegmentLoader() {
+            public boolean isCachedOrLoading(IndexReader segment, String field) throws IOException {
+               return hashedFieldDataCache.isCachedOrLoading(fieldDataCache, segment, field);
+            }
+
+            public void load(IndexReader segment, String field) throws IOException {
+               loadFieldData(fieldDataCache, segment, field);
+            }
+         };
+      }
 
-         if (s == null) {
-            logger.trace("Falling back to default settings for field {}",field);
-            s = fieldSettings.get("");
+      /**
+       * @return the fields whose field data should be loaded for new segments before they are searchable.
+       */
+      public Set<String> warmedFields() {
+         Set<String> fields = new HashSet<String>();
+         for (Map.Entry<String, FieldSettings> entry : fieldSettings.entrySet()) {
+            if (entry.getValue().warm && !entry.getKey().isEmpty()) fields.add(entry.getKey());
          }
-         HashedStringFieldData.HashedStringTypeLoader loader =
-                 new HashedStringFieldData.HashedStringTypeLoader(
-                         s.max_terms_per_doc,s.min_docs_per_term, s.excludePattern, s.excludeTerms);
-         return new HashedStringFieldType(loader);
+         return fields;
+      }
+
+      public HashedStringFieldType getTypeForField(String field) {
+         HashedStringFieldType type = types.get(field);
+         return type != null ? type : defaultType;
       }
    }
 
@@ -91,6 +180,17 @@ public class HashedStringFieldSettings extends AbstractIndexShardComponent {
          FieldSettings s = new FieldSettings();
          s.max_terms_per_doc = fieldEntry.getValue().getAsInt("max_terms_per_doc",0);
          s.min_docs_per_term = fieldEntry.getValue().getAsInt("min_docs_per_term",0);
+         ByteSizeValue maxMemory = fieldEntry.getValue().getAsBytesSize("max_memory", null);
+         if (maxMemory != null) s.max_memory = maxMemory.bytes();
+         s.top_k = fieldEntry.getValue().getAsInt("top_k", 0);
+         s.warm = fieldEntry.getValue().getAsBoolean("warm", false);
+         s.persist = fieldEntry.getValue().getAsBoolean("persist", false);
+         String storage = fieldEntry.getValue().get("storage", "heap");
+         if ("mmap".equals(storage)) {
+            s.mmap = true;
+         } else if (!"heap".equals(storage)) {
+            logger.warn("Unknown storage [{}] for field {}, using heap", storage, fieldEntry.getKey());
+         }
          String[] excludeTerms = fieldEntry.getValue().getAsArray("exclude",new String[] {});
          if (excludeTerms.length != 0) {
             TIntHashSet excludeSet = new TIntHashSet(excludeTerms.length);
@@ -101,7 +201,9 @@ public class HashedStringFieldSettings extends AbstractIndexShardComponent {
 
          String excludePattern = fieldEntry.getValue().get("exclude_regex");
          if (excludePattern!=null && !excludePattern.isEmpty()) {
-            s.excludePattern = Pattern.compile(excludePattern, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            String flags = fieldEntry.getValue().get("exclude_regex_flags");
+            s.excludePattern = Pattern.compile(excludePattern, flags == null
+                    ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : Regex.flagsFromString(flags));
          }
 
          logger.info("Loaded custom settings for {}: {}", fieldEntry.getKey(), s );
@@ -110,7 +212,7 @@ public class HashedStringFieldSettings extends AbstractIndexShardComponent {
 
       }
 
-      return new FieldTypeFactory(parsedFieldSettings);
+      return new FieldTypeFactory(parsedFieldSettings, loadStats, fieldDataCache, parallelSweeps, store);
 
    }
 
@@ -21,10 +21,20 @@ public class HashedStringFieldType implements
 		return s.hashCode();
 	}
 
-   protected HashedStringFieldData.HashedStringTypeLoader loader;
+   // immutable, every load gets its own context
+   protected final HashedStringFieldData.HashedStringTypeLoader loader;
+
+   // null to always sweep on the loading thread
+   protected final MultiSweepFieldDataLoader.ParallelSweeps parallelSweeps;
 
    public HashedStringFieldType(HashedStringFieldData.HashedStringTypeLoader loader) {
+      this(loader, null);
+   }
+
+   public HashedStringFieldType(HashedStringFieldData.HashedStringTypeLoader loader,
+                                @Nullable MultiSweepFieldDataLoader.ParallelSweeps parallelSweeps) {
       this.loader = loader;
+      this.parallelSweeps = parallelSweeps;
    }
 
 	public FieldDataType.ExtendedFieldComparatorSource newFieldComparatorSource(
@@ -96,7 +106,7 @@ public class HashedStringFieldType implements
 	public HashedStringFieldData load(IndexReader reader, String fieldName)
 			throws IOException {
 
-		return MultiSweepFieldDataLoader.load(reader, fieldName, loader);
+		return MultiSweepFieldDataLoader.load(reader, fieldName, loader.newLoadContext(), parallelSweeps);
 	}
 
 }
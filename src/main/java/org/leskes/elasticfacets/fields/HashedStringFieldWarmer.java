@@ -0,0 +1,81 @@
+package org.leskes.elasticfacets.fields;
+
+import org.apache.lucene.index.IndexReader;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Injector;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.cache.field.data.FieldDataCache;
+import org.elasticsearch.index.service.IndexService;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.indices.warmer.IndicesWarmer;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.leskes.elasticfacets.stats.FacetStats;
+
+import java.util.Set;
+
+/**
+ * Loads the hashed field data of fields marked with index.hashed_strings.field.[field].warm for new segments, before
+ * a refresh or merge makes them searchable. Runs on the warmer thread pool, with the segments of a shard loaded in
+ * parallel on the {@link HashedStringFieldLoader} pool. Segments which are already cached are skipped.
+ */
+public class HashedStringFieldWarmer extends AbstractComponent {
+
+   private final IndicesService indicesService;
+   private final FacetStats facetStats;
+   private final HashedStringFieldLoader fieldLoader;
+
+   @Inject
+   public HashedStringFieldWarmer(Settings settings, IndicesWarmer indicesWarmer, IndicesService indicesService,
+                                  FacetStats facetStats, HashedStringFieldLoader fieldLoader) {
+      super(settings);
+      this.indicesService = indicesService;
+      this.facetStats = facetStats;
+      this.fieldLoader = fieldLoader;
+      indicesWarmer.addListener(new Listener());
+   }
+
+   class Listener extends IndicesWarmer.Listener {
+
+      @Override
+      public String executor() {
+         return ThreadPool.Names.WARMER;
+      }
+
+      @Override
+      public void warm(IndexShard indexShard, IndexMetaData indexMetaData, IndicesWarmer.WarmerContext context) {
+         IndexService indexService = indicesService.indexService(context.shardId().index().name());
+         if (indexService == null) return;
+         Injector shardInjector = indexService.shardInjector(context.shardId().id());
+         if (shardInjector == null) return; // shard was closed in the meantime
+         HashedStringFieldSettings.FieldTypeFactory fieldTypeFactory =
+                 shardInjector.getInstance(HashedStringFieldSettings.class).fieldTypeFactory;
+
+         Set<String> fields = fieldTypeFactory.warmedFields();
+         if (fields.isEmpty()) return;
+
+         FieldDataCache fieldDataCache = indexService.cache().fieldData();
+         IndexReader[] segments = context.newSearcher().searcher().subReaders();
+         if (segments.length == 0) return;
+         for (String field : fields) {
+            long start = System.nanoTime();
+            try {
+               fieldLoader.loadInBackground(null, fieldTypeFactory.segmentLoader(fieldDataCache), segments, field,
+                       segments[0]);
+               // waits for the background loads, or does them if they did not start yet
+               for (IndexReader segment : segments) {
+                  fieldTypeFactory.loadFieldData(fieldDataCache, segment, field);
+               }
+            } catch (Exception e) {
+               logger.warn("Failed to warm hashed field data of field [{}] on {}", e, field, context.shardId());
+               continue;
+            }
+            long took = System.nanoTime() - start;
+            facetStats.recordFieldDataWarmup(field, took);
+            logger.debug("Warmed hashed field data of field [{}] on {} in {}ms", field, context.shardId(), took / 1000000);
+         }
+      }
+   }
+}
@@ -0,0 +1,79 @@
+package org.leskes.elasticfacets.fields;
+
+import org.elasticsearch.common.RamUsage;
+
+import java.nio.IntBuffer;
+
+/**
+ * Multi valued hashed field data served from a file mapped by {@link HashedStringFieldDataStore}. The ordinals keep
+ * the layout of {@link MultiValueOrdinalArray}, with its first level and storage arrays mapped instead of on heap.
+ */
+public class MappedMultiValueHashedStringFieldData extends HashedStringFieldData {
+
+   private final IntBuffer firstLevel;
+   private final IntBuffer[] storageArrays;
+   private final int storageShift;
+
+   public MappedMultiValueHashedStringFieldData(String field, IntBuffer sorted_values, IntBuffer firstLevel,
+                                                IntBuffer[] storageArrays, int storageShift, int otherOrdinal) {
+      super(field, sorted_values, otherOrdinal);
+      this.firstLevel = firstLevel;
+      this.storageArrays = storageArrays;
+      this.storageShift = storageShift;
+   }
+
+   @Override
+   protected long computeSizeInBytes() {
+      return super.computeSizeInBytes() + RamUsage.NUM_BYTES_ARRAY_HEADER
+              + (storageArrays.length + 1) * RamUsage.NUM_BYTES_OBJECT_REF;
+   }
+
+   @Override
+   public boolean multiValued() {
+      return true;
+   }
+
+   @Override
+   public boolean hasValue(int docId) {
+      return firstLevel.get(docId) != 0;
+   }
+
+   public void forEachValueInDoc(int docId, HashedStringValueInDocProc proc) {
+      int ordinalOrPointer = firstLevel.get(docId);
+      if (ordinalOrPointer == 0) {
+         proc.onMissing(docId);
+         return;
+      }
+      if (ordinalOrPointer > 0) {
+         proc.onValue(docId, mappedValues.get(ordinalOrPointer));
+         return;
+      }
+      ordinalOrPointer = -ordinalOrPointer;
+      int storageArrayIndex = ordinalOrPointer >> storageShift;
+      IntBuffer storageArray = storageArrays[storageArrayIndex];
+      int index = ordinalOrPointer - (storageArrayIndex << storageShift);
+      int ordinal;
+      while ((ordinal = storageArray.get(index++)) > 0) {
+         proc.onValue(docId, mappedValues.get(ordinal));
+      }
+      proc.onValue(docId, mappedValues.get(-ordinal)); // the last one is negative
+   }
+
+   @Override
+   public void forEachOrdinalInDoc(int docId, OrdinalInDocProc proc) {
+      int ordinalOrPointer = firstLevel.get(docId);
+      if (ordinalOrPointer >= 0) {
+         proc.onOrdinal(docId, ordinalOrPointer); // 0 communicates a missing value
+         return;
+      }
+      ordinalOrPointer = -ordinalOrPointer;
+      int storageArrayIndex = ordinalOrPointer >> storageShift;
+      IntBuffer storageArray = storageArrays[storageArrayIndex];
+      int index = ordinalOrPointer - (storageArrayIndex << storageShift);
+      int ordinal;
+      while ((ordinal = storageArray.get(index++)) > 0) {
+         proc.onOrdinal(docId, ordinal);
+      }
+      proc.onOrdinal(docId, -ordinal); // the last one is negative
+   }
+}
@@ -0,0 +1,50 @@
+package org.leskes.elasticfacets.fields;
+
+import org.elasticsearch.common.RamUsage;
+
+import java.nio.IntBuffer;
+
+/**
+ * Single valued hashed field data served from a file mapped by {@link HashedStringFieldDataStore}, leaving the
+ * memory to the page cache.
+ */
+public class MappedSingleValueHashedStringFieldData extends HashedStringFieldData {
+
+    // order with value 0 indicates no value
+    protected final IntBuffer ordinals;
+
+    public MappedSingleValueHashedStringFieldData(String field, IntBuffer sorted_values, IntBuffer ordinals,
+                                                  int otherOrdinal) {
+        super(field, sorted_values, otherOrdinal);
+        this.ordinals = ordinals;
+    }
+
+    @Override
+    protected long computeSizeInBytes() {
+        return super.computeSizeInBytes() + RamUsage.NUM_BYTES_OBJECT_REF;
+    }
+
+    @Override
+    public boolean multiValued() {
+        return false;
+    }
+
+    @Override
+    public boolean hasValue(int docId) {
+        return ordinals.get(docId) > 0;
+    }
+
+    public void forEachValueInDoc(int docId, HashedStringValueInDocProc proc) {
+        int loc = ordinals.get(docId);
+        if (loc == 0) {
+            proc.onMissing(docId);
+            return;
+        }
+        proc.onValue(docId, mappedValues.get(loc));
+    }
+
+    @Override
+    public void forEachOrdinalInDoc(int docId, OrdinalInDocProc proc) {
+        proc.onOrdinal(docId, ordinals.get(docId));
+    }
+}
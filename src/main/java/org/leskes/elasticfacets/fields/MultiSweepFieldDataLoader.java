@@ -5,32 +5,67 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.util.StringHelper;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.index.field.data.FieldData;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MultiSweepFieldDataLoader {
 
    final static ESLogger logger = Loggers.getLogger(MultiSweepFieldDataLoader.class);
 
-   @SuppressWarnings({"StringEquality"})
    public static <T extends FieldData> T load(final IndexReader reader, String field, final TypeLoader<T> loader)
            throws IOException {
+      return load(reader, field, loader, null);
+   }
+
+   /**
+    * Loads the field, splitting the sweeps of large segments in term ranges which run concurrently when the loader
+    * supports it and parallel sweeps are given.
+    */
+   @SuppressWarnings({"StringEquality", "unchecked"})
+   public static <T extends FieldData> T load(final IndexReader reader, String field, final TypeLoader<T> loader,
+                                              @Nullable ParallelSweeps parallelSweeps)
+           throws IOException {
 
       logger.info("Loading field {}", field);
 
+      long start = System.nanoTime();
       field = StringHelper.intern(field);
       loader.init(field, reader.maxDoc());
 
+      // the terms each range after the first starts with, the same for all sweeps of the load
+      String[] boundaries = null;
+      if (parallelSweeps != null && loader instanceof ParallelTypeLoader) {
+         int ranges = parallelSweeps.rangesFor(reader.maxDoc());
+         if (ranges > 1) {
+            boundaries = termBoundaries(reader, field, loader, ranges);
+            if (boundaries.length == 0) boundaries = null;
+            else logger.debug("Sweeping field {} in {} term ranges", field, boundaries.length + 1);
+         }
+      }
+
       do
       {
-         readTermsAndDocs(reader,field,loader);
+         if (boundaries != null)
+            parallelSweep(reader, field, (ParallelTypeLoader<T>) loader, parallelSweeps.executor, boundaries);
+         else
+            readTermsAndDocs(reader, field, loader, null, null, null);
       }
       while(loader.finalizeSweep());
 
-      return loader.buildFieldData();
+      T fieldData = loader.buildFieldData();
+      loader.loadCompleted(reader, fieldData, System.nanoTime() - start);
+      return fieldData;
    }
 
    enum TERM_STATE {
@@ -39,13 +74,193 @@ public class MultiSweepFieldDataLoader {
       ABORT
    }
 
+   // a term costs about as much as this many of its docs to sweep (seeking its docs, hashing, checking excludes)
+   static final int TERM_WEIGHT = 16;
+   // boundary candidates kept while walking the terms, every other one is dropped when there are more
+   static final int MAX_BOUNDARY_CANDIDATES = 4096;
 
-   private static <T extends FieldData> void readTermsAndDocs(IndexReader reader,
-                                                              String field,
-                                                              final TypeLoader<T> loader) throws IOException {
-      TermDocs termDocs = reader.termDocs();
-      TermEnum termEnum = reader.terms(new Term(field));
+   /**
+    * Walks the terms of the field, without their docs, to split them in up to the given number of ranges of about the
+    * same work. The walk skips the same prefixes as the sweeps.
+    *
+    * @return the first term of every range but the first, sorted. Fewer than ranges - 1 if the field has few terms.
+    */
+   static String[] termBoundaries(IndexReader reader, String field, TermDocsSweeper loader, int ranges)
+           throws IOException {
+      final String[] skippedPrefixes = loader instanceof PrefixSkippingSweeper ?
+              ((PrefixSkippingSweeper) loader).skippedPrefixes() : null;
+      final List<String> candidates = new ArrayList<String>();
+      final List<Long> weightsBefore = new ArrayList<Long>();
+      final long[] total = new long[1];
+      readTermsAndDocs(reader, field, new PrefixSkippingSweeper() {
+         int stride = 1;
+         int sinceCandidate = 0;
+
+         public TERM_STATE collectTerm(String term, int termDocCount) {
+            if (++sinceCandidate >= stride) {
+               sinceCandidate = 0;
+               candidates.add(term);
+               weightsBefore.add(total[0]);
+               if (candidates.size() > MAX_BOUNDARY_CANDIDATES) {
+                  for (int i = 1, j = 2; j < candidates.size(); i++, j += 2) {
+                     candidates.set(i, candidates.get(j));
+                     weightsBefore.set(i, weightsBefore.get(j));
+                  }
+                  int kept = (candidates.size() + 1) / 2;
+                  candidates.subList(kept, candidates.size()).clear();
+                  weightsBefore.subList(kept, weightsBefore.size()).clear();
+                  stride <<= 1;
+               }
+            }
+            total[0] += termDocCount + TERM_WEIGHT;
+            return TERM_STATE.SKIP;
+         }
+
+         public void addTermDoc(int doc) {
+         }
+
+         public String[] skippedPrefixes() {
+            return skippedPrefixes;
+         }
+      }, null, null, null);
+
+      List<String> boundaries = new ArrayList<String>(ranges - 1);
+      int candidate = 1; // the first candidate is the first term, which starts the first range
+      for (int r = 1; r < ranges && candidate < candidates.size(); r++) {
+         long weight = total[0] * r / ranges;
+         while (candidate < candidates.size() - 1 && weightsBefore.get(candidate) < weight) candidate++;
+         boundaries.add(candidates.get(candidate++));
+      }
+      return boundaries.toArray(new String[boundaries.size()]);
+   }
+
+   /**
+    * Runs a single sweep as one term range per sweeper, the first one on the calling thread. Ranges which did not
+    * start on the executor by the time the caller is done with its own are run by the caller, so a busy executor
+    * delays the load but can't block it. If a range fails, the others are stopped and waited for before the failure
+    * is thrown, so none of them writes into the loader afterwards.
+    */
+   private static void parallelSweep(final IndexReader reader, final String field, ParallelTypeLoader<?> loader,
+                                     Executor executor, String[] boundaries) throws IOException {
+      List<TermDocsSweeper> sweepers = loader.newRangeSweepers(boundaries.length);
+      final AtomicBoolean aborted = new AtomicBoolean();
+      List<RangeSweep> rangeSweeps = new ArrayList<RangeSweep>(boundaries.length);
+      try {
+         for (int r = 0; r < boundaries.length; r++) {
+            RangeSweep rangeSweep = new RangeSweep(reader, field, sweepers.get(r), boundaries[r],
+                    r + 1 < boundaries.length ? boundaries[r + 1] : null, aborted);
+            rangeSweeps.add(rangeSweep);
+            try {
+               executor.execute(rangeSweep);
+            } catch (RejectedExecutionException e) {
+               // run by the caller below
+            }
+         }
+
+         readTermsAndDocs(reader, field, loader, null, boundaries[0], aborted);
+
+         for (RangeSweep rangeSweep : rangeSweeps) rangeSweep.run(); // no-op for claimed ones
+         for (RangeSweep rangeSweep : rangeSweeps) rangeSweep.rethrow(field);
+      } catch (IOException e) {
+         abort(aborted, rangeSweeps, field);
+         throw e;
+      } catch (RuntimeException e) {
+         abort(aborted, rangeSweeps, field);
+         throw e;
+      } catch (Error e) {
+         abort(aborted, rangeSweeps, field);
+         throw e;
+      }
+      loader.rangeSweepsDone(sweepers);
+   }
+
+   // stops the ranges which did not start yet and waits for the running ones to notice
+   private static void abort(AtomicBoolean aborted, List<RangeSweep> rangeSweeps, String field) {
+      aborted.set(true);
+      for (RangeSweep rangeSweep : rangeSweeps) rangeSweep.claim();
+      for (RangeSweep rangeSweep : rangeSweeps) {
+         try {
+            rangeSweep.done.await();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while stopping the sweeps of field [{}]", field);
+            return;
+         }
+      }
+   }
+
+   /**
+    * The sweep of a term range, run by whoever claims it first: the executor or the load's caller.
+    */
+   private static class RangeSweep implements Runnable {
+      final IndexReader reader;
+      final String field;
+      final TermDocsSweeper sweeper;
+      final String fromTerm;
+      final String toTerm;
+      final AtomicBoolean aborted;
+      final AtomicBoolean claimed = new AtomicBoolean();
+      final CountDownLatch done = new CountDownLatch(1);
+      volatile Throwable failure;
+
+      RangeSweep(IndexReader reader, String field, TermDocsSweeper sweeper, String fromTerm, String toTerm,
+                 AtomicBoolean aborted) {
+         this.reader = reader;
+         this.field = field;
+         this.sweeper = sweeper;
+         this.fromTerm = fromTerm;
+         this.toTerm = toTerm;
+         this.aborted = aborted;
+      }
+
+      /**
+       * @return whether the caller got to run the range, which then never runs anywhere else.
+       */
+      boolean claim() {
+         if (!claimed.compareAndSet(false, true)) return false;
+         done.countDown();
+         return true;
+      }
 
+      public void run() {
+         if (!claimed.compareAndSet(false, true)) return;
+         try {
+            readTermsAndDocs(reader, field, sweeper, fromTerm, toTerm, aborted);
+         } catch (Throwable t) {
+            failure = t;
+            aborted.set(true);
+         } finally {
+            done.countDown();
+         }
+      }
+
+      void rethrow(String field) throws IOException {
+         try {
+            done.await();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticSearchException("Interrupted while sweeping field [" + field + "]", e);
+         }
+         Throwable cause = failure;
+         if (cause == null) return;
+         if (cause instanceof IOException) throw (IOException) cause;
+         if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+         if (cause instanceof Error) throw (Error) cause;
+         throw new ElasticSearchException("Failed to sweep field [" + field + "]", cause);
+      }
+   }
+
+   // walks the terms of the field in [fromTerm, toTerm), both null for all of them, adding their docs. Stops early
+   // once aborted, if given.
+   private static void readTermsAndDocs(IndexReader reader,
+                                        String field,
+                                        final TermDocsSweeper loader, @Nullable String fromTerm,
+                                        @Nullable String toTerm, @Nullable AtomicBoolean aborted) throws IOException {
+      TermDocs termDocs = reader.termDocs();
+      TermEnum termEnum = reader.terms(new Term(field, fromTerm != null ? fromTerm : ""));
+      String[] skippedPrefixes = loader instanceof PrefixSkippingSweeper ?
+              ((PrefixSkippingSweeper) loader).skippedPrefixes() : null;
+      int nextPrefix = 0;
 
       // bulk read (in lucene 4 it won't be needed).
       int size = Math.min(128, reader.maxDoc());
@@ -55,7 +270,19 @@ public class MultiSweepFieldDataLoader {
       try {
          do {
             Term term = termEnum.term();
+            // seek past the ranges of skipped prefixes, which may follow each other
+            while (skippedPrefixes != null && term != null && term.field() == field) {
+               String text = term.text();
+               while (nextPrefix < skippedPrefixes.length && text.compareTo(skippedPrefixes[nextPrefix]) > 0
+                       && !text.startsWith(skippedPrefixes[nextPrefix])) nextPrefix++;
+               if (nextPrefix == skippedPrefixes.length || !text.startsWith(skippedPrefixes[nextPrefix])) break;
+               termEnum.close();
+               termEnum = reader.terms(new Term(field, skippedPrefixes[nextPrefix++] + PREFIX_RANGE_END));
+               term = termEnum.term();
+            }
             if (term == null || term.field() != field) break;
+            if (toTerm != null && term.text().compareTo(toTerm) >= 0) break;
+            if (aborted != null && aborted.get()) break;
             TERM_STATE TS = loader.collectTerm(term.text(), termEnum.docFreq());
             if (TS == TERM_STATE.SKIP)
                continue;
@@ -78,18 +305,75 @@ public class MultiSweepFieldDataLoader {
       }
    }
 
-   public static interface TypeLoader<T extends FieldData> {
+   // sorts after all terms starting with a prefix, lucene doesn't allow it in terms
+   private static final char PREFIX_RANGE_END = '\uffff';
+
+   /**
+    * Receives the terms of a field in order and, for every processed term, its docs.
+    */
+   public static interface TermDocsSweeper {
+
+      TERM_STATE collectTerm(String term, int termDocCount);
+
+      void addTermDoc(int doc);
+   }
+
+   /**
+    * A sweeper which skips all terms starting with some prefixes. Sweeps seek past these ranges of the terms dictionary
+    * instead of offering their terms one by one. All sweepers of a load must skip the same prefixes, so they see the
+    * same terms.
+    */
+   public static interface PrefixSkippingSweeper extends TermDocsSweeper {
+
+      // sorted, none starting with another
+      String[] skippedPrefixes();
+   }
+
+   public static interface TypeLoader<T extends FieldData> extends TermDocsSweeper {
 
       void init(String field, int docCount);
 
       // should return true if another sweep is required
       boolean finalizeSweep();
 
-      TERM_STATE collectTerm(String term, int termDocCount);
+      T buildFieldData();
 
-      void addTermDoc(int doc);
+      // called once the field data is built, with the total time it took to load
+      void loadCompleted(IndexReader reader, T fieldData, long loadTimeNanos);
+   }
 
-      T buildFieldData();
+   /**
+    * A loader whose sweeps can be split in consecutive term ranges. The loader itself sweeps the first range; every
+    * other range gets a sweeper of its own, running concurrently with it. Each sees the terms of its range in order,
+    * with all their docs, so different ranges may add the same doc.
+    */
+   public static interface ParallelTypeLoader<T extends FieldData> extends TypeLoader<T> {
+
+      // sweepers of the given number of ranges following the first one, in term order. Called before every sweep.
+      List<TermDocsSweeper> newRangeSweepers(int count);
+
+      // called once all ranges of the current sweep are done, before finalizeSweep
+      void rangeSweepsDone(List<TermDocsSweeper> sweepers);
+   }
+
+   /**
+    * Where and from which segment size on to split sweeps.
+    */
+   public static class ParallelSweeps {
+      final Executor executor;
+      final int minDocs;
+      final int maxRanges;
+
+      public ParallelSweeps(Executor executor, int minDocs, int maxRanges) {
+         this.executor = executor;
+         this.minDocs = minDocs;
+         this.maxRanges = maxRanges;
+      }
+
+      int rangesFor(int maxDoc) {
+         if (maxDoc < minDocs || maxDoc < 2) return 1;
+         return Math.min(maxRanges, maxDoc);
+      }
    }
 
 
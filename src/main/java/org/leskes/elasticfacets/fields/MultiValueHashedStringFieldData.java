@@ -7,10 +7,19 @@ public class MultiValueHashedStringFieldData extends HashedStringFieldData {
 	
     public MultiValueHashedStringFieldData(String field, int[] sorted_values,
 			MultiValueOrdinalArray ordinals) {
-		super(field,sorted_values);
+		this(field, sorted_values, ordinals, 0);
+	}
+
+    public MultiValueHashedStringFieldData(String field, int[] sorted_values,
+			MultiValueOrdinalArray ordinals, int otherOrdinal) {
+		super(field,sorted_values, otherOrdinal);
 		this.ordinals = ordinals;
 	}
     
+    MultiValueOrdinalArray ordinals() {
+       return ordinals;
+    }
+
     @Override
     protected long computeSizeInBytes() {
        long size = super.computeSizeInBytes();
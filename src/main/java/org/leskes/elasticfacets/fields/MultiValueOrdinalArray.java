@@ -10,6 +10,8 @@ import org.elasticsearch.common.util.concurrent.ThreadLocals;
 import org.elasticsearch.index.field.data.FieldData;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * a specialized container to hold ordinals for {@link org.elasticsearch.index.field.data.FieldData }
@@ -140,6 +142,16 @@ public class MultiValueOrdinalArray {
               this.firstLevel.length, this.storageArrays.length, computeSizeInBytes() / 1024);
    }
 
+   /**
+    * Wraps ordinals laid out by another instance, e.g. one read back from disk.
+    */
+   MultiValueOrdinalArray(int[] firstLevel, int[][] storageArrays, int maxStorageSize, int maxStorageSizeShift) {
+      this.firstLevel = firstLevel;
+      this.storageArrays = storageArrays;
+      this.MAX_STORAGE_SIZE = maxStorageSize;
+      this.MAX_STORAGE_SIZE_SHIFT = maxStorageSizeShift;
+   }
+
    public long computeSizeInBytes() {
       long size = RamUsage.NUM_BYTES_ARRAY_HEADER + firstLevel.length * RamUsage.NUM_BYTES_INT;
       size += RamUsage.NUM_BYTES_ARRAY_HEADER; // for the top level storagearray
@@ -156,6 +168,10 @@ public class MultiValueOrdinalArray {
       return new MultiValueOrdinalLoader(this);
    }
 
+   public ConcurrentMultiValueOrdinalLoader createConcurrentLoader() {
+      return new ConcurrentMultiValueOrdinalLoader(this);
+   }
+
    public int maxDoc() {
       return firstLevel.length;
    }
@@ -217,6 +233,62 @@ public class MultiValueOrdinalArray {
       }
    }
 
+   /**
+    * A loader for several threads adding the ordinals of the same docs. Ordinals are stored as they come and only
+    * sorted and end marked by {@link #finish()}, which must be called once all threads are done.
+    */
+   public class ConcurrentMultiValueOrdinalLoader implements OrdinalLoader {
+
+      // number of ordinals added to every doc
+      final AtomicIntegerArray ordinalsAdded;
+
+      MultiValueOrdinalArray targetArray;
+
+      protected ConcurrentMultiValueOrdinalLoader(MultiValueOrdinalArray targetArray) {
+         this.targetArray = targetArray;
+         ordinalsAdded = new AtomicIntegerArray(targetArray.firstLevel.length);
+      }
+
+      @Override
+      public void addDocOrdinal(int docId, int ordinal) {
+         int pointer = -targetArray.firstLevel[docId];
+         int added = ordinalsAdded.getAndIncrement(docId);
+         if (pointer <= 0) { // single ordinal doc
+            if (added > 0)
+               throw new ElasticSearchException(
+                       String.format("We expected one ordinal for docId %s but got more.", docId));
+            targetArray.firstLevel[docId] = ordinal;
+            return;
+         }
+         int storageArrayIndex = pointer >> MAX_STORAGE_SIZE_SHIFT;
+         int[] storageArray = targetArray.storageArrays[storageArrayIndex];
+         int index = pointer - (storageArrayIndex << MAX_STORAGE_SIZE_SHIFT) + added;
+         if (index >= storageArray.length)
+            throw new ElasticSearchException(String.format("Ordinal overflow for docId %s.", docId));
+         storageArray[index] = ordinal;
+      }
+
+      /**
+       * Sorts the ordinals of every multi ordinal doc and marks the last one.
+       */
+      public void finish() {
+         for (int docId = 0; docId < targetArray.firstLevel.length; docId++) {
+            int pointer = -targetArray.firstLevel[docId];
+            int added = ordinalsAdded.get(docId);
+            if (pointer <= 0 || added == 0) continue;
+            int storageArrayIndex = pointer >> MAX_STORAGE_SIZE_SHIFT;
+            int[] storageArray = targetArray.storageArrays[storageArrayIndex];
+            int index = pointer - (storageArrayIndex << MAX_STORAGE_SIZE_SHIFT);
+            Arrays.sort(storageArray, index, index + added);
+            storageArray[index + added - 1] *= -1; // mark as end
+         }
+      }
+
+      public MultiValueOrdinalArray getArray() {
+         return targetArray;
+      }
+   }
+
    public boolean hasValue(int docId) {
       return firstLevel[docId] != 0;
    }
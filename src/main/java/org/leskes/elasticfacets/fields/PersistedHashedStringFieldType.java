@@ -0,0 +1,61 @@
+package org.leskes.elasticfacets.fields;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+import java.io.IOException;
+
+/**
+ * A hashed string type whose field data is also kept on disk, see {@link HashedStringFieldDataStore}. Loads read the
+ * stored field data when there is some and store it otherwise. Mapped types serve their field data from the stored
+ * file, so only the first load of a segment builds it on heap.
+ */
+public class PersistedHashedStringFieldType extends HashedStringFieldType {
+
+   private static final ESLogger logger = Loggers.getLogger(PersistedHashedStringFieldType.class);
+
+   private final HashedStringFieldDataStore store;
+   private final int settingsHash;
+   private final boolean mapped;
+
+   public PersistedHashedStringFieldType(HashedStringFieldData.HashedStringTypeLoader loader,
+                                         @Nullable MultiSweepFieldDataLoader.ParallelSweeps parallelSweeps,
+                                         HashedStringFieldDataStore store, boolean mapped) {
+      super(loader, parallelSweeps);
+      this.store = store;
+      this.settingsHash = loader.settingsHash();
+      this.mapped = mapped;
+   }
+
+   @Override
+   public HashedStringFieldData load(IndexReader reader, String fieldName) throws IOException {
+      if (!(reader instanceof SegmentReader)) return super.load(reader, fieldName);
+      SegmentReader segmentReader = (SegmentReader) reader;
+
+      long start = System.nanoTime();
+      HashedStringFieldData fieldData = store.read(segmentReader, fieldName, settingsHash, mapped);
+      if (fieldData != null) {
+         long took = System.nanoTime() - start;
+         logger.debug("Read stored field data of field [{}] of segment [{}] in {}ms", fieldName,
+                 segmentReader.getSegmentName(), took / 1000000);
+         if (loader.loadStats != null) loader.loadStats.onLoad(reader, fieldName, fieldData, took, 0, 0, 0);
+         return fieldData;
+      }
+
+      // the stats track the instance which gets cached, which is the mapped copy if any
+      HashedStringFieldData.HashedStringTypeLoader.LoadContext context = loader.newLoadContext();
+      context.recordLoadByCaller();
+      fieldData = MultiSweepFieldDataLoader.load(reader, fieldName, context, parallelSweeps);
+      store.write(segmentReader, fieldName, settingsHash, fieldData);
+      if (mapped) {
+         // drop the heap copy, if the write failed keep it
+         HashedStringFieldData mappedFieldData = store.read(segmentReader, fieldName, settingsHash, true);
+         if (mappedFieldData != null) fieldData = mappedFieldData;
+      }
+      context.recordLoad(reader, fieldData, System.nanoTime() - start);
+      return fieldData;
+   }
+}
@@ -10,7 +10,12 @@ public class SingleValueHashedStringFieldData extends HashedStringFieldData {
 	
     public SingleValueHashedStringFieldData(String field, int[] sorted_values,
 			int[] ordinals) {
-		super(field,sorted_values);
+		this(field, sorted_values, ordinals, 0);
+	}
+
+    public SingleValueHashedStringFieldData(String field, int[] sorted_values,
+			int[] ordinals, int otherOrdinal) {
+		super(field,sorted_values, otherOrdinal);
 		this.ordinals = ordinals;
 	}
     
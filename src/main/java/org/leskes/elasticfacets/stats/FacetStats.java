@@ -0,0 +1,170 @@
+package org.leskes.elasticfacets.stats;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Node level latency histograms of the plugin's facets, per facet type and phase, and of field data loads and warm
+ * ups per field. Recorded since the node started.
+ */
+public class FacetStats extends AbstractComponent {
+
+   public static enum Phase {
+      PARSE("parse"),
+      FIELD_DATA("field_data"),
+      COLLECT("collect"),
+      FACET("facet"),
+      REDUCE("reduce");
+
+      public final String name;
+
+      Phase(String name) {
+         this.name = name;
+      }
+   }
+
+   /**
+    * The histograms of a single facet type, one per phase.
+    */
+   public static class FacetTimers {
+      private final LatencyHistogram[] phases;
+
+      FacetTimers() {
+         phases = new LatencyHistogram[Phase.values().length];
+         for (int i = 0; i < phases.length; i++) {
+            phases[i] = new LatencyHistogram();
+         }
+      }
+
+      public void record(Phase phase, long nanos) {
+         phases[phase.ordinal()].recordNanos(nanos);
+      }
+
+      public LatencyHistogram histogram(Phase phase) {
+         return phases[phase.ordinal()];
+      }
+   }
+
+   /**
+    * Estimates the time a single collector spends collecting documents. Reading the clock costs about as much as
+    * collecting a document, so only every {@link #SAMPLE_EVERY}th document is timed and the sum is scaled up to all
+    * documents. Not thread safe, like collectors.
+    */
+   public static class CollectTimer {
+      static final int SAMPLE_EVERY = 64;
+
+      private long docs;
+      private long sampledDocs;
+      private long sampledNanos;
+
+      /**
+       * Counts a document about to be collected.
+       *
+       * @return whether to time its collection and {@link #record} it.
+       */
+      public boolean sample() {
+         return docs++ % SAMPLE_EVERY == 0;
+      }
+
+      public void record(long nanos) {
+         sampledDocs++;
+         sampledNanos += nanos;
+      }
+
+      public long docs() {
+         return docs;
+      }
+
+      /**
+       * @return the estimated time spent collecting all documents counted so far.
+       */
+      public long estimatedNanos() {
+         if (sampledDocs == 0) return 0;
+         return (long) ((double) sampledNanos * docs / sampledDocs);
+      }
+   }
+
+   private final ConcurrentMap<String, FacetTimers> facets = ConcurrentCollections.newConcurrentMap();
+   private final ConcurrentMap<String, LatencyHistogram> fieldDataLoads = ConcurrentCollections.newConcurrentMap();
+   private final ConcurrentMap<String, LatencyHistogram> fieldDataWarmups = ConcurrentCollections.newConcurrentMap();
+
+   @Inject
+   public FacetStats(Settings settings) {
+      super(settings);
+   }
+
+   public FacetTimers facet(String type) {
+      FacetTimers timers = facets.get(type);
+      if (timers == null) {
+         FacetTimers newTimers = new FacetTimers();
+         timers = facets.putIfAbsent(type, newTimers);
+         if (timers == null) timers = newTimers;
+      }
+      return timers;
+   }
+
+   public void recordFieldDataLoad(String field, long nanos) {
+      histogram(fieldDataLoads, field).recordNanos(nanos);
+   }
+
+   /**
+    * Records the time it took to warm a field on all new segments of a shard.
+    */
+   public void recordFieldDataWarmup(String field, long nanos) {
+      histogram(fieldDataWarmups, field).recordNanos(nanos);
+   }
+
+   private static LatencyHistogram histogram(ConcurrentMap<String, LatencyHistogram> histograms, String field) {
+      LatencyHistogram histogram = histograms.get(field);
+      if (histogram == null) {
+         LatencyHistogram newHistogram = new LatencyHistogram();
+         histogram = histograms.putIfAbsent(field, newHistogram);
+         if (histogram == null) histogram = newHistogram;
+      }
+      return histogram;
+   }
+
+   /**
+    * @return facet type -> phase -> summary, skipping phases which were never recorded.
+    */
+   public Map<String, Map<String, LatencyHistogram.Summary>> facetSummaries() {
+      Map<String, Map<String, LatencyHistogram.Summary>> ret = new TreeMap<String, Map<String, LatencyHistogram.Summary>>();
+      for (Map.Entry<String, FacetTimers> facet : facets.entrySet()) {
+         Map<String, LatencyHistogram.Summary> phases = new TreeMap<String, LatencyHistogram.Summary>();
+         for (Phase phase : Phase.values()) {
+            LatencyHistogram.Summary summary = facet.getValue().histogram(phase).summary();
+            if (summary.count() > 0) phases.put(phase.name, summary);
+         }
+         ret.put(facet.getKey(), phases);
+      }
+      return ret;
+   }
+
+   /**
+    * @return field -> summary of its field data loads.
+    */
+   public Map<String, LatencyHistogram.Summary> fieldDataLoadSummaries() {
+      return summaries(fieldDataLoads);
+   }
+
+   /**
+    * @return field -> summary of its warm ups.
+    */
+   public Map<String, LatencyHistogram.Summary> fieldDataWarmupSummaries() {
+      return summaries(fieldDataWarmups);
+   }
+
+   private static Map<String, LatencyHistogram.Summary> summaries(ConcurrentMap<String, LatencyHistogram> histograms) {
+      Map<String, LatencyHistogram.Summary> ret = new TreeMap<String, LatencyHistogram.Summary>();
+      for (Map.Entry<String, LatencyHistogram> field : histograms.entrySet()) {
+         ret.put(field.getKey(), field.getValue().summary());
+      }
+      return ret;
+   }
+}
@@ -0,0 +1,26 @@
+package org.leskes.elasticfacets.stats;
+
+import org.elasticsearch.action.admin.cluster.ClusterAction;
+import org.elasticsearch.client.ClusterAdminClient;
+
+/**
+ */
+public class FacetStatsAction extends ClusterAction<FacetStatsRequest, FacetStatsResponse, FacetStatsRequestBuilder> {
+
+    public static final FacetStatsAction INSTANCE = new FacetStatsAction();
+    public static final String NAME = "cluster/nodes/elasticfacets/stats";
+
+    private FacetStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public FacetStatsResponse newResponse() {
+        return new FacetStatsResponse();
+    }
+
+    @Override
+    public FacetStatsRequestBuilder newRequestBuilder(ClusterAdminClient client) {
+        return new FacetStatsRequestBuilder(client);
+    }
+}
@@ -0,0 +1,16 @@
+package org.leskes.elasticfacets.stats;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequest;
+
+/**
+ *
+ */
+public class FacetStatsRequest extends NodesOperationRequest {
+
+    protected FacetStatsRequest() {
+    }
+
+    public FacetStatsRequest(String... nodeIds) {
+        super(nodeIds);
+    }
+}
@@ -0,0 +1,22 @@
+package org.leskes.elasticfacets.stats;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ClusterAdminClient;
+import org.elasticsearch.client.internal.InternalGenericClient;
+
+/**
+ *
+ */
+public class FacetStatsRequestBuilder extends
+        NodesOperationRequestBuilder<FacetStatsRequest, FacetStatsResponse, FacetStatsRequestBuilder> {
+
+   protected FacetStatsRequestBuilder(ClusterAdminClient client) {
+      super((InternalGenericClient) client, new FacetStatsRequest());
+   }
+
+   @Override
+   protected void doExecute(ActionListener<FacetStatsResponse> listener) {
+      ((ClusterAdminClient) client).execute(FacetStatsAction.INSTANCE, request, listener);
+   }
+}
@@ -0,0 +1,93 @@
+package org.leskes.elasticfacets.stats;
+
+import org.elasticsearch.action.support.nodes.NodesOperationResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ *
+ */
+public class FacetStatsResponse extends NodesOperationResponse<NodeFacetStats> implements ToXContent {
+
+    FacetStatsResponse() {
+    }
+
+    public FacetStatsResponse(ClusterName clusterName, NodeFacetStats[] nodes) {
+        super(clusterName, nodes);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        nodes = new NodeFacetStats[in.readVInt()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = NodeFacetStats.readNodeFacetStats(in);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(nodes.length);
+        for (NodeFacetStats node : nodes) {
+            node.writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("cluster_name", clusterName().value());
+
+        builder.startObject("nodes");
+        for (NodeFacetStats nodeStats : this) {
+            builder.startObject(nodeStats.node().id(), XContentBuilder.FieldCaseConversion.NONE);
+
+            builder.field("timestamp", nodeStats.timestamp());
+            builder.field("name", nodeStats.node().name(), XContentBuilder.FieldCaseConversion.NONE);
+            builder.field("transport_address", nodeStats.node().address().toString());
+            if (nodeStats.hostname() != null) {
+                builder.field("hostname", nodeStats.hostname(), XContentBuilder.FieldCaseConversion.NONE);
+            }
+
+            builder.startObject("facets");
+            for (Map.Entry<String, Map<String, LatencyHistogram.Summary>> facet : nodeStats.facets().entrySet()) {
+                builder.startObject(facet.getKey(), XContentBuilder.FieldCaseConversion.NONE);
+                summariesToXContent(facet.getValue(), builder, params);
+                builder.endObject();
+            }
+            builder.endObject(); // facets
+
+            builder.startObject("field_data_load");
+            summariesToXContent(nodeStats.fieldDataLoads(), builder, params);
+            builder.endObject();
+
+            builder.startObject("field_data_warm");
+            summariesToXContent(nodeStats.fieldDataWarmups(), builder, params);
+            builder.endObject();
+
+            builder.startObject("recycler");
+            nodeStats.recycler().toXContent(builder, params);
+            builder.endObject();
+
+            builder.endObject(); // node
+        }
+        builder.endObject();
+
+        return builder;
+    }
+
+    private static void summariesToXContent(Map<String, LatencyHistogram.Summary> summaries, XContentBuilder builder,
+                                            Params params) throws IOException {
+        for (Map.Entry<String, LatencyHistogram.Summary> summary : summaries.entrySet()) {
+            builder.startObject(summary.getKey(), XContentBuilder.FieldCaseConversion.NONE);
+            summary.getValue().toXContent(builder, params);
+            builder.endObject();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package org.leskes.elasticfacets.stats;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram, recorded in microseconds. Buckets are log-linear (HDR style): values below
+ * {@link #SUB_BUCKETS} have a bucket of their own, larger values share a bucket with values of the same magnitude,
+ * 16 buckets per power of two, so any reported value is within ~6% of the recorded one.
+ * <p/>
+ * Recording threads are spread over stripes by thread id, each stripe holding its own counters, so concurrent
+ * searches do not contend on the same cache lines. Stripes are only summed when a {@link Summary} is taken.
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BUCKET_BITS = 5;
+   static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   private static final int HALF_SUB_BUCKETS = SUB_BUCKETS >> 1;
+   static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+
+   // per stripe slots after the buckets
+   private static final int SUM = BUCKETS;
+   private static final int MAX = BUCKETS + 1;
+
+   private final AtomicLongArray[] stripes;
+   private final int stripeMask;
+
+   public LatencyHistogram() {
+      this(Runtime.getRuntime().availableProcessors() * 2);
+   }
+
+   public LatencyHistogram(int concurrency) {
+      int count = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+      stripes = new AtomicLongArray[count];
+      for (int i = 0; i < count; i++) {
+         stripes[i] = new AtomicLongArray(BUCKETS + 2);
+      }
+      stripeMask = count - 1;
+   }
+
+   public void recordNanos(long nanos) {
+      record(nanos / 1000);
+   }
+
+   public void record(long micros) {
+      if (micros < 0) micros = 0;
+      AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & stripeMask];
+      stripe.incrementAndGet(bucket(micros));
+      stripe.addAndGet(SUM, micros);
+      long max;
+      while (micros > (max = stripe.get(MAX))) {
+         if (stripe.compareAndSet(MAX, max, micros)) break;
+      }
+   }
+
+   static int bucket(long value) {
+      if (value < SUB_BUCKETS) return (int) value;
+      int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+      int top = (int) (value >>> shift); // in [HALF_SUB_BUCKETS, SUB_BUCKETS)
+      return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + top - HALF_SUB_BUCKETS;
+   }
+
+   /**
+    * @return the highest value falling in the given bucket.
+    */
+   static long bucketUpperBound(int bucket) {
+      if (bucket < SUB_BUCKETS) return bucket;
+      int shift = (bucket - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+      long top = (bucket - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+      return ((top + 1) << shift) - 1;
+   }
+
+   public Summary summary() {
+      long[] counts = new long[BUCKETS];
+      long count = 0;
+      long sum = 0;
+      long max = 0;
+      for (AtomicLongArray stripe : stripes) {
+         for (int i = 0; i < BUCKETS; i++) {
+            long c = stripe.get(i);
+            counts[i] += c;
+            count += c;
+         }
+         sum += stripe.get(SUM);
+         max = Math.max(max, stripe.get(MAX));
+      }
+      // counters are read one by one while recording goes on, so percentiles are approximate by a few samples
+      Summary summary = new Summary();
+      summary.count = count;
+      summary.sum = sum;
+      summary.max = max;
+      summary.p50 = Math.min(max, percentile(counts, count, 0.50));
+      summary.p90 = Math.min(max, percentile(counts, count, 0.90));
+      summary.p99 = Math.min(max, percentile(counts, count, 0.99));
+      return summary;
+   }
+
+   private static long percentile(long[] counts, long total, double percentile) {
+      if (total == 0) return 0;
+      long rank = Math.max(1, (long) Math.ceil(total * percentile));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+         seen += counts[i];
+         if (seen >= rank) return bucketUpperBound(i);
+      }
+      return bucketUpperBound(counts.length - 1);
+   }
+
+   /**
+    * Point in time percentiles of a histogram, in microseconds.
+    */
+   public static class Summary implements Streamable, ToXContent {
+      long count;
+      long sum;
+      long max;
+      long p50;
+      long p90;
+      long p99;
+
+      Summary() {
+      }
+
+      public static Summary readSummary(StreamInput in) throws IOException {
+         Summary summary = new Summary();
+         summary.readFrom(in);
+         return summary;
+      }
+
+      public long count() {
+         return count;
+      }
+
+      public long max() {
+         return max;
+      }
+
+      public long p50() {
+         return p50;
+      }
+
+      public long p90() {
+         return p90;
+      }
+
+      public long p99() {
+         return p99;
+      }
+
+      public long mean() {
+         return count == 0 ? 0 : sum / count;
+      }
+
+      @Override
+      public void readFrom(StreamInput in) throws IOException {
+         count = in.readVLong();
+         sum = in.readVLong();
+         max = in.readVLong();
+         p50 = in.readVLong();
+         p90 = in.readVLong();
+         p99 = in.readVLong();
+      }
+
+      @Override
+      public void writeTo(StreamOutput out) throws IOException {
+         out.writeVLong(count);
+         out.writeVLong(sum);
+         out.writeVLong(max);
+         out.writeVLong(p50);
+         out.writeVLong(p90);
+         out.writeVLong(p99);
+      }
+
+      @Override
+      public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+         builder.field("count", count);
+         builder.field("mean_in_micros", mean());
+         builder.field("p50_in_micros", p50);
+         builder.field("p90_in_micros", p90);
+         builder.field("p99_in_micros", p99);
+         builder.field("max_in_micros", max);
+         return builder;
+      }
+   }
+}
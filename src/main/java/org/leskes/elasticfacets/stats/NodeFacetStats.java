@@ -0,0 +1,127 @@
+package org.leskes.elasticfacets.stats;
+
+import org.elasticsearch.action.support.nodes.NodeOperationResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.leskes.elasticfacets.utils.SizeSensitiveCacheRecycler;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The facet latency summaries of a single node.
+ */
+public class NodeFacetStats extends NodeOperationResponse {
+
+    private long timestamp;
+    private String hostname;
+    // facet type -> phase -> summary
+    private Map<String, Map<String, LatencyHistogram.Summary>> facets;
+    // field -> summary
+    private Map<String, LatencyHistogram.Summary> fieldDataLoads;
+    private Map<String, LatencyHistogram.Summary> fieldDataWarmups;
+    private SizeSensitiveCacheRecycler.Stats recycler;
+
+    NodeFacetStats() {
+    }
+
+    public NodeFacetStats(DiscoveryNode node, String hostname, long timestamp,
+                          Map<String, Map<String, LatencyHistogram.Summary>> facets,
+                          Map<String, LatencyHistogram.Summary> fieldDataLoads,
+                          Map<String, LatencyHistogram.Summary> fieldDataWarmups,
+                          SizeSensitiveCacheRecycler.Stats recycler) {
+        super(node);
+        this.hostname = hostname;
+        this.timestamp = timestamp;
+        this.facets = facets;
+        this.fieldDataLoads = fieldDataLoads;
+        this.fieldDataWarmups = fieldDataWarmups;
+        this.recycler = recycler;
+    }
+
+    public static NodeFacetStats readNodeFacetStats(StreamInput in) throws IOException {
+        NodeFacetStats stats = new NodeFacetStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public String hostname() {
+        return hostname;
+    }
+
+    public Map<String, Map<String, LatencyHistogram.Summary>> facets() {
+        return facets;
+    }
+
+    public Map<String, LatencyHistogram.Summary> fieldDataLoads() {
+        return fieldDataLoads;
+    }
+
+    public Map<String, LatencyHistogram.Summary> fieldDataWarmups() {
+        return fieldDataWarmups;
+    }
+
+    public SizeSensitiveCacheRecycler.Stats recycler() {
+        return recycler;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        timestamp = in.readVLong();
+        if (in.readBoolean()) {
+            hostname = in.readString();
+        }
+        int size = in.readVInt();
+        facets = new TreeMap<String, Map<String, LatencyHistogram.Summary>>();
+        for (int i = 0; i < size; i++) {
+            facets.put(in.readString(), readSummaries(in));
+        }
+        fieldDataLoads = readSummaries(in);
+        fieldDataWarmups = readSummaries(in);
+        recycler = SizeSensitiveCacheRecycler.Stats.readStats(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVLong(timestamp);
+        if (hostname == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            out.writeString(hostname);
+        }
+        out.writeVInt(facets.size());
+        for (Map.Entry<String, Map<String, LatencyHistogram.Summary>> facet : facets.entrySet()) {
+            out.writeString(facet.getKey());
+            writeSummaries(facet.getValue(), out);
+        }
+        writeSummaries(fieldDataLoads, out);
+        writeSummaries(fieldDataWarmups, out);
+        recycler.writeTo(out);
+    }
+
+    private static Map<String, LatencyHistogram.Summary> readSummaries(StreamInput in) throws IOException {
+        int size = in.readVInt();
+        Map<String, LatencyHistogram.Summary> summaries = new TreeMap<String, LatencyHistogram.Summary>();
+        for (int i = 0; i < size; i++) {
+            summaries.put(in.readString(), LatencyHistogram.Summary.readSummary(in));
+        }
+        return summaries;
+    }
+
+    private static void writeSummaries(Map<String, LatencyHistogram.Summary> summaries, StreamOutput out) throws IOException {
+        out.writeVInt(summaries.size());
+        for (Map.Entry<String, LatencyHistogram.Summary> summary : summaries.entrySet()) {
+            out.writeString(summary.getKey());
+            summary.getValue().writeTo(out);
+        }
+    }
+}
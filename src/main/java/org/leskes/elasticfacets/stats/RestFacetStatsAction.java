@@ -0,0 +1,58 @@
+package org.leskes.elasticfacets.stats;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.support.RestActions;
+import org.elasticsearch.rest.action.support.RestXContentBuilder;
+
+import java.io.IOException;
+
+/**
+ *
+ */
+public class RestFacetStatsAction extends BaseRestHandler {
+
+    @Inject
+    public RestFacetStatsAction(Settings settings, Client client, RestController controller) {
+        super(settings, client);
+        controller.registerHandler(RestRequest.Method.GET, "/_cluster/nodes/elasticfacets/stats", this);
+        controller.registerHandler(RestRequest.Method.GET, "/_cluster/nodes/{nodeId}/elasticfacets/stats", this);
+
+        controller.registerHandler(RestRequest.Method.GET, "/_nodes/elasticfacets/stats", this);
+        controller.registerHandler(RestRequest.Method.GET, "/_nodes/{nodeId}/elasticfacets/stats", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel) {
+        String[] nodesIds = RestActions.splitNodes(request.param("nodeId"));
+        FacetStatsRequest nodesRequest = new FacetStatsRequest(nodesIds);
+        client.admin().cluster().execute(FacetStatsAction.INSTANCE,
+                nodesRequest, new ActionListener<FacetStatsResponse>() {
+            @Override
+            public void onResponse(FacetStatsResponse response) {
+                try {
+                    XContentBuilder builder = RestXContentBuilder.restContentBuilder(request);
+                    builder.startObject();
+                    response.toXContent(builder, request);
+                    builder.endObject();
+                    channel.sendResponse(new XContentRestResponse(request, RestStatus.OK, builder));
+                } catch (Exception e) {
+                    onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                try {
+                    channel.sendResponse(new XContentThrowableRestResponse(request, e));
+                } catch (IOException e1) {
+                    logger.error("Failed to send failure response", e1);
+                }
+            }
+        });
+    }
+}
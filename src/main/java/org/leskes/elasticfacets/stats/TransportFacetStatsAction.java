@@ -0,0 +1,126 @@
+package org.leskes.elasticfacets.stats;
+
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.action.support.nodes.NodeOperationRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesOperationAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.network.NetworkUtils;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.leskes.elasticfacets.utils.SizeSensitiveCacheRecycler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ *
+ */
+public class TransportFacetStatsAction extends TransportNodesOperationAction<FacetStatsRequest, FacetStatsResponse,
+        TransportFacetStatsAction.NodeFacetStatsRequest, NodeFacetStats> {
+
+    @Nullable
+    private String hostname;
+
+    private final FacetStats facetStats;
+
+    @Inject
+    public TransportFacetStatsAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+                                     ClusterService clusterService, TransportService transportService,
+                                     FacetStats facetStats) {
+        super(settings, clusterName, threadPool, clusterService, transportService);
+        this.facetStats = facetStats;
+        InetAddress address = NetworkUtils.getLocalAddress();
+        if (address != null) {
+            this.hostname = address.getHostName();
+        }
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.MANAGEMENT;
+    }
+
+    @Override
+    protected FacetStatsRequest newRequest() {
+        return new FacetStatsRequest();
+    }
+
+    @Override
+    protected String transportAction() {
+        return FacetStatsAction.NAME;
+    }
+
+    @Override
+    protected FacetStatsResponse newResponse(FacetStatsRequest request, AtomicReferenceArray responses) {
+        final List<NodeFacetStats> nodeStats = Lists.newArrayList();
+        for (int i = 0; i < responses.length(); i++) {
+            Object resp = responses.get(i);
+            if (resp instanceof NodeFacetStats) {
+                nodeStats.add((NodeFacetStats) resp);
+            }
+        }
+        return new FacetStatsResponse(clusterName, nodeStats.toArray(new NodeFacetStats[nodeStats.size()]));
+    }
+
+    @Override
+    protected NodeFacetStatsRequest newNodeRequest() {
+        return new NodeFacetStatsRequest();
+    }
+
+    @Override
+    protected NodeFacetStatsRequest newNodeRequest(String nodeId, FacetStatsRequest request) {
+        return new NodeFacetStatsRequest(nodeId, request);
+    }
+
+    @Override
+    protected NodeFacetStats newNodeResponse() {
+        return new NodeFacetStats();
+    }
+
+    @Override
+    protected NodeFacetStats nodeOperation(NodeFacetStatsRequest request) throws ElasticSearchException {
+        return new NodeFacetStats(clusterService.localNode(), hostname, System.currentTimeMillis(),
+                facetStats.facetSummaries(), facetStats.fieldDataLoadSummaries(), facetStats.fieldDataWarmupSummaries(),
+                SizeSensitiveCacheRecycler.stats());
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    static class NodeFacetStatsRequest extends NodeOperationRequest {
+
+        FacetStatsRequest request;
+
+        NodeFacetStatsRequest() {
+        }
+
+        NodeFacetStatsRequest(String nodeId, FacetStatsRequest request) {
+            super(request, nodeId);
+            this.request = request;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            request = new FacetStatsRequest();
+            request.readFrom(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            request.writeTo(out);
+        }
+    }
+}
@@ -1,114 +1,463 @@
 package org.leskes.elasticfacets.utils;
 
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 
-import java.lang.ref.SoftReference;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
+/**
+ * Pools int arrays by exact power of two size classes. Arrays handed out are rounded up to their class size, so any
+ * pooled array of a class can serve any request of that class.
+ * <p/>
+ * Every thread has a small magazine per class for small arrays, in front of a shared depot. The depot of every class
+ * is capped, by count and by bytes. Arrays pushed to a full pool are left to the GC.
+ * <p/>
+ * Settings (node level):
+ * <ul>
+ * <li>facet.recycler.max_arrays_per_class: max arrays kept in the depot of a class. Defaults to 16.</li>
+ * <li>facet.recycler.max_bytes_per_class: max bytes kept in the depot of a class. Defaults to 64mb. Arrays of
+ * classes which don't fit are allocated at their exact size and never pooled.</li>
+ * <li>facet.recycler.magazine_size: arrays a thread keeps per class, before going to the depot. Defaults to 2.</li>
+ * <li>facet.recycler.magazine_max_array_size: larger arrays skip the thread magazines. Defaults to 65536.</li>
+ * <li>facet.recycler.off_heap.min_size: int buffers of this size or larger are leased off heap. Defaults to 1048576.</li>
+ * <li>facet.recycler.off_heap.max_bytes: total direct memory the off heap buffers may take. They are allocated on
+ * demand and then kept for reuse. When exhausted, buffers are leased on heap. Defaults to 128mb, 0 disables. Leased
+ * buffers which are never pushed back are released from the budget once the GC collects them.</li>
+ * </ul>
+ * <p/>
+ * Int buffers ({@link #popIntBuffer(int)}) are large scratch arrays which are served from direct memory, so they
+ * don't churn through the old generation.
+ */
 public class SizeSensitiveCacheRecycler {
 
-   public static void clear() {
-      for (SoftWrapper ia: intArrays)
-         ia.clear();
+   static final int MIN_CLASS = 4; // 16 ints
+   static final int MAX_CLASS = 30; // larger arrays can't be rounded up, they are never pooled
+   static final int MAX_OFF_HEAP_CLASS = 28; // direct buffers are limited to 2gb
+
+   private static class Config {
+      final int[] depotCaps = new int[MAX_CLASS + 1];
+      final int magazineSize;
+      final int magazineMaxClass;
+      final int offHeapMinSize;
+      final long offHeapMaxBytes;
+
+      /**
+       * Classes which can't be pooled are allocated at the requested size, rather than rounded up.
+       */
+      boolean pooled(int sizeClass) {
+         return sizeClass <= MAX_CLASS && (sizeClass <= magazineMaxClass || depotCaps[sizeClass] > 0);
+      }
+
+      Config(Settings settings) {
+         int maxArrays = settings.getAsInt("facet.recycler.max_arrays_per_class", 16);
+         long maxBytes = settings.getAsBytesSize("facet.recycler.max_bytes_per_class",
+                 new ByteSizeValue(64 * 1024 * 1024)).bytes();
+         for (int c = MIN_CLASS; c <= MAX_CLASS; c++) {
+            depotCaps[c] = (int) Math.min(maxArrays, maxBytes / (4L << c));
+         }
+         magazineSize = settings.getAsInt("facet.recycler.magazine_size", 2);
+         magazineMaxClass = sizeClass(settings.getAsInt("facet.recycler.magazine_max_array_size", 65536));
+         offHeapMinSize = settings.getAsInt("facet.recycler.off_heap.min_size", 1024 * 1024);
+         offHeapMaxBytes = settings.getAsBytesSize("facet.recycler.off_heap.max_bytes",
+                 new ByteSizeValue(128 * 1024 * 1024)).bytes();
+      }
+   }
+
+   private static class Depot {
+      final Queue<int[]> arrays = ConcurrentCollections.newQueue();
+      final AtomicInteger size = new AtomicInteger();
+   }
+
+   private static class Magazine {
+      final int[][][] arrays;
+      final int[] sizes;
+
+      Magazine(Config config) {
+         arrays = new int[config.magazineMaxClass + 1][config.magazineSize][];
+         sizes = new int[config.magazineMaxClass + 1];
+      }
    }
 
-   private static final int[] sizeMasks;
+   private static volatile Config config = new Config(ImmutableSettings.Builder.EMPTY_SETTINGS);
+
+   private static final Depot[] depots = new Depot[MAX_CLASS + 1];
+
+   private static volatile ThreadLocal<Magazine> magazines = newMagazines();
+
+   private static final AtomicLong hits = new AtomicLong();
+   private static final AtomicLong misses = new AtomicLong();
+   private static final AtomicLong allocatedBytes = new AtomicLong();
+   private static final AtomicLong dropped = new AtomicLong();
+
+   // off heap buffers per size class. offHeapBytes counts the live buffers, pooled or leased, and bounds direct memory.
+   private static final Queue<IntBuffer>[] offHeapPools;
+   private static final AtomicLong offHeapBytes = new AtomicLong();
+   // every live off heap buffer, so buffers of failed requests which never came back are uncounted once collected
+   private static final Set<OffHeapAllocation> offHeapAllocations =
+           Collections.newSetFromMap(ConcurrentCollections.<OffHeapAllocation, Boolean>newConcurrentMap());
+   private static final ReferenceQueue<IntBuffer> collectedOffHeap = new ReferenceQueue<IntBuffer>();
+   private static final AtomicLong offHeapReclaimed = new AtomicLong();
+   private static final AtomicLong offHeapLeases = new AtomicLong();
+   private static final AtomicLong offHeapFallbacks = new AtomicLong();
+   private static final IntBuffer ZEROES = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.nativeOrder()).asIntBuffer();
+
+   static {
+      offHeapPools = newOffHeapPools();
+      for (int c = MIN_CLASS; c <= MAX_CLASS; c++) {
+         depots[c] = new Depot();
+         offHeapPools[c] = ConcurrentCollections.newQueue();
+      }
+   }
+
+   private static class OffHeapAllocation extends WeakReference<IntBuffer> {
+      final long bytes;
+
+      OffHeapAllocation(IntBuffer buffer, long bytes) {
+         super(buffer, collectedOffHeap);
+         this.bytes = bytes;
+      }
+   }
 
-   private static SoftWrapper[] intArrays;
+   @SuppressWarnings("unchecked")
+   private static Queue<IntBuffer>[] newOffHeapPools() {
+      return new Queue[MAX_CLASS + 1];
+   }
 
-   static  {
-      sizeMasks = new int[] {
-              128,
-              512,
-              1024,
-              2048,
-              16384,
-              65536,
-              262144,
-              1048576,
-              8388608
+   private static ThreadLocal<Magazine> newMagazines() {
+      return new ThreadLocal<Magazine>() {
+         @Override
+         protected Magazine initialValue() {
+            return new Magazine(config);
+         }
       };
-      intArrays = new SoftWrapper[sizeMasks.length + 1];
+   }
 
-      for (int i=0;i<=sizeMasks.length;i++) {
-         intArrays[i] = new SoftWrapper();
+   /**
+    * Applies the node settings. Pooled arrays are kept, caps apply to future pushes.
+    */
+   public static void configure(Settings settings) {
+      config = new Config(settings);
+      magazines = newMagazines();
+   }
+
+   /**
+    * Drops all pooled arrays and off heap buffers. Magazines of other threads are only dropped when they are next
+    * used, leased buffers stay counted until they are pushed back or collected.
+    */
+   public static void clear() {
+      for (int c = MIN_CLASS; c <= MAX_CLASS; c++) {
+         depots[c].arrays.clear();
+         depots[c].size.set(0);
+         for (IntBuffer buffer = offHeapPools[c].poll(); buffer != null; buffer = offHeapPools[c].poll()) {
+            release(buffer);
+         }
       }
+      magazines = newMagazines();
    }
 
-   private static SoftWrapper getArrayQueueForSize(int size) {
-     for (int i=0;i<sizeMasks.length;i++)
-        if (size < sizeMasks[i]) {
-           return intArrays[i];
-        }
-      return intArrays[sizeMasks.length];
+   static int sizeClass(int size) {
+      if (size <= (1 << MIN_CLASS)) return MIN_CLASS;
+      return 32 - Integer.numberOfLeadingZeros(size - 1);
    }
 
    public static int[] popIntArray(int size) {
       return popIntArray(size, 0);
    }
 
+   /**
+    * @return an array of at least the given size, filled with the sentinel.
+    */
    public static int[] popIntArray(int size, int sentinal) {
-      SoftWrapper intArray = getArrayQueueForSize(size);
-      Queue<int[]> ref = intArray.get();
-      if (ref == null) {
-         int[] ints = new int[size];
-         if (sentinal != 0) {
-            Arrays.fill(ints, sentinal);
+      int sizeClass = sizeClass(size);
+      Config config = SizeSensitiveCacheRecycler.config;
+      if (!config.pooled(sizeClass)) {
+         return allocate(size, sentinal);
+      }
+      int[] ints = null;
+      if (sizeClass <= config.magazineMaxClass) {
+         Magazine magazine = magazines.get();
+         if (sizeClass < magazine.sizes.length && magazine.sizes[sizeClass] > 0) {
+            int i = --magazine.sizes[sizeClass];
+            ints = magazine.arrays[sizeClass][i];
+            magazine.arrays[sizeClass][i] = null;
          }
-         return ints;
       }
-      int[] ints = ref.poll();
       if (ints == null) {
-         ints = new int[size];
-         if (sentinal != 0) {
-            Arrays.fill(ints, sentinal);
-         }
-         return ints;
+         Depot depot = depots[sizeClass];
+         ints = depot.arrays.poll();
+         if (ints != null) depot.size.decrementAndGet();
       }
-      if (ints.length < size) {
-         ints = new int[size];
-         if (sentinal != 0) {
-            Arrays.fill(ints, sentinal);
-         }
-         return ints;
+      if (ints == null) {
+         return allocate(1 << sizeClass, sentinal);
+      }
+      hits.incrementAndGet();
+      if (sentinal != 0) {
+         Arrays.fill(ints, sentinal);
+      }
+      return ints;
+   }
+
+   private static int[] allocate(int size, int sentinal) {
+      misses.incrementAndGet();
+      allocatedBytes.addAndGet(4L * size);
+      int[] ints = new int[size];
+      if (sentinal != 0) {
+         Arrays.fill(ints, sentinal);
       }
       return ints;
    }
 
    public static void pushIntArray(int[] ints) {
-      pushIntArray(ints, 0);
+      push(ints, true);
+   }
+
+   /**
+    * Returns an array the caller already reset to all zeros, typically by clearing only the slots it used. Saves
+    * filling large, sparsely used arrays.
+    */
+   public static void pushClearedIntArray(int[] ints) {
+      push(ints, false);
    }
 
-   public static void pushIntArray(int[] ints, int sentinal) {
-      SoftWrapper intArray = getArrayQueueForSize(ints.length);
-      Queue<int[]> ref = intArray.get();
-      if (ref == null) {
-         ref = ConcurrentCollections.newQueue();
-         intArray.set(ref);
+   private static void push(int[] ints, boolean clear) {
+      int sizeClass = sizeClass(ints.length);
+      Config config = SizeSensitiveCacheRecycler.config;
+      if (!config.pooled(sizeClass) || ints.length != (1 << sizeClass)) {
+         return; // not a class size, can't serve other requests
+      }
+      if (sizeClass <= config.magazineMaxClass) {
+         Magazine magazine = magazines.get();
+         if (sizeClass < magazine.sizes.length && magazine.sizes[sizeClass] < config.magazineSize) {
+            if (clear) Arrays.fill(ints, 0);
+            magazine.arrays[sizeClass][magazine.sizes[sizeClass]++] = ints;
+            return;
+         }
+      }
+      Depot depot = depots[sizeClass];
+      if (depot.size.incrementAndGet() > config.depotCaps[sizeClass]) {
+         depot.size.decrementAndGet();
+         dropped.incrementAndGet();
+         return;
+      }
+      if (clear) Arrays.fill(ints, 0);
+      depot.arrays.add(ints);
+   }
+
+   /**
+    * @return a zeroed buffer of at least the given size. Large ones are direct, smaller ones wrap a pooled array.
+    */
+   public static IntBuffer popIntBuffer(int size) {
+      Config config = SizeSensitiveCacheRecycler.config;
+      int sizeClass = sizeClass(size);
+      if (size >= config.offHeapMinSize && sizeClass <= MAX_OFF_HEAP_CLASS) {
+         IntBuffer buffer = offHeapPools[sizeClass].poll();
+         if (buffer == null) {
+            reclaimCollected();
+            long bytes = 4L << sizeClass;
+            if (offHeapBytes.addAndGet(bytes) <= config.offHeapMaxBytes) {
+               buffer = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder()).asIntBuffer();
+               offHeapAllocations.add(new OffHeapAllocation(buffer, bytes));
+            } else {
+               offHeapBytes.addAndGet(-bytes);
+               offHeapFallbacks.incrementAndGet();
+            }
+         }
+         if (buffer != null) {
+            offHeapLeases.incrementAndGet();
+            return buffer;
+         }
+      }
+      return IntBuffer.wrap(popIntArray(size));
+   }
+
+   public static void pushIntBuffer(IntBuffer buffer) {
+      if (!buffer.isDirect()) {
+         pushIntArray(buffer.array());
+         return;
+      }
+      zero(buffer);
+      offHeapPools[sizeClass(buffer.capacity())].add(buffer);
+   }
+
+   /**
+    * Like {@link #pushClearedIntArray(int[])}, the caller already reset the buffer to all zeros.
+    */
+   public static void pushClearedIntBuffer(IntBuffer buffer) {
+      if (!buffer.isDirect()) {
+         pushClearedIntArray(buffer.array());
+         return;
+      }
+      offHeapPools[sizeClass(buffer.capacity())].add(buffer);
+   }
+
+   // uncounts a buffer which is dropped from the pool
+   private static void release(IntBuffer buffer) {
+      for (OffHeapAllocation allocation : offHeapAllocations) {
+         if (allocation.get() == buffer && offHeapAllocations.remove(allocation)) {
+            allocation.clear();
+            offHeapBytes.addAndGet(-allocation.bytes);
+            return;
+         }
       }
-      Arrays.fill(ints, sentinal);
-      ref.add(ints);
    }
 
+   // uncounts the buffers which were leased but never pushed back, once the GC collected them
+   private static void reclaimCollected() {
+      for (Reference<? extends IntBuffer> ref = collectedOffHeap.poll(); ref != null; ref = collectedOffHeap.poll()) {
+         OffHeapAllocation allocation = (OffHeapAllocation) ref;
+         if (offHeapAllocations.remove(allocation)) {
+            offHeapBytes.addAndGet(-allocation.bytes);
+            offHeapReclaimed.incrementAndGet();
+         }
+      }
+   }
+
+   private static void zero(IntBuffer buffer) {
+      buffer.clear();
+      while (buffer.hasRemaining()) {
+         IntBuffer zeroes = ZEROES.duplicate();
+         zeroes.limit(Math.min(zeroes.capacity(), buffer.remaining()));
+         buffer.put(zeroes);
+      }
+      buffer.clear();
+   }
 
-   static class SoftWrapper {
-      private SoftReference<Queue<int[]>> ref;
+   public static Stats stats() {
+      reclaimCollected();
+      Stats stats = new Stats();
+      stats.hits = hits.get();
+      stats.misses = misses.get();
+      stats.allocatedBytes = allocatedBytes.get();
+      stats.dropped = dropped.get();
+      stats.offHeapBytes = offHeapBytes.get();
+      stats.offHeapLeases = offHeapLeases.get();
+      stats.offHeapFallbacks = offHeapFallbacks.get();
+      stats.offHeapReclaimed = offHeapReclaimed.get();
+      for (int c = MIN_CLASS; c <= MAX_CLASS; c++) {
+         stats.pooledBytes += (4L << c) * depots[c].size.get();
+      }
+      return stats;
+   }
+
+   /**
+    * Recycler counters since the node started. Pooled bytes only count the shared depots.
+    */
+   public static class Stats implements Streamable, ToXContent {
+      long hits;
+      long misses;
+      long allocatedBytes;
+      long dropped;
+      long pooledBytes;
+      long offHeapBytes;
+      long offHeapLeases;
+      long offHeapFallbacks;
+      long offHeapReclaimed;
+
+      public long hits() {
+         return hits;
+      }
+
+      public long misses() {
+         return misses;
+      }
+
+      public long allocatedBytes() {
+         return allocatedBytes;
+      }
+
+      public long dropped() {
+         return dropped;
+      }
+
+      public long pooledBytes() {
+         return pooledBytes;
+      }
+
+      public long offHeapBytes() {
+         return offHeapBytes;
+      }
+
+      public long offHeapLeases() {
+         return offHeapLeases;
+      }
+
+      public long offHeapFallbacks() {
+         return offHeapFallbacks;
+      }
+
+      /**
+       * @return off heap buffers which were never pushed back, released from the budget after being collected.
+       */
+      public long offHeapReclaimed() {
+         return offHeapReclaimed;
+      }
 
-      public SoftWrapper() {
+      public static Stats readStats(StreamInput in) throws IOException {
+         Stats stats = new Stats();
+         stats.readFrom(in);
+         return stats;
       }
 
-      public void set(Queue<int[]> ref) {
-         this.ref = new SoftReference<Queue<int[]>>(ref);
+      @Override
+      public void readFrom(StreamInput in) throws IOException {
+         hits = in.readVLong();
+         misses = in.readVLong();
+         allocatedBytes = in.readVLong();
+         dropped = in.readVLong();
+         pooledBytes = in.readVLong();
+         offHeapBytes = in.readVLong();
+         offHeapLeases = in.readVLong();
+         offHeapFallbacks = in.readVLong();
+         offHeapReclaimed = in.readVLong();
       }
 
-      public Queue<int[]> get() {
-         return ref == null ? null : ref.get();
+      @Override
+      public void writeTo(StreamOutput out) throws IOException {
+         out.writeVLong(hits);
+         out.writeVLong(misses);
+         out.writeVLong(allocatedBytes);
+         out.writeVLong(dropped);
+         out.writeVLong(pooledBytes);
+         out.writeVLong(offHeapBytes);
+         out.writeVLong(offHeapLeases);
+         out.writeVLong(offHeapFallbacks);
+         out.writeVLong(offHeapReclaimed);
       }
 
-      public void clear() {
-         ref = null;
+      @Override
+      public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+         builder.field("hits", hits);
+         builder.field("misses", misses);
+         builder.field("allocated_in_bytes", allocatedBytes);
+         builder.field("dropped", dropped);
+         builder.field("pooled_in_bytes", pooledBytes);
+         builder.startObject("off_heap");
+         builder.field("reserved_in_bytes", offHeapBytes);
+         builder.field("leases", offHeapLeases);
+         builder.field("fallbacks", offHeapFallbacks);
+         builder.field("reclaimed", offHeapReclaimed);
+         builder.endObject();
+         return builder;
       }
    }
 }
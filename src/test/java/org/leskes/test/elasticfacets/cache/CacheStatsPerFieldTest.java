@@ -20,6 +20,7 @@ import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 
 public class CacheStatsPerFieldTest extends AbstractNodesTests {
     protected long documentCount = 0;
@@ -77,7 +78,7 @@ public class CacheStatsPerFieldTest extends AbstractNodesTests {
 
 
             CacheStatsPerFieldResponse r = client.admin().cluster()
-                    .execute(CacheStatsPerFieldAction.INSTANCE, new CacheStatsPerFieldRequest())
+                    .execute(CacheStatsPerFieldAction.INSTANCE, new CacheStatsPerFieldRequest().untrackedFields(true))
                     .get();
 
             for (CacheStatsPerFieldStats s : r) {
@@ -88,6 +89,119 @@ public class CacheStatsPerFieldTest extends AbstractNodesTests {
         }
     }
 
+    @Test
+    public void TestUntrackedReportedAsRemainder() throws Exception {
+        facetOnTags();
+
+        CacheStatsPerFieldResponse r = client.admin().cluster()
+                .execute(CacheStatsPerFieldAction.INSTANCE, new CacheStatsPerFieldRequest())
+                .get();
+        for (CacheStatsPerFieldStats s : r) {
+            assertThat(s.fieldEntries().size(), equalTo(1));
+            CacheStatsPerFieldStats.FieldEntry e = s.fieldEntries().get(0);
+            assertThat(e.index, equalTo("test"));
+            assertThat(e.shardId, equalTo(CacheStatsPerFieldStats.NO_SHARD));
+            assertThat(e.fieldName, equalTo(CacheStatsPerFieldStats.UNTRACKED_FIELD));
+            assertThat(e.size, greaterThan(0L));
+            assertThat(e.hasLoadStats(), equalTo(false));
+        }
+
+        // a field filter can not tell what the remainder holds
+        r = client.admin().cluster()
+                .execute(CacheStatsPerFieldAction.INSTANCE, new CacheStatsPerFieldRequest().fields("ta*"))
+                .get();
+        for (CacheStatsPerFieldStats s : r) {
+            assertThat(s.fieldEntries().size(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void TestLoadStatsAfterHashedFacet() throws Exception {
+        client
+                .prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setFacets(
+                        ("{ \"facet1\": { \"hashed_terms\" : { \"field\": \"tag\" } } }"
+                        ).getBytes("UTF-8"))
+                .execute().actionGet();
+
+        CacheStatsPerFieldResponse r = client.admin().cluster()
+                .execute(CacheStatsPerFieldAction.INSTANCE, new CacheStatsPerFieldRequest())
+                .get();
+
+        for (CacheStatsPerFieldStats s : r) {
+            assertThat(s.fieldEntries().size(), equalTo(1));
+            CacheStatsPerFieldStats.FieldEntry e = s.fieldEntries().get(0);
+            assertThat(e.fieldName, equalTo("tag"));
+            assertThat(e.hasLoadStats(), equalTo(true));
+            assertThat(e.loadCount, greaterThan(0L));
+            assertThat(e.uniqueTerms, greaterThanOrEqualTo(100L));
+            assertThat(e.collisions, equalTo(0L));
+            assertThat(e.multiValued, equalTo(false));
+            assertThat(e.skippedTerms, equalTo(0L));
+        }
+    }
+
+    @Test
+    public void TestTrackedSizeDroppedAfterClear() throws Exception {
+        client
+                .prepareSearch()
+                .setSearchType(SearchType.COUNT)
+                .setFacets(
+                        ("{ \"facet1\": { \"hashed_terms\" : { \"field\": \"tag\" } } }"
+                        ).getBytes("UTF-8"))
+                .execute().actionGet();
+
+        CacheStatsPerFieldResponse r = client.admin().cluster()
+                .execute(CacheStatsPerFieldAction.INSTANCE, new CacheStatsPerFieldRequest())
+                .get();
+        for (CacheStatsPerFieldStats s : r) {
+            assertThat(s.fieldEntries().get(0).size, greaterThan(0L));
+        }
+
+        clearCache();
+
+        r = client.admin().cluster()
+                .execute(CacheStatsPerFieldAction.INSTANCE, new CacheStatsPerFieldRequest())
+                .get();
+        for (CacheStatsPerFieldStats s : r) {
+            assertThat(s.fieldEntries().size(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void TestFiltersAndSegmentLevel() throws Exception {
+        facetOnTags();
+
+        CacheStatsPerFieldResponse r = client.admin().cluster()
+                .execute(CacheStatsPerFieldAction.INSTANCE, new CacheStatsPerFieldRequest().fields("ta*")
+                        .level(CacheStatsPerFieldRequest.Level.SEGMENT).untrackedFields(true))
+                .get();
+        for (CacheStatsPerFieldStats s : r) {
+            assertThat(s.fieldEntries().size(), equalTo(1));
+            CacheStatsPerFieldStats.FieldEntry e = s.fieldEntries().get(0);
+            assertThat(e.index, equalTo("test"));
+            assertThat(e.segments.size(), greaterThan(0));
+            long segmentsSize = 0;
+            for (CacheStatsPerFieldStats.SegmentEntry se : e.segments) segmentsSize += se.size;
+            assertThat(segmentsSize, equalTo(e.size));
+        }
+
+        r = client.admin().cluster()
+                .execute(CacheStatsPerFieldAction.INSTANCE, new CacheStatsPerFieldRequest().fields("other*"))
+                .get();
+        for (CacheStatsPerFieldStats s : r) {
+            assertThat(s.fieldEntries().size(), equalTo(0));
+        }
+
+        r = client.admin().cluster()
+                .execute(CacheStatsPerFieldAction.INSTANCE, new CacheStatsPerFieldRequest().indices("no_such_index"))
+                .get();
+        for (CacheStatsPerFieldStats s : r) {
+            assertThat(s.fieldEntries().size(), equalTo(0));
+        }
+    }
+
     @Test
     public void TestJSONResponse() throws Exception {
 
@@ -109,7 +223,7 @@ public class CacheStatsPerFieldTest extends AbstractNodesTests {
         //      "nodes":{"qpCAo38-Rm2epLPs0FJu8w":
         //          {"setTimestamp":1353104133685,"name":"node0",
         //           "transport_address":"inet[/192.168.1.107:9300]","hostname":"boazmbp.fritz.box",
-        //                 "fields":{"tag":{"size":144}}}}}
+        //                 "fields":[{"index":"test","shard":0,"field":"tag","size":144}]}}}
 
     }
 
@@ -0,0 +1,138 @@
+package org.leskes.test.elasticfacets.facets;
+
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.joda.time.DateTimeZone;
+import org.elasticsearch.common.joda.time.chrono.ISOChronology;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.facet.FacetCollector;
+import org.leskes.elasticfacets.FacetedDateHistogramCollector;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class DateHistogramBucketRangeTest {
+
+   static final DateTimeZone AMSTERDAM = DateTimeZone.forID("Europe/Amsterdam");
+   static final long HOUR = 3600 * 1000;
+   static final long DAY = 24 * HOUR;
+   // 2012-03-25T00:00:00Z and 2012-10-28T00:00:00Z, the days Amsterdam switches to and from summer time
+   static final long SPRING_FORWARD = 1332633600000L;
+   static final long FALL_BACK = 1351382400000L;
+
+   static class CountingRounding extends TimeZoneRounding {
+      final TimeZoneRounding rounding;
+      long calls;
+
+      CountingRounding(TimeZoneRounding rounding) {
+         this.rounding = rounding;
+      }
+
+      @Override
+      public long calc(long utcMillis) {
+         calls++;
+         return rounding.calc(utcMillis);
+      }
+   }
+
+   /**
+    * Resolves buckets without internal collectors.
+    */
+   static class BucketResolver extends FacetedDateHistogramCollector.DateHistogramProc {
+      BucketResolver(TimeZoneRounding rounding) {
+         super("test", rounding, null);
+      }
+
+      @Override
+      protected FacetCollector newCollector() {
+         return null;
+      }
+
+      long bucket(long value) {
+         return resolveEntry(value).time;
+      }
+   }
+
+   static void assertSameBuckets(TimeZoneRounding rounding, long from, long to, int values) {
+      BucketResolver resolver = new BucketResolver(rounding);
+      Random random = new Random(from ^ values);
+      long[] sample = new long[values];
+      for (int i = 0; i < values; i++) {
+         sample[i] = from + (long) (random.nextDouble() * (to - from));
+      }
+      // every value twice and out of order, so most buckets are resolved from their memoized range
+      for (int pass = 0; pass < 2; pass++) {
+         for (long value : sample) {
+            assertThat("bucket of " + value, resolver.bucket(value), equalTo(rounding.calc(value)));
+         }
+      }
+      // the edges of the ranges
+      for (long value : sample) {
+         long time = rounding.calc(value);
+         for (long edge : new long[]{time - 1, time, time + 1}) {
+            assertThat("bucket of " + edge, resolver.bucket(edge), equalTo(rounding.calc(edge)));
+         }
+      }
+   }
+
+   @Test
+   public void testHoursAcrossDstTransitions() throws Exception {
+      TimeZoneRounding rounding = TimeZoneRounding.builder(ISOChronology.getInstanceUTC().hourOfDay())
+              .preZone(AMSTERDAM).build();
+      assertSameBuckets(rounding, SPRING_FORWARD - DAY, SPRING_FORWARD + DAY, 2000);
+      assertSameBuckets(rounding, FALL_BACK - DAY, FALL_BACK + DAY, 2000);
+   }
+
+   @Test
+   public void testDaysAcrossDstTransitions() throws Exception {
+      TimeZoneRounding rounding = TimeZoneRounding.builder(ISOChronology.getInstanceUTC().dayOfMonth())
+              .preZone(AMSTERDAM).build();
+      assertSameBuckets(rounding, SPRING_FORWARD - 5 * DAY, SPRING_FORWARD + 5 * DAY, 2000);
+      assertSameBuckets(rounding, FALL_BACK - 5 * DAY, FALL_BACK + 5 * DAY, 2000);
+   }
+
+   @Test
+   public void testFixedIntervalAcrossDstTransition() throws Exception {
+      TimeZoneRounding rounding = TimeZoneRounding.builder(TimeValue.timeValueMinutes(90)).preZone(AMSTERDAM).build();
+      assertSameBuckets(rounding, FALL_BACK - DAY, FALL_BACK + DAY, 2000);
+   }
+
+   @Test
+   public void testMonthsAndYears() throws Exception {
+      for (DateTimeZone zone : new DateTimeZone[]{DateTimeZone.UTC, AMSTERDAM}) {
+         assertSameBuckets(TimeZoneRounding.builder(ISOChronology.getInstanceUTC().monthOfYear())
+                 .preZone(zone).build(), SPRING_FORWARD - 400 * DAY, SPRING_FORWARD + 400 * DAY, 3000);
+         assertSameBuckets(TimeZoneRounding.builder(ISOChronology.getInstanceUTC().yearOfCentury())
+                 .preZone(zone).build(), SPRING_FORWARD - 2000 * DAY, SPRING_FORWARD + 2000 * DAY, 3000);
+      }
+   }
+
+   @Test
+   public void testSparseValuesAreRoundedOnce() throws Exception {
+      CountingRounding rounding = new CountingRounding(TimeZoneRounding.builder(TimeValue.timeValueMinutes(1)).build());
+      BucketResolver resolver = new BucketResolver(rounding);
+      // a value per bucket, as fine intervals over sparse data have
+      for (int i = 0; i < 1000; i++) {
+         resolver.bucket(SPRING_FORWARD + i * 7 * 60 * 1000L);
+      }
+      assertThat(rounding.calls, equalTo(1000L));
+   }
+
+   @Test
+   public void testFixedIntervalRangesArePredicted() throws Exception {
+      CountingRounding rounding = new CountingRounding(TimeZoneRounding.builder(TimeValue.timeValueMinutes(1)).build());
+      BucketResolver resolver = new BucketResolver(rounding);
+      for (int i = 0; i < 1000; i++) {
+         long value = SPRING_FORWARD + i * 60 * 1000L;
+         resolver.bucket(value);
+         resolver.bucket(value + 30 * 1000L);
+      }
+      // a rounding per value and four to verify the predicted range on the second value of a bucket, apart from
+      // the search for the first range
+      long firstRangeSearch = 100;
+      assertThat(rounding.calls, lessThanOrEqualTo(1000L * 6 + firstRangeSearch));
+   }
+}
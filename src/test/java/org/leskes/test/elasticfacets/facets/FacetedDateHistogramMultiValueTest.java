@@ -0,0 +1,69 @@
+package org.leskes.test.elasticfacets.facets;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.search.facet.terms.TermsFacet;
+import org.leskes.elasticfacets.FacetedDateHistogramFacet;
+import org.leskes.elasticfacets.FacetedDateHistogramFacet.Entry;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class FacetedDateHistogramMultiValueTest extends AbstractFacetTest {
+
+   @Override
+   protected void loadData() throws Exception {
+      // two values in week1 and one in week2
+      client.prepareIndex("test", "type1")
+              .setSource(
+                      jsonBuilder().startObject().field("tag", "multi")
+                              .array("date", "2012-07-03T10:00:00.000Z", "2012-07-04T10:00:00.000Z",
+                                      "2012-07-10T10:00:00.000Z")
+                              .endObject()).execute().actionGet();
+
+      client.prepareIndex("test", "type1")
+              .setSource(
+                      jsonBuilder().startObject().field("tag", "single").field("date", "2012-07-03T12:00:00.000Z")
+                              .endObject()).execute().actionGet();
+
+      client.admin().indices().prepareRefresh().execute().actionGet();
+   }
+
+   @Test
+   public void DocCollectedOncePerBucketTest() throws Exception {
+      for (int i = 0; i < numberOfRuns(); i++) {
+         SearchResponse searchResponse = client
+                 .prepareSearch()
+                 .setSearchType(SearchType.COUNT)
+                 .setFacets(
+                         ("{ \"facet1\": { \"faceted_date_histogram\" : " +
+                                 "{ \"field\": \"date\", \"interval\": \"week\", " +
+                                 "  \"facet\": { \"terms\" : { \"field\": \"tag\"}}  " +
+                                 "}      }      }"
+                         ).getBytes("UTF-8"))
+                 .execute().actionGet();
+
+         FacetedDateHistogramFacet facet = searchResponse.facets().facet("facet1");
+         List<Entry> entries = facet.collapseToAList();
+         assertThat(entries.size(), equalTo(2));
+
+         assertThat(entries.get(0).time, equalTo(1341187200000L));
+         assertThat(entries.get(0).count(), equalTo(2L));
+         TermsFacet week1 = (TermsFacet) entries.get(0).facet();
+         assertThat(week1.getEntries().size(), equalTo(2));
+         assertThat(week1.getEntries().get(0).getCount(), equalTo(1));
+         assertThat(week1.getEntries().get(1).getCount(), equalTo(1));
+
+         assertThat(entries.get(1).time, equalTo(1341792000000L));
+         assertThat(entries.get(1).count(), equalTo(1L));
+         TermsFacet week2 = (TermsFacet) entries.get(1).facet();
+         assertThat(week2.getEntries().get(0).getTerm(), equalTo("multi"));
+         assertThat(week2.getEntries().get(0).getCount(), equalTo(1));
+      }
+   }
+
+}
@@ -0,0 +1,207 @@
+package org.leskes.test.elasticfacets.facets;
+
+import org.apache.lucene.index.IndexReader;
+import org.elasticsearch.common.CacheRecycler;
+import org.elasticsearch.common.joda.TimeZoneRounding;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.trove.ExtTLongObjectHashMap;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.facet.AbstractFacetCollector;
+import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.FacetCollector;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.filter.FilterFacet;
+import org.elasticsearch.search.facet.filter.InternalFilterFacet;
+import org.elasticsearch.search.facet.statistical.InternalStatisticalFacet;
+import org.elasticsearch.search.facet.statistical.StatisticalFacet;
+import org.leskes.elasticfacets.FacetedDateHistogramCollector;
+import org.leskes.elasticfacets.FacetedDateHistogramFacet;
+import org.leskes.elasticfacets.FacetedDateHistogramFacet.Entry;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+
+public class FacetedDateHistogramStreamTest {
+
+   static final long HOUR = 3600 * 1000;
+
+   @BeforeClass
+   public void registerStreams() {
+      FacetedDateHistogramFacet.registerStreams();
+      InternalStatisticalFacet.registerStreams();
+      InternalFilterFacet.registerStreams();
+   }
+
+   /**
+    * A collector standing for the internal facet collector of a bucket.
+    */
+   static class FixedFacetCollector extends AbstractFacetCollector {
+      final Facet facet;
+
+      FixedFacetCollector(Facet facet) {
+         super(facet.getName());
+         this.facet = facet;
+      }
+
+      @Override
+      protected void doSetNextReader(IndexReader reader, int docBase) throws IOException {
+      }
+
+      @Override
+      protected void doCollect(int doc) throws IOException {
+      }
+
+      @Override
+      public Facet facet() {
+         return facet;
+      }
+   }
+
+   /**
+    * Builds the buckets of a histogram by collecting docs into them, as the collector does.
+    */
+   static class Buckets extends FacetedDateHistogramCollector.DateHistogramProc {
+      final ExtTLongObjectHashMap<Entry> built = CacheRecycler.popLongObjectMap();
+      Facet internalFacet;
+      int nextDoc;
+
+      Buckets() {
+         super("histo", TimeZoneRounding.builder(TimeValue.timeValueHours(1)).build(), null);
+      }
+
+      @Override
+      protected FacetCollector newCollector() {
+         return new FixedFacetCollector(internalFacet);
+      }
+
+      @Override
+      protected Entry newEntry(long time) {
+         Entry entry = super.newEntry(time);
+         built.put(time, entry);
+         return entry;
+      }
+
+      // collects count docs with the given time, which starts an hour
+      Buckets add(long time, long count, Facet internalFacet) {
+         this.internalFacet = internalFacet;
+         for (long i = 0; i < count; i++) {
+            onValue(nextDoc++, time);
+         }
+         return this;
+      }
+
+      FacetedDateHistogramFacet facet() {
+         for (Object o : built.internalValues()) {
+            if (o != null) ((Entry) o).facetize();
+         }
+         return new FacetedDateHistogramFacet("histo", built, 2);
+      }
+   }
+
+   static BytesStreamOutput write(FacetedDateHistogramFacet facet) throws IOException {
+      BytesStreamOutput out = new BytesStreamOutput();
+      facet.writeTo(out);
+      return out;
+   }
+
+   static FacetedDateHistogramFacet roundTrip(Buckets buckets) throws Exception {
+      BytesStreamOutput out = write(buckets.facet());
+      return FacetedDateHistogramFacet.readFacetedHistogramFacet(new BytesStreamInput(out.bytes().toBytes(), false));
+   }
+
+   /**
+    * The size of the format written before it was made compact: time, count, stream type and facet per entry.
+    */
+   static int perEntryEncodingSize(FacetedDateHistogramFacet facet) throws IOException {
+      BytesStreamOutput out = new BytesStreamOutput();
+      out.writeUTF(facet.getName());
+      out.writeVLong(2);
+      List<Entry> entries = facet.collapseToAList();
+      out.writeVInt(entries.size());
+      for (Entry entry : entries) {
+         InternalFacet internalFacet = (InternalFacet) entry.facet();
+         out.writeLong(entry.time);
+         out.writeVLong(entry.count());
+         out.writeUTF(internalFacet.streamType());
+         internalFacet.writeTo(out);
+      }
+      return out.size();
+   }
+
+   @Test
+   public void testSingleType() throws Exception {
+      FacetedDateHistogramFacet facet = roundTrip(new Buckets()
+              .add(5 * HOUR, 3, new InternalStatisticalFacet("stats", 1, 4, 7, 21, 3))
+              .add(2 * HOUR, 1, new InternalStatisticalFacet("stats", 2, 2, 2, 4, 1))
+              .add(11 * HOUR, 2, new InternalStatisticalFacet("stats", 0, 8, 8, 64, 2)));
+
+      assertThat(facet.getName(), equalTo("histo"));
+      List<Entry> entries = facet.collapseToAList();
+      assertThat(entries.size(), equalTo(3));
+      long[] times = {2 * HOUR, 5 * HOUR, 11 * HOUR};
+      long[] counts = {1, 3, 2};
+      double[] totals = {2, 7, 8};
+      for (int i = 0; i < entries.size(); i++) {
+         Entry entry = entries.get(i);
+         assertThat(entry.time, equalTo(times[i]));
+         assertThat(entry.count(), equalTo(counts[i]));
+         assertThat(entry.facet(), instanceOf(StatisticalFacet.class));
+         assertThat(((StatisticalFacet) entry.facet()).getTotal(), equalTo(totals[i]));
+      }
+   }
+
+   @Test
+   public void testMixedTypes() throws Exception {
+      FacetedDateHistogramFacet facet = roundTrip(new Buckets()
+              .add(-HOUR, 4, new InternalFilterFacet("internal", 4))
+              .add(3 * HOUR, 1, new InternalStatisticalFacet("internal", 2, 2, 2, 4, 1))
+              .add(7 * HOUR, 6, new InternalFilterFacet("internal", 6)));
+
+      List<Entry> entries = facet.collapseToAList();
+      assertThat(entries.size(), equalTo(3));
+      assertThat(entries.get(0).time, equalTo(-HOUR));
+      assertThat(entries.get(0).count(), equalTo(4L));
+      assertThat(((FilterFacet) entries.get(0).facet()).getCount(), equalTo(4L));
+      assertThat(entries.get(1).time, equalTo(3 * HOUR));
+      assertThat(entries.get(1).count(), equalTo(1L));
+      assertThat(((StatisticalFacet) entries.get(1).facet()).getCount(), equalTo(1L));
+      assertThat(entries.get(2).time, equalTo(7 * HOUR));
+      assertThat(entries.get(2).count(), equalTo(6L));
+      assertThat(((FilterFacet) entries.get(2).facet()).getCount(), equalTo(6L));
+   }
+
+   @Test
+   public void testSingleEntry() throws Exception {
+      FacetedDateHistogramFacet facet =
+              roundTrip(new Buckets().add(13 * HOUR, 5, new InternalFilterFacet("internal", 5)));
+      List<Entry> entries = facet.collapseToAList();
+      assertThat(entries.size(), equalTo(1));
+      assertThat(entries.get(0).time, equalTo(13 * HOUR));
+      assertThat(entries.get(0).count(), equalTo(5L));
+   }
+
+   @Test
+   public void testDenseHistogramIsSmallerThanPerEntryEncoding() throws Exception {
+      Buckets buckets = new Buckets();
+      for (int hour = 0; hour < 500; hour++) {
+         buckets.add(hour * HOUR, 1 + hour % 4, new InternalFilterFacet("internal", 1 + hour % 4));
+      }
+      FacetedDateHistogramFacet facet = buckets.facet();
+      int perEntrySize = perEntryEncodingSize(facet);
+      int compactSize = write(facet).size();
+      assertThat(compactSize, lessThan(perEntrySize));
+
+      List<Entry> entries = roundTrip(buckets).collapseToAList();
+      assertThat(entries.size(), equalTo(500));
+      assertThat(entries.get(499).time, equalTo(499 * HOUR));
+      assertThat(entries.get(499).count(), equalTo(4L));
+   }
+}
@@ -1,8 +1,10 @@
 package org.leskes.test.elasticfacets.facets;
 
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.search.facet.terms.TermsFacet;
+import org.leskes.elasticfacets.FacetProfile;
 import org.leskes.elasticfacets.FacetedDateHistogramFacet;
 import org.leskes.elasticfacets.FacetedDateHistogramFacet.Entry;
 import org.testng.annotations.Test;
@@ -12,6 +14,9 @@ import java.util.List;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 
 public class FacetedDateHistogramTest extends AbstractFacetTest {
    protected long documentCount =0;
@@ -63,7 +68,102 @@ public class FacetedDateHistogramTest extends AbstractFacetTest {
 			assertThat(((TermsFacet)entries.get(0).facet()).getEntries().get(0).getTerm(), equalTo("week1"));
 			assertThat(entries.get(1).time,equalTo(1341792000000L));
 			assertThat(((TermsFacet)entries.get(1).facet()).getEntries().get(0).getTerm(), equalTo("week2"));
+			assertThat(entries.get(0).count(), equalTo(1L));
+			assertThat(entries.get(1).count(), equalTo(1L));
 		}
 	}
 
+	@Test
+	public void HardBoundsTest() throws Exception {
+		for (int i = 0; i < numberOfRuns(); i++) {
+			SearchResponse searchResponse = client
+					.prepareSearch()
+					.setSearchType(SearchType.COUNT)
+					.setFacets(
+							("{ \"facet1\": { \"faceted_date_histogram\" : " +
+									"{ \"field\": \"date\", \"interval\": \"week\", " +
+									"  \"hard_bounds\": { \"min\": \"2012-07-05T00:00:00.000Z\" }, " +
+									"  \"facet\": { \"terms\" : { \"field\": \"tag\"}}  " +
+									"}      }      }"
+							).getBytes("UTF-8"))
+					.execute().actionGet();
+
+			FacetedDateHistogramFacet facet = searchResponse.facets().facet("facet1");
+			List<Entry> entries = facet.collapseToAList();
+			assertThat(entries.size(), equalTo(1));
+			assertThat(entries.get(0).time,equalTo(1341792000000L));
+			assertThat(((TermsFacet)entries.get(0).facet()).getEntries().get(0).getTerm(), equalTo("week2"));
+		}
+	}
+
+	@Test
+	public void MinDocCountTest() throws Exception {
+		for (int i = 0; i < numberOfRuns(); i++) {
+			SearchResponse searchResponse = client
+					.prepareSearch()
+					.setSearchType(SearchType.COUNT)
+					.setFacets(
+							("{ \"facet1\": { \"faceted_date_histogram\" : " +
+									"{ \"field\": \"date\", \"interval\": \"week\", \"min_doc_count\": 2, " +
+									"  \"facet\": { \"terms\" : { \"field\": \"tag\"}}  " +
+									"}      }      }"
+							).getBytes("UTF-8"))
+					.execute().actionGet();
+
+			FacetedDateHistogramFacet facet = searchResponse.facets().facet("facet1");
+			assertThat(facet.collapseToAList().size(), equalTo(0));
+		}
+	}
+
+	@Test
+	public void MaxBucketsTest() throws Exception {
+		try {
+			SearchResponse searchResponse = client
+					.prepareSearch()
+					.setSearchType(SearchType.COUNT)
+					.setFacets(
+							("{ \"facet1\": { \"faceted_date_histogram\" : " +
+									"{ \"field\": \"date\", \"interval\": \"week\", \"max_buckets\": 1, " +
+									"  \"facet\": { \"terms\" : { \"field\": \"tag\"}}  " +
+									"}      }      }"
+							).getBytes("UTF-8"))
+					.execute().actionGet();
+			assertThat(searchResponse.failedShards(), greaterThan(0));
+		} catch (SearchPhaseExecutionException e) {
+			// all shards failed, as expected
+		}
+	}
+
+	@Test
+	public void ProfiledTest() throws Exception {
+		SearchResponse searchResponse = client
+				.prepareSearch()
+				.setSearchType(SearchType.COUNT)
+				.setFacets(
+						("{ \"facet1\": { \"faceted_date_histogram\" : " +
+								"{ \"field\": \"date\", \"interval\": \"week\", \"profile\": true, " +
+								"  \"facet\": { \"terms\" : { \"field\": \"tag\"}}  " +
+								"}      }      }"
+						).getBytes("UTF-8"))
+				.execute().actionGet();
+
+		FacetedDateHistogramFacet facet = searchResponse.facets().facet("facet1");
+		assertThat(facet.collapseToAList().size(), equalTo(2));
+		assertThat(facet.profile(), notNullValue());
+		assertThat(facet.profile().nanos(FacetProfile.Phase.COLLECT), greaterThan(0L));
+
+		searchResponse = client
+				.prepareSearch()
+				.setSearchType(SearchType.COUNT)
+				.setFacets(
+						("{ \"facet1\": { \"faceted_date_histogram\" : " +
+								"{ \"field\": \"date\", \"interval\": \"week\", " +
+								"  \"facet\": { \"terms\" : { \"field\": \"tag\"}}  " +
+								"}      }      }"
+						).getBytes("UTF-8"))
+				.execute().actionGet();
+		facet = searchResponse.facets().facet("facet1");
+		assertThat(facet.profile(), nullValue());
+	}
+
 }
@@ -0,0 +1,151 @@
+package org.leskes.test.elasticfacets.facets;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.search.facet.terms.TermsFacet;
+import org.leskes.elasticfacets.FacetedHistogramFacet;
+import org.leskes.elasticfacets.FacetedHistogramFacet.Entry;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class FacetedHistogramTest extends AbstractFacetTest {
+
+   @Override
+   protected void loadData() throws Exception {
+      client.prepareIndex("test", "type1")
+              .setSource(jsonBuilder().startObject().field("tag", "cheap").field("price", 15).endObject())
+              .execute().actionGet();
+      client.prepareIndex("test", "type1")
+              .setSource(jsonBuilder().startObject().field("tag", "cheap").field("price", 45).endObject())
+              .execute().actionGet();
+      client.prepareIndex("test", "type1")
+              .setSource(jsonBuilder().startObject().field("tag", "pricey").field("price", 250).endObject())
+              .execute().actionGet();
+      client.prepareIndex("test", "type1")
+              .setSource(jsonBuilder().startObject().field("tag", "negative").field("price", -5).endObject())
+              .execute().actionGet();
+
+      // docs without a price, scored with doubles
+      client.admin().indices().preparePutMapping("test").setType("type1")
+              .setSource(jsonBuilder().startObject().startObject("type1").startObject("properties")
+                      .startObject("score").field("type", "double").endObject()
+                      .endObject().endObject().endObject())
+              .execute().actionGet();
+      client.prepareIndex("test", "type1")
+              .setSource(jsonBuilder().startObject().field("score", 1.5).endObject())
+              .execute().actionGet();
+      client.prepareIndex("test", "type1")
+              .setSource(jsonBuilder().startObject().field("score", Double.NaN).endObject())
+              .execute().actionGet();
+
+      client.admin().indices().prepareRefresh().execute().actionGet();
+   }
+
+   @Test
+   public void SimpleHistogramTest() throws Exception {
+      for (int i = 0; i < numberOfRuns(); i++) {
+         SearchResponse searchResponse = client
+                 .prepareSearch()
+                 .setSearchType(SearchType.COUNT)
+                 .setFacets(
+                         ("{ \"facet1\": { \"faceted_histogram\" : " +
+                                 "{ \"field\": \"price\", \"interval\": 100, " +
+                                 "  \"facet\": { \"terms\" : { \"field\": \"tag\"}}  " +
+                                 "}      }      }"
+                         ).getBytes("UTF-8"))
+                 .execute().actionGet();
+
+         FacetedHistogramFacet facet = searchResponse.facets().facet("facet1");
+         List<Entry> entries = facet.entries();
+         assertThat(entries.size(), equalTo(3));
+
+         assertThat(entries.get(0).key, equalTo(-100.0));
+         assertThat(entries.get(0).count(), equalTo(1L));
+
+         assertThat(entries.get(1).key, equalTo(0.0));
+         assertThat(entries.get(1).count(), equalTo(2L));
+         TermsFacet first = (TermsFacet) entries.get(1).facet();
+         assertThat(first.getEntries().get(0).getTerm(), equalTo("cheap"));
+         assertThat(first.getEntries().get(0).getCount(), equalTo(2));
+
+         assertThat(entries.get(2).key, equalTo(200.0));
+         assertThat(entries.get(2).count(), equalTo(1L));
+      }
+   }
+
+   @Test
+   public void HardBoundsAndMinDocCountTest() throws Exception {
+      for (int i = 0; i < numberOfRuns(); i++) {
+         SearchResponse searchResponse = client
+                 .prepareSearch()
+                 .setSearchType(SearchType.COUNT)
+                 .setFacets(
+                         ("{ \"facet1\": { \"faceted_histogram\" : " +
+                                 "{ \"field\": \"price\", \"interval\": 100, \"min_doc_count\": 2, " +
+                                 "  \"hard_bounds\": { \"min\": 0, \"max\": 1000 }, " +
+                                 "  \"facet\": { \"terms\" : { \"field\": \"tag\"}}  " +
+                                 "}      }      }"
+                         ).getBytes("UTF-8"))
+                 .execute().actionGet();
+
+         FacetedHistogramFacet facet = searchResponse.facets().facet("facet1");
+         List<Entry> entries = facet.entries();
+         assertThat(entries.size(), equalTo(1));
+         assertThat(entries.get(0).key, equalTo(0.0));
+         assertThat(entries.get(0).count(), equalTo(2L));
+      }
+   }
+
+   @Test
+   public void FractionalIntervalTest() throws Exception {
+      for (int i = 0; i < numberOfRuns(); i++) {
+         SearchResponse searchResponse = client
+                 .prepareSearch()
+                 .setSearchType(SearchType.COUNT)
+                 .setFacets(
+                         ("{ \"facet1\": { \"faceted_histogram\" : " +
+                                 "{ \"field\": \"price\", \"interval\": 12.5, " +
+                                 "  \"facet\": { \"terms\" : { \"field\": \"tag\"}}  " +
+                                 "}      }      }"
+                         ).getBytes("UTF-8"))
+                 .execute().actionGet();
+
+         FacetedHistogramFacet facet = searchResponse.facets().facet("facet1");
+         List<Entry> entries = facet.entries();
+         assertThat(entries.size(), equalTo(4));
+         assertThat(entries.get(0).key, equalTo(-12.5));
+         assertThat(entries.get(1).key, equalTo(12.5));
+         assertThat(entries.get(2).key, equalTo(37.5));
+         assertThat(entries.get(3).key, equalTo(250.0));
+         assertThat(entries.get(3).count(), equalTo(1L));
+      }
+   }
+
+   @Test
+   public void NaNIsSkippedTest() throws Exception {
+      for (int i = 0; i < numberOfRuns(); i++) {
+         SearchResponse searchResponse = client
+                 .prepareSearch()
+                 .setSearchType(SearchType.COUNT)
+                 .setFacets(
+                         ("{ \"facet1\": { \"faceted_histogram\" : " +
+                                 "{ \"field\": \"score\", \"interval\": 1, " +
+                                 "  \"facet\": { \"terms\" : { \"field\": \"tag\"}}  " +
+                                 "}      }      }"
+                         ).getBytes("UTF-8"))
+                 .execute().actionGet();
+
+         FacetedHistogramFacet facet = searchResponse.facets().facet("facet1");
+         List<Entry> entries = facet.entries();
+         assertThat(entries.size(), equalTo(1));
+         assertThat(entries.get(0).key, equalTo(1.0));
+         assertThat(entries.get(0).count(), equalTo(1L));
+      }
+   }
+
+}
@@ -0,0 +1,75 @@
+package org.leskes.test.elasticfacets.facets;
+
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.facet.terms.TermsFacet;
+import org.leskes.elasticfacets.utils.SizeSensitiveCacheRecycler;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+/**
+ * The count buffers of every segment are leased off heap, and must go back to the recycler when the facet fails.
+ */
+public class HashedStringsFacetOffHeapTest extends AbstractFacetTest {
+
+   @Override
+   protected void configureNodeSettings(ImmutableSettings.Builder settingsBuilder) {
+      super.configureNodeSettings(settingsBuilder);
+      settingsBuilder.put("facet.recycler.off_heap.min_size", 1);
+   }
+
+   @Override
+   protected void loadData() throws Exception {
+      client.prepareIndex("test", "type1")
+              .setSource(jsonBuilder().startObject().field("tag", "green").endObject()).execute().actionGet();
+      client.admin().indices().prepareFlush().setRefresh(true).execute().actionGet();
+      client.prepareIndex("test", "type1")
+              .setSource(jsonBuilder().startObject().field("tag", "blue").endObject()).execute().actionGet();
+   }
+
+   SearchResponse search(int size) throws IOException {
+      return client
+              .prepareSearch()
+              .setSearchType(SearchType.COUNT)
+              .setFacets(
+                      XContentFactory.jsonBuilder().startObject()
+                              .startObject("facet1")
+                              .startObject("hashed_terms")
+                              .field("field", "tag").field("size", size).endObject()
+                              .endObject().endObject().bytes()).execute()
+              .actionGet();
+   }
+
+   @Test
+   public void FailedFacetReturnsItsBuffers() throws Exception {
+      SizeSensitiveCacheRecycler.clear();
+      TermsFacet facet = search(10).facets().facet("facet1");
+      assertThat(facet.entries().size(), equalTo(2));
+      SizeSensitiveCacheRecycler.Stats stats = SizeSensitiveCacheRecycler.stats();
+      assertThat(stats.offHeapBytes(), greaterThan(0L));
+
+      // sizes beyond the priority queue limit are not supported, the facet fails after collecting
+      try {
+         SearchResponse response = search(10000);
+         assertThat(response.failedShards(), greaterThan(0));
+      } catch (SearchPhaseExecutionException e) {
+         // all shards failed, as expected
+      }
+
+      // the buffers of the failed facet were pushed back, so this one reuses them rather than allocating more
+      facet = search(10).facets().facet("facet1");
+      assertThat(facet.entries().size(), equalTo(2));
+      assertThat(SizeSensitiveCacheRecycler.stats().offHeapBytes(), lessThanOrEqualTo(stats.offHeapBytes()));
+      assertThat(SizeSensitiveCacheRecycler.stats().offHeapFallbacks(), equalTo(stats.offHeapFallbacks()));
+   }
+}
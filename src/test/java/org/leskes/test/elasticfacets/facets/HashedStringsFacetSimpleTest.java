@@ -5,12 +5,17 @@ import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.search.facet.terms.TermsFacet;
+import org.leskes.elasticfacets.FacetProfile;
+import org.leskes.elasticfacets.HashedStringsFacet;
 import org.testng.annotations.Test;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.anyOf;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 
 /**
  *
@@ -52,6 +57,39 @@ public class HashedStringsFacetSimpleTest extends AbstractFacetTest {
 	}
 
 
+	@Test
+	public void ProfiledHashStringFacet() throws Exception {
+		SearchResponse searchResponse = client
+				.prepareSearch()
+				.setSearchType(SearchType.COUNT)
+				.setFacets(
+						XContentFactory.jsonBuilder().startObject()
+								.startObject("facet1")
+								.startObject("hashed_terms")
+								.field("field", "tag").field("profile", true).endObject()
+								.endObject().endObject().bytes()).execute()
+				.actionGet();
+
+		HashedStringsFacet facet = searchResponse.facets().facet("facet1");
+		assertThat(facet.entries().size(), equalTo(2));
+		assertThat(facet.profile(), notNullValue());
+		assertThat(facet.profile().nanos(FacetProfile.Phase.COLLECT), greaterThan(0L));
+		assertThat(facet.profile().nanos(FacetProfile.Phase.TERMS), greaterThan(0L));
+
+		searchResponse = client
+				.prepareSearch()
+				.setSearchType(SearchType.COUNT)
+				.setFacets(
+						XContentFactory.jsonBuilder().startObject()
+								.startObject("facet1")
+								.startObject("hashed_terms")
+								.field("field", "tag").endObject()
+								.endObject().endObject().bytes()).execute()
+				.actionGet();
+		facet = searchResponse.facets().facet("facet1");
+		assertThat(facet.profile(), nullValue());
+	}
+
 	@Override
 	protected void loadData() throws Exception  {
 	
@@ -0,0 +1,61 @@
+package org.leskes.test.elasticfacets.fields;
+
+import org.leskes.elasticfacets.fields.ExcludePattern;
+import org.testng.annotations.Test;
+
+import java.util.regex.Pattern;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ExcludePatternTest {
+
+   static final String[] TERMS = {"", "a", "A", "ab", "abc", "ABC", "aBd", "b", "ba", "cab", "xab", "x.y", "xzy",
+           "123", "12", "ab\ncd", "\u00e9t\u00e9", "\u00c9T\u00c9", "a|b", "a.*", "ab\\", "ab\\x", "foo", "foo\nbar",
+           "xfoo\r", "\nab"};
+
+   static final String[] REGEXES = {"a", "ab.*", ".*ab", ".*ab.*", "a|ab.*|.*b", "\\d{3}|a", "x\\.y", "x.y",
+           "a\\|b", "a\\.\\*", ".*", "[ab]+|c.*", "(ab)*", "ab.*?", "\u00e9t\u00e9", "\\Qa|b\\E", "ab\\\\.*", "foo.*",
+           ".*foo.*"};
+
+   @Test
+   public void testMatchesLikeTheRegex() throws Exception {
+      for (int flags : new int[]{0, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE, Pattern.CASE_INSENSITIVE,
+              Pattern.DOTALL, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL}) {
+         for (String regex : REGEXES) {
+            Pattern pattern = Pattern.compile(regex, flags);
+            ExcludePattern.TermMatcher matcher = new ExcludePattern(pattern).newMatcher();
+            for (String term : TERMS) {
+               assertThat("[" + regex + "] (flags " + flags + ") on [" + term + "]", matcher.matches(term),
+                       equalTo(pattern.matcher(term).matches()));
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testSkippedPrefixes() throws Exception {
+      assertThat(new ExcludePattern(Pattern.compile("ab.*|a.*|\\d.*|b|.*c.*", Pattern.DOTALL)).skippedPrefixes(),
+              equalTo(new String[]{"a"}));
+      assertThat(new ExcludePattern(Pattern.compile("ab.*|x\\..*|b", Pattern.DOTALL)).skippedPrefixes(),
+              equalTo(new String[]{"ab", "x."}));
+      assertThat(new ExcludePattern(Pattern.compile("Ab.*",
+              Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL)).skippedPrefixes(),
+              equalTo(new String[]{"AB", "Ab", "ab"}));
+      assertThat(new ExcludePattern(Pattern.compile(".*|(ab).*", Pattern.DOTALL)).skippedPrefixes(),
+              equalTo(new String[0]));
+   }
+
+   @Test
+   public void testNoSkippedPrefixesWithoutDotAll() throws Exception {
+      // "foo\nbar" starts with the prefix but doesn't match, so the range may not be skipped
+      Pattern pattern = Pattern.compile("foo.*", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+      assertThat(pattern.matcher("foo\nbar").matches(), equalTo(false));
+      assertThat(new ExcludePattern(pattern).skippedPrefixes(), equalTo(new String[0]));
+      assertThat(new ExcludePattern(pattern).newMatcher().matches("foo\nbar"), equalTo(false));
+
+      pattern = Pattern.compile("foo.*", Pattern.DOTALL);
+      assertThat(new ExcludePattern(pattern).skippedPrefixes(), equalTo(new String[]{"foo"}));
+      assertThat(new ExcludePattern(pattern).newMatcher().matches("foo\nbar"), equalTo(true));
+   }
+}
@@ -0,0 +1,108 @@
+package org.leskes.test.elasticfacets.fields;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.elasticsearch.common.lucene.DocumentBuilder;
+import org.elasticsearch.common.lucene.Lucene;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.cache.field.data.FieldDataCache;
+import org.elasticsearch.index.cache.field.data.soft.SoftFieldDataCache;
+import org.leskes.elasticfacets.fields.FieldLoadStats;
+import org.leskes.elasticfacets.fields.HashedStringFieldData;
+import org.leskes.elasticfacets.fields.HashedStringFieldDataCache;
+import org.leskes.elasticfacets.fields.HashedStringFieldType;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.Builder.EMPTY_SETTINGS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class HashedStringFieldDataCacheTest {
+
+   /**
+    * Counts its loads and holds them until released.
+    */
+   static class BlockingFieldType extends HashedStringFieldType {
+      final AtomicInteger loads = new AtomicInteger();
+      final CountDownLatch loading = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+
+      BlockingFieldType(HashedStringFieldData.HashedStringTypeLoader loader) {
+         super(loader);
+      }
+
+      @Override
+      public HashedStringFieldData load(IndexReader reader, String fieldName) throws IOException {
+         loads.incrementAndGet();
+         loading.countDown();
+         try {
+            release.await();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         return super.load(reader, fieldName);
+      }
+   }
+
+   @Test
+   public void testConcurrentLoadsOfASegmentAreDoneOnce() throws Exception {
+      IndexWriter indexWriter = new IndexWriter(new RAMDirectory(),
+              new IndexWriterConfig(Lucene.VERSION, Lucene.STANDARD_ANALYZER));
+      for (int i = 0; i < 20; i++) {
+         indexWriter.addDocument(DocumentBuilder.doc().add(DocumentBuilder.field("svalue", "s" + (i % 7))).build());
+      }
+      final IndexReader segment = IndexReader.open(indexWriter, true).getSequentialSubReaders()[0];
+
+      final FieldDataCache fieldDataCache = new SoftFieldDataCache(new Index("test"), EMPTY_SETTINGS);
+      final HashedStringFieldDataCache cache = new HashedStringFieldDataCache();
+      FieldLoadStats loadStats = new FieldLoadStats(null);
+      final BlockingFieldType type = new BlockingFieldType(
+              new HashedStringFieldData.HashedStringTypeLoader(0, 0, null, null, 0, 0, loadStats));
+
+      int threads = 8;
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+         final CountDownLatch start = new CountDownLatch(1);
+         List<Future<HashedStringFieldData>> results = new ArrayList<Future<HashedStringFieldData>>();
+         for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(new Callable<HashedStringFieldData>() {
+               public HashedStringFieldData call() throws Exception {
+                  start.await();
+                  return cache.cache(fieldDataCache, type, segment, "svalue");
+               }
+            }));
+         }
+         start.countDown();
+         assertThat(type.loading.await(10, TimeUnit.SECONDS), equalTo(true));
+         // let the other threads find the running load before it completes
+         Thread.sleep(100);
+         type.release.countDown();
+
+         HashedStringFieldData first = results.get(0).get(10, TimeUnit.SECONDS);
+         for (Future<HashedStringFieldData> result : results) {
+            assertThat(result.get(10, TimeUnit.SECONDS), sameInstance(first));
+         }
+      } finally {
+         executor.shutdownNow();
+         indexWriter.close();
+      }
+
+      assertThat(type.loads.get(), equalTo(1));
+      assertThat(loadStats.get("svalue").loadCount(), equalTo(1L));
+      assertThat(loadStats.loadedFieldData().size(), equalTo(1));
+   }
+}
@@ -0,0 +1,210 @@
+package org.leskes.test.elasticfacets.fields;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.RAMDirectory;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.lucene.DocumentBuilder;
+import org.elasticsearch.common.lucene.Lucene;
+import org.elasticsearch.index.field.data.FieldData;
+import org.leskes.elasticfacets.fields.FieldLoadStats;
+import org.leskes.elasticfacets.fields.HashedStringFieldData;
+import org.leskes.elasticfacets.fields.HashedStringFieldDataStore;
+import org.leskes.elasticfacets.fields.HashedStringFieldType;
+import org.leskes.elasticfacets.fields.PersistedHashedStringFieldType;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class HashedStringFieldDataStoreTest {
+
+   File dir;
+   IndexWriter indexWriter;
+   SegmentReader segment;
+   HashedStringFieldDataStore store;
+
+   @BeforeMethod
+   public void setUp() throws Exception {
+      dir = File.createTempFile("hashed_strings", "");
+      dir.delete();
+      dir.mkdir();
+      store = new HashedStringFieldDataStore(dir, Loggers.getLogger(HashedStringFieldDataStoreTest.class));
+
+      indexWriter = new IndexWriter(new RAMDirectory(), new IndexWriterConfig(Lucene.VERSION, Lucene.STANDARD_ANALYZER));
+      for (int i = 0; i < 50; i++) {
+         DocumentBuilder d = DocumentBuilder.doc();
+         if (i % 4 != 0) d.add(DocumentBuilder.field("svalue", "s" + (i % 9)));
+         if (i % 5 != 0) d.add(DocumentBuilder.field("mvalue", "m" + (i % 7)));
+         if (i % 3 == 0) d.add(DocumentBuilder.field("mvalue", "m" + (i % 11)));
+         indexWriter.addDocument(d.build());
+      }
+      IndexReader reader = IndexReader.open(indexWriter, true);
+      segment = (SegmentReader) reader.getSequentialSubReaders()[0];
+   }
+
+   @AfterMethod
+   public void tearDown() throws Exception {
+      indexWriter.close();
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+   }
+
+   HashedStringFieldData load(String field) throws IOException {
+      return load(field, 0);
+   }
+
+   HashedStringFieldData load(String field, int topK) throws IOException {
+      return new HashedStringFieldType(new HashedStringFieldData.HashedStringTypeLoader(0, 0, null, null, 0, topK, null))
+              .load(segment, field);
+   }
+
+   @Test
+   public void testRoundTrip() throws Exception {
+      for (String field : new String[]{"svalue", "mvalue"}) {
+         assertRoundTrip(field, load(field));
+      }
+   }
+
+   @Test
+   public void testRoundTripOfFoldedTerms() throws Exception {
+      for (String field : new String[]{"svalue", "mvalue"}) {
+         HashedStringFieldData loaded = load(field, 3);
+         assertThat(loaded.otherOrdinal(), equalTo(4));
+         assertRoundTrip(field, loaded);
+      }
+   }
+
+   void assertRoundTrip(String field, HashedStringFieldData loaded) {
+      store.write(segment, field, 1, loaded);
+
+      for (boolean mapped : new boolean[]{false, true}) {
+         HashedStringFieldData read = store.read(segment, field, 1, mapped);
+         assertThat(read, notNullValue());
+         assertThat(read.multiValued(), equalTo(loaded.multiValued()));
+         assertThat(read.values(), equalTo(loaded.values()));
+         assertThat(read.valueCount(), equalTo(loaded.valueCount()));
+         assertThat(read.otherOrdinal(), equalTo(loaded.otherOrdinal()));
+         for (int doc = 0; doc < segment.maxDoc(); doc++) {
+            String message = "doc " + doc + " of " + field + (mapped ? " (mapped)" : "");
+            assertThat(message, read.hasValue(doc), equalTo(loaded.hasValue(doc)));
+            assertThat(message, ordinals(read, doc), equalTo(ordinals(loaded, doc)));
+            assertThat(message, hashes(read, doc), equalTo(hashes(loaded, doc)));
+         }
+      }
+
+      assertThat(store.read(segment, field, 2, false), nullValue());
+   }
+
+   @Test
+   public void testLoadStatsTrackTheReturnedFieldData() throws Exception {
+      for (boolean mapped : new boolean[]{false, true}) {
+         FieldLoadStats loadStats = new FieldLoadStats(null);
+         PersistedHashedStringFieldType type = new PersistedHashedStringFieldType(
+                 new HashedStringFieldData.HashedStringTypeLoader(0, 0, null, null, 0, 0, loadStats), null, store, mapped);
+         // the first load builds and stores the field data, the second one reads the stored file
+         for (int i = 0; i < 2; i++) {
+            HashedStringFieldData fieldData = type.load(segment, "mvalue");
+            String message = (mapped ? "mapped" : "heap") + " load " + i;
+            assertThat(message, loadStats.loadedFieldData().size(), equalTo(1));
+            assertThat(message, loadStats.loadedFieldData().get(0).fieldData(),
+                    sameInstance((FieldData) fieldData));
+         }
+         assertThat(loadStats.get("mvalue").loadCount(), equalTo(2L));
+         for (File f : dir.listFiles()) f.delete();
+      }
+   }
+
+   @Test
+   public void testStaleFilesAreDeleted() throws Exception {
+      store.write(segment, "svalue", 1, load("svalue"));
+      File mergedAway = new File(dir, "_zz.svalue-0.1.hsf");
+      mergedAway.createNewFile();
+
+      // new settings replace the file of the old ones
+      store.write(segment, "svalue", 2, load("svalue"));
+
+      assertThat(mergedAway.exists(), equalTo(false));
+      assertThat(store.read(segment, "svalue", 1, false), nullValue());
+      assertThat(store.read(segment, "svalue", 2, false), notNullValue());
+      assertThat(dir.list().length, equalTo(1));
+   }
+
+   @Test
+   public void testFileOfAnotherSegmentWithTheSameNameIsDeleted() throws Exception {
+      store.write(segment, "svalue", 1, load("svalue"));
+
+      // another copy of the shard, whose first segment has the same name and number of docs
+      IndexWriter otherWriter = new IndexWriter(new RAMDirectory(),
+              new IndexWriterConfig(Lucene.VERSION, Lucene.STANDARD_ANALYZER));
+      try {
+         for (int i = 0; i < 50; i++) {
+            otherWriter.addDocument(DocumentBuilder.doc().add(DocumentBuilder.field("svalue", "other" + i)).build());
+         }
+         SegmentReader otherSegment =
+                 (SegmentReader) IndexReader.open(otherWriter, true).getSequentialSubReaders()[0];
+         assertThat(otherSegment.getSegmentName(), equalTo(segment.getSegmentName()));
+         assertThat(otherSegment.maxDoc(), equalTo(segment.maxDoc()));
+
+         assertThat(store.read(otherSegment, "svalue", 1, false), nullValue());
+         assertThat(dir.list().length, equalTo(0));
+      } finally {
+         otherWriter.close();
+      }
+   }
+
+   @Test
+   public void testCorruptedFileIsIgnored() throws Exception {
+      store.write(segment, "mvalue", 1, load("mvalue"));
+      File file = dir.listFiles()[0];
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+         out.write(new byte[]{1, 2, 3});
+      } finally {
+         out.close();
+      }
+
+      assertThat(store.read(segment, "mvalue", 1, true), nullValue());
+      assertThat(file.exists(), equalTo(false));
+   }
+
+   List<Integer> ordinals(HashedStringFieldData fieldData, int doc) {
+      final List<Integer> ret = new ArrayList<Integer>();
+      fieldData.forEachOrdinalInDoc(doc, new FieldData.OrdinalInDocProc() {
+         @Override
+         public void onOrdinal(int docId, int ordinal) {
+            ret.add(ordinal);
+         }
+      });
+      return ret;
+   }
+
+   List<Integer> hashes(HashedStringFieldData fieldData, int doc) {
+      final List<Integer> ret = new ArrayList<Integer>();
+      fieldData.forEachValueInDoc(doc, new HashedStringFieldData.HashedStringValueInDocProc() {
+         @Override
+         public void onValue(int docId, int hash) {
+            ret.add(hash);
+         }
+
+         @Override
+         public void onMissing(int docId) {
+            ret.add(null);
+         }
+      });
+      return ret;
+   }
+}
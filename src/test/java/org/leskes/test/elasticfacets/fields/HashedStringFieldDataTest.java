@@ -1,19 +1,24 @@
 package org.leskes.test.elasticfacets.fields;
 
 import org.apache.lucene.analysis.miscellaneous.PatternAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.Version;
+import org.elasticsearch.ElasticSearchException;
 import org.elasticsearch.common.lucene.DocumentBuilder;
 import org.elasticsearch.common.lucene.Lucene;
 import org.elasticsearch.common.trove.set.hash.TIntHashSet;
 import org.elasticsearch.index.analysis.NamedAnalyzer;
 import org.elasticsearch.index.field.data.FieldData.OrdinalInDocProc;
+import org.leskes.elasticfacets.fields.FieldLoadStats;
 import org.leskes.elasticfacets.fields.HashedStringFieldData;
 import org.leskes.elasticfacets.fields.HashedStringFieldType;
+import org.leskes.elasticfacets.fields.MultiSweepFieldDataLoader;
 import org.leskes.elasticfacets.fields.MultiValueHashedStringFieldData;
 import org.leskes.elasticfacets.fields.SingleValueHashedStringFieldData;
 import org.testng.AssertJUnit;
@@ -21,11 +26,20 @@ import org.testng.annotations.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.lessThan;
 
 public class HashedStringFieldDataTest {
 	protected void assertHash(String A, String B) {
@@ -257,6 +271,395 @@ public class HashedStringFieldDataTest {
       indexWriter.close();
    }
 	
+   @Test
+   public void TestTypeIsReusableAcrossLoads() throws Exception {
+      Directory dir = new RAMDirectory();
+      IndexWriter indexWriter = new IndexWriter(dir, new IndexWriterConfig(
+              Lucene.VERSION, Lucene.STANDARD_ANALYZER));
+
+      indexWriter.addDocument(DocumentBuilder.doc()
+              .add(DocumentBuilder.field("mvalue", "zzz"))
+              .add(DocumentBuilder.field("mvalue", "123")).build());
+
+      indexWriter.addDocument(DocumentBuilder.doc()
+              .add(DocumentBuilder.field("mvalue", "aaa"))
+              .add(DocumentBuilder.field("other", "bbb")).build());
+
+      IndexReader reader = IndexReader.open(indexWriter, true);
+
+      HashedStringFieldType type = new HashedStringFieldType(
+              new HashedStringFieldData.HashedStringTypeLoader(0,0, Pattern.compile("\\d{3}"), null));
+
+      // load state must not leak from one load to the next
+      HashedStringFieldData first = type.load(reader, "mvalue");
+      HashedStringFieldData other = type.load(reader, "other");
+      HashedStringFieldData second = type.load(reader, "mvalue");
+
+      assertFieldWithSet(first, 0, new String[] { "zzz" });
+      assertFieldWithSet(first, 1, new String[] { "aaa" });
+      assertFieldWithSet(other, 0, new String[] { });
+      assertFieldWithSet(other, 1, new String[] { "bbb" });
+      assertFieldWithSet(second, 0, new String[] { "zzz" });
+      assertFieldWithSet(second, 1, new String[] { "aaa" });
+
+      indexWriter.close();
+   }
+
+   @Test
+   public void TestParallelSweepMatchesSequential() throws Exception {
+      Directory dir = new RAMDirectory();
+      IndexWriter indexWriter = new IndexWriter(dir, new IndexWriterConfig(
+              Lucene.VERSION, Lucene.STANDARD_ANALYZER));
+
+      for (int i = 0; i < 100; i++) {
+         DocumentBuilder d = DocumentBuilder.doc();
+         if (i % 7 != 0) d.add(DocumentBuilder.field("mvalue", "t" + (i % 13)));
+         if (i % 3 == 0) d.add(DocumentBuilder.field("mvalue", "t" + (i % 5)));
+         if (i % 11 == 0) d.add(DocumentBuilder.field("mvalue", "x" + i));
+         indexWriter.addDocument(d.build());
+      }
+
+      IndexReader reader = IndexReader.open(indexWriter, true);
+      HashedStringFieldData.HashedStringTypeLoader loader =
+              new HashedStringFieldData.HashedStringTypeLoader(0, 2, Pattern.compile("t1.*"), null);
+
+      HashedStringFieldData sequential = new HashedStringFieldType(loader).load(reader, "mvalue");
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+         HashedStringFieldData parallel = new HashedStringFieldType(loader,
+                 new MultiSweepFieldDataLoader.ParallelSweeps(executor, 1, 3)).load(reader, "mvalue");
+
+         assertThat(parallel.multiValued(), equalTo(sequential.multiValued()));
+         assertThat(parallel.values(), equalTo(sequential.values()));
+         ArrayList<Integer> expected = new ArrayList<Integer>();
+         ArrayList<Integer> actual = new ArrayList<Integer>();
+         for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            assertThat(getDocOrdinals(doc, parallel, actual), equalTo(getDocOrdinals(doc, sequential, expected)));
+            assertThat("ordinals of doc " + doc, actual, equalTo(expected));
+         }
+      } finally {
+         executor.shutdown();
+      }
+
+      indexWriter.close();
+   }
+
+   @Test
+   public void TestParallelSweepWithBudgetAndTopK() throws Exception {
+      Directory dir = new RAMDirectory();
+      IndexWriter indexWriter = new IndexWriter(dir, new IndexWriterConfig(
+              Lucene.VERSION, Lucene.STANDARD_ANALYZER));
+
+      for (int i = 0; i < 200; i++) {
+         DocumentBuilder d = DocumentBuilder.doc();
+         d.add(DocumentBuilder.field("mvalue", "t" + (i % 17)));
+         if (i % 2 == 0) d.add(DocumentBuilder.field("mvalue", "u" + (i % 9)));
+         d.add(DocumentBuilder.field("mvalue", "x" + i));
+         indexWriter.addDocument(d.build());
+      }
+
+      IndexReader reader = IndexReader.open(indexWriter, true);
+      // the budget drops the terms of a single doc, top_k folds the rarer of the rest
+      HashedStringFieldData.HashedStringTypeLoader loader =
+              new HashedStringFieldData.HashedStringTypeLoader(0, 0, null, null, 2500, 10, null);
+
+      HashedStringFieldData sequential = new HashedStringFieldType(loader).load(reader, "mvalue");
+      assertThat(sequential.otherOrdinal(), greaterThan(0));
+      ExecutorService executor = Executors.newFixedThreadPool(3);
+      try {
+         HashedStringFieldData parallel = new HashedStringFieldType(loader,
+                 new MultiSweepFieldDataLoader.ParallelSweeps(executor, 1, 4)).load(reader, "mvalue");
+
+         assertThat(parallel.values(), equalTo(sequential.values()));
+         assertThat(parallel.otherOrdinal(), equalTo(sequential.otherOrdinal()));
+         ArrayList<Integer> expected = new ArrayList<Integer>();
+         ArrayList<Integer> actual = new ArrayList<Integer>();
+         for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            getDocOrdinals(doc, sequential, expected);
+            getDocOrdinals(doc, parallel, actual);
+            // the other ordinal of folded terms may come in another order
+            Collections.sort(expected);
+            Collections.sort(actual);
+            assertThat("ordinals of doc " + doc, actual, equalTo(expected));
+         }
+      } finally {
+         executor.shutdown();
+      }
+
+      indexWriter.close();
+   }
+
+   /**
+    * Sweeps every range with a delay per term, failing in the first one once another range started.
+    */
+   static class FailingLoader implements MultiSweepFieldDataLoader.ParallelTypeLoader<HashedStringFieldData> {
+      final CountDownLatch rangeStarted = new CountDownLatch(1);
+      final AtomicInteger sweeping = new AtomicInteger();
+      final AtomicInteger termsSwept = new AtomicInteger();
+
+      @Override
+      public void init(String field, int docCount) {
+      }
+
+      @Override
+      public MultiSweepFieldDataLoader.TERM_STATE collectTerm(String term, int termDocCount) {
+         try {
+            rangeStarted.await(10, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         throw new ElasticSearchException("failed on " + term);
+      }
+
+      @Override
+      public void addTermDoc(int doc) {
+      }
+
+      @Override
+      public boolean finalizeSweep() {
+         return false;
+      }
+
+      @Override
+      public HashedStringFieldData buildFieldData() {
+         return null;
+      }
+
+      @Override
+      public void loadCompleted(IndexReader reader, HashedStringFieldData fieldData, long loadTimeNanos) {
+      }
+
+      @Override
+      public List<MultiSweepFieldDataLoader.TermDocsSweeper> newRangeSweepers(int count) {
+         List<MultiSweepFieldDataLoader.TermDocsSweeper> sweepers =
+                 new ArrayList<MultiSweepFieldDataLoader.TermDocsSweeper>();
+         for (int i = 0; i < count; i++) {
+            sweepers.add(new MultiSweepFieldDataLoader.TermDocsSweeper() {
+               @Override
+               public MultiSweepFieldDataLoader.TERM_STATE collectTerm(String term, int termDocCount) {
+                  sweeping.incrementAndGet();
+                  rangeStarted.countDown();
+                  try {
+                     Thread.sleep(5);
+                  } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                  }
+                  termsSwept.incrementAndGet();
+                  sweeping.decrementAndGet();
+                  return MultiSweepFieldDataLoader.TERM_STATE.PROCESS;
+               }
+
+               @Override
+               public void addTermDoc(int doc) {
+               }
+            });
+         }
+         return sweepers;
+      }
+
+      @Override
+      public void rangeSweepsDone(List<MultiSweepFieldDataLoader.TermDocsSweeper> sweepers) {
+      }
+   }
+
+   @Test
+   public void TestFailedSweepWaitsForStartedRanges() throws Exception {
+      Directory dir = new RAMDirectory();
+      IndexWriter indexWriter = new IndexWriter(dir, new IndexWriterConfig(
+              Lucene.VERSION, Lucene.STANDARD_ANALYZER));
+
+      for (int i = 0; i < 300; i++) {
+         indexWriter.addDocument(DocumentBuilder.doc().add(DocumentBuilder.field("svalue", "t" + (1000 + i))).build());
+      }
+
+      IndexReader reader = IndexReader.open(indexWriter, true);
+      FailingLoader loader = new FailingLoader();
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+         try {
+            MultiSweepFieldDataLoader.load(reader, "svalue", loader,
+                    new MultiSweepFieldDataLoader.ParallelSweeps(executor, 1, 3));
+            AssertJUnit.fail("the first range should have failed the load");
+         } catch (ElasticSearchException e) {
+            // expected
+         }
+         // no range is still running, and none starts later
+         assertThat(loader.sweeping.get(), equalTo(0));
+         int swept = loader.termsSwept.get();
+         assertThat(swept, lessThan(200));
+         Thread.sleep(50);
+         assertThat(loader.termsSwept.get(), equalTo(swept));
+      } finally {
+         executor.shutdown();
+      }
+
+      indexWriter.close();
+   }
+
+   @Test
+   public void TestMaxMemoryDropsRareTerms() throws Exception {
+      Directory dir = new RAMDirectory();
+      IndexWriter indexWriter = new IndexWriter(dir, new IndexWriterConfig(
+              Lucene.VERSION, Lucene.STANDARD_ANALYZER));
+
+      for (int i = 0; i < 100; i++) {
+         String term = i < 80 ? "common" + (i % 3) : "rare" + i;
+         indexWriter.addDocument(DocumentBuilder.doc().add(DocumentBuilder.field("svalue", term)).build());
+      }
+
+      IndexReader reader = IndexReader.open(indexWriter, true);
+      FieldLoadStats loadStats = new FieldLoadStats(null);
+
+      // 23 terms and 100 docs take 4*24+4*100 bytes, without the 20 rare terms they fit
+      HashedStringFieldType type = new HashedStringFieldType(
+              new HashedStringFieldData.HashedStringTypeLoader(0, 0, null, null, 450, 0, loadStats));
+      HashedStringFieldData fieldData = type.load(reader, "svalue");
+
+      assertThat(fieldData.valueCount(), equalTo(4));
+      assertFieldWithSet(fieldData, 0, new String[] { "common0" });
+      assertFieldWithSet(fieldData, 79, new String[] { "common1" });
+      assertFieldWithSet(fieldData, 80, new String[] { });
+      assertFieldWithSet(fieldData, 99, new String[] { });
+      assertThat(loadStats.get("svalue").skippedTerms(), equalTo(20L));
+      assertThat(loadStats.get("svalue").budgetMinDocsPerTerm(), equalTo(2));
+
+      // a budget which fits leaves the field alone
+      loadStats = new FieldLoadStats(null);
+      fieldData = new HashedStringFieldType(
+              new HashedStringFieldData.HashedStringTypeLoader(0, 0, null, null, 1000, 0, loadStats)).load(reader, "svalue");
+      assertThat(fieldData.valueCount(), equalTo(24));
+      assertThat(loadStats.get("svalue").budgetMinDocsPerTerm(), equalTo(0));
+
+      indexWriter.close();
+   }
+
+   @Test
+   public void TestTopKFoldsRareTerms() throws Exception {
+      Directory dir = new RAMDirectory();
+      IndexWriter indexWriter = new IndexWriter(dir, new IndexWriterConfig(
+              Lucene.VERSION, Lucene.STANDARD_ANALYZER));
+
+      for (int i = 0; i < 50; i++) {
+         String term = i < 20 ? "aaa" : i < 35 ? "bbb" : i < 45 ? "ccc" : "ddd" + i;
+         indexWriter.addDocument(DocumentBuilder.doc()
+                 .add(DocumentBuilder.field("svalue", term))
+                 .add(DocumentBuilder.field("mvalue", "xxx"))
+                 .add(DocumentBuilder.field("mvalue", "yyy" + i))
+                 .add(DocumentBuilder.field("mvalue", "zzz" + i)).build());
+      }
+
+      IndexReader reader = IndexReader.open(indexWriter, true);
+
+      HashedStringFieldType type = new HashedStringFieldType(
+              new HashedStringFieldData.HashedStringTypeLoader(0, 0, null, null, 0, 2, null));
+      HashedStringFieldData sFieldData = type.load(reader, "svalue");
+
+      // aaa and bbb keep their ordinals, the rest share the last one
+      assertThat(sFieldData.termCount(), equalTo(2));
+      assertThat(sFieldData.otherOrdinal(), equalTo(3));
+      assertThat(sFieldData.valueCount(), equalTo(4));
+      assertFieldWithSet(sFieldData, 0, new String[] { "aaa" });
+      assertFieldWithSet(sFieldData, 34, new String[] { "bbb" });
+      ArrayList<Integer> ordinals = new ArrayList<Integer>();
+      for (int doc : new int[] { 35, 49 }) {
+         assertThat(sFieldData.hasValue(doc), equalTo(true));
+         getDocOrdinals(doc, sFieldData, ordinals);
+         assertThat(ordinals, equalTo(Arrays.asList(3)));
+      }
+
+      HashedStringFieldData mFieldData = type.load(reader, "mvalue");
+      assertThat(mFieldData.multiValued(), equalTo(true));
+      assertThat(mFieldData.termCount(), equalTo(2));
+      int otherOrdinal = mFieldData.otherOrdinal();
+      for (int doc = 0; doc < 50; doc++) {
+         getDocOrdinals(doc, mFieldData, ordinals);
+         assertThat(ordinals.size(), equalTo(3));
+         assertThat(ordinals, hasItem(otherOrdinal));
+      }
+
+      // a top_k above the number of terms changes nothing
+      sFieldData = new HashedStringFieldType(
+              new HashedStringFieldData.HashedStringTypeLoader(0, 0, null, null, 0, 10, null)).load(reader, "svalue");
+      assertThat(sFieldData.otherOrdinal(), equalTo(0));
+      assertThat(sFieldData.termCount(), equalTo(8));
+
+      indexWriter.close();
+   }
+
+   @Test
+   public void TestExcludedPrefixesAreSkipped() throws Exception {
+      Directory dir = new RAMDirectory();
+      IndexWriter indexWriter = new IndexWriter(dir, new IndexWriterConfig(
+              Lucene.VERSION, Lucene.STANDARD_ANALYZER));
+
+      for (int i = 0; i < 40; i++) {
+         indexWriter.addDocument(DocumentBuilder.doc()
+                 .add(DocumentBuilder.field("mvalue", "ab" + i))
+                 .add(DocumentBuilder.field("mvalue", "cd" + (i % 5)))
+                 .add(DocumentBuilder.field("mvalue", "zz" + (i % 3))).build());
+      }
+
+      IndexReader reader = IndexReader.open(indexWriter, true);
+
+      TIntHashSet excludeTerms = new TIntHashSet();
+      excludeTerms.add(HashedStringFieldType.hashCode("cd3"));
+      HashedStringFieldData.HashedStringTypeLoader loader = new HashedStringFieldData.HashedStringTypeLoader(0, 0,
+              Pattern.compile("AB.*|zz1", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL),
+              excludeTerms);
+
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+         HashedStringFieldData[] loaded = new HashedStringFieldData[] {
+                 new HashedStringFieldType(loader).load(reader, "mvalue"),
+                 new HashedStringFieldType(loader, new MultiSweepFieldDataLoader.ParallelSweeps(executor, 1, 3))
+                         .load(reader, "mvalue")
+         };
+         for (HashedStringFieldData fieldData : loaded) {
+            assertThat(fieldData.termCount(), equalTo(6));
+            assertFieldWithSet(fieldData, 0, new String[] { "cd0", "zz0" });
+            assertFieldWithSet(fieldData, 1, new String[] { "cd1" });
+            assertFieldWithSet(fieldData, 3, new String[] { "zz0" });
+            assertFieldWithSet(fieldData, 8, new String[] { "zz2" });
+            assertFieldWithSet(fieldData, 13, new String[] { });
+         }
+      } finally {
+         executor.shutdown();
+      }
+
+      indexWriter.close();
+   }
+
+   @Test
+   public void TestLineBreaksAfterExcludedPrefix() throws Exception {
+      Directory dir = new RAMDirectory();
+      IndexWriter indexWriter = new IndexWriter(dir, new IndexWriterConfig(
+              Lucene.VERSION, Lucene.STANDARD_ANALYZER));
+
+      for (String term : new String[] { "foo", "foobar", "foo\nbar", "zz" }) {
+         Document doc = new Document();
+         doc.add(new Field("svalue", term, Field.Store.NO, Field.Index.NOT_ANALYZED));
+         indexWriter.addDocument(doc);
+      }
+
+      IndexReader reader = IndexReader.open(indexWriter, true);
+
+      // ".*" stops at line breaks, unless DOTALL is set
+      HashedStringFieldData fieldData = new HashedStringFieldType(new HashedStringFieldData.HashedStringTypeLoader(0, 0,
+              Pattern.compile("foo.*", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE), null)).load(reader, "svalue");
+      assertThat(fieldData.termCount(), equalTo(2));
+      assertFieldWithSet(fieldData, 1, new String[] { });
+      assertFieldWithSet(fieldData, 2, new String[] { "foo\nbar" });
+      assertFieldWithSet(fieldData, 3, new String[] { "zz" });
+
+      fieldData = new HashedStringFieldType(new HashedStringFieldData.HashedStringTypeLoader(0, 0,
+              Pattern.compile("foo.*", Pattern.DOTALL), null)).load(reader, "svalue");
+      assertThat(fieldData.termCount(), equalTo(1));
+      assertFieldWithSet(fieldData, 2, new String[] { });
+      assertFieldWithSet(fieldData, 3, new String[] { "zz" });
+
+      indexWriter.close();
+   }
+
 	@Test
 	public void TestMultiValueCollisionDetection() throws Exception {
 		Directory dir = new RAMDirectory();
@@ -0,0 +1,209 @@
+package org.leskes.test.elasticfacets.fields;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.lucene.DocumentBuilder;
+import org.elasticsearch.common.lucene.Lucene;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.leskes.elasticfacets.fields.HashedStringFieldLoader;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+public class HashedStringFieldLoaderTest {
+
+   IndexWriter indexWriter;
+   IndexReader reader;
+   IndexReader[] segments;
+
+   @BeforeMethod
+   public void setUp() throws Exception {
+      indexWriter = new IndexWriter(new RAMDirectory(), new IndexWriterConfig(Lucene.VERSION, Lucene.STANDARD_ANALYZER));
+      for (int i = 0; i < 4; i++) {
+         indexWriter.addDocument(DocumentBuilder.doc().add(DocumentBuilder.field("value", "v" + i)).build());
+         indexWriter.commit(); // a segment per doc
+      }
+      reader = IndexReader.open(indexWriter, true);
+      segments = reader.getSequentialSubReaders();
+      assertThat(segments.length, equalTo(4));
+   }
+
+   @AfterMethod
+   public void tearDown() throws Exception {
+      if (reader.getRefCount() > 0) reader.close();
+      indexWriter.close();
+   }
+
+   /**
+    * Records loads, optionally blocking them until released.
+    */
+   static class RecordingLoader implements HashedStringFieldLoader.SegmentLoader {
+      final Set<IndexReader> cached = Collections.synchronizedSet(new HashSet<IndexReader>());
+      // segments which were already closed when their load ran
+      final Set<IndexReader> closed = Collections.synchronizedSet(new HashSet<IndexReader>());
+      final CountDownLatch release;
+      final CountDownLatch loaded;
+
+      RecordingLoader(int expectedLoads, boolean block) {
+         this.release = new CountDownLatch(block ? 1 : 0);
+         this.loaded = new CountDownLatch(expectedLoads);
+      }
+
+      public boolean isCachedOrLoading(IndexReader segment, String field) throws IOException {
+         return cached.contains(segment);
+      }
+
+      public void load(IndexReader segment, String field) throws IOException {
+         try {
+            release.await();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+         }
+         if (segment.getRefCount() == 0) closed.add(segment);
+         cached.add(segment);
+         loaded.countDown();
+      }
+   }
+
+   HashedStringFieldLoader newLoader(int threads, int queueSize) {
+      HashedStringFieldLoader loader = new HashedStringFieldLoader(ImmutableSettings.settingsBuilder()
+              .put(HashedStringFieldLoader.SETTINGS_PREFIX + "threads", threads)
+              .put(HashedStringFieldLoader.SETTINGS_PREFIX + "queue_size", queueSize)
+              .build());
+      loader.start();
+      return loader;
+   }
+
+   @Test
+   public void testLoadsAllButCurrentSegment() throws Exception {
+      HashedStringFieldLoader loader = newLoader(2, 10);
+      try {
+         RecordingLoader segmentLoader = new RecordingLoader(3, false);
+         assertThat(loader.loadInBackground(null, segmentLoader, segments, "value", segments[0]), equalTo(3));
+         assertThat(segmentLoader.loaded.await(10, TimeUnit.SECONDS), equalTo(true));
+         assertThat(segmentLoader.cached.contains(segments[0]), equalTo(false));
+      } finally {
+         loader.close();
+      }
+   }
+
+   @Test
+   public void testSkipsCachedSegments() throws Exception {
+      HashedStringFieldLoader loader = newLoader(2, 10);
+      try {
+         RecordingLoader segmentLoader = new RecordingLoader(1, false);
+         segmentLoader.cached.add(segments[1]);
+         segmentLoader.cached.add(segments[2]);
+         assertThat(loader.loadInBackground(null, segmentLoader, segments, "value", segments[0]), equalTo(1));
+         assertThat(segmentLoader.loaded.await(10, TimeUnit.SECONDS), equalTo(true));
+         assertThat(segmentLoader.cached.contains(segments[3]), equalTo(true));
+      } finally {
+         loader.close();
+      }
+   }
+
+   @Test
+   public void testFansOutOncePerSearcherAndField() throws Exception {
+      HashedStringFieldLoader loader = newLoader(2, 10);
+      try {
+         RecordingLoader segmentLoader = new RecordingLoader(6, true);
+         Object searcher = new Object();
+         assertThat(loader.loadInBackground(searcher, segmentLoader, segments, "value", segments[0]), equalTo(3));
+         // loads are still blocked, so nothing is cached yet
+         assertThat(loader.loadInBackground(searcher, segmentLoader, segments, "value", segments[0]), equalTo(0));
+         assertThat(loader.loadInBackground(searcher, segmentLoader, segments, "other", segments[0]), equalTo(3));
+         segmentLoader.release.countDown();
+         assertThat(segmentLoader.loaded.await(10, TimeUnit.SECONDS), equalTo(true));
+         assertThat(loader.loadInBackground(new Object(), segmentLoader, segments, "value", segments[0]), equalTo(0));
+      } finally {
+         loader.close();
+      }
+   }
+
+   @Test
+   public void testFullQueueLeavesSegmentsToTheCaller() throws Exception {
+      HashedStringFieldLoader loader = newLoader(1, 1);
+      try {
+         RecordingLoader segmentLoader = new RecordingLoader(2, true);
+         // one load runs (and blocks), one waits in the queue, the third is rejected
+         assertThat(loader.loadInBackground(null, segmentLoader, segments, "value", segments[0]), equalTo(2));
+         segmentLoader.release.countDown();
+         assertThat(segmentLoader.loaded.await(10, TimeUnit.SECONDS), equalTo(true));
+         assertThat(segmentLoader.cached.contains(segments[3]), equalTo(false));
+      } finally {
+         loader.close();
+      }
+   }
+
+   @Test
+   public void testQueuedSegmentsStayOpenUntilLoaded() throws Exception {
+      HashedStringFieldLoader loader = newLoader(1, 10);
+      try {
+         RecordingLoader segmentLoader = new RecordingLoader(3, true);
+         assertThat(loader.loadInBackground(null, segmentLoader, segments, "value", segments[0]), equalTo(3));
+         // the search is done and its reader closed before the loads ran
+         reader.close();
+         assertThat(segments[0].getRefCount(), equalTo(0));
+         assertThat(segments[1].getRefCount(), equalTo(1));
+         segmentLoader.release.countDown();
+         assertThat(segmentLoader.loaded.await(10, TimeUnit.SECONDS), equalTo(true));
+         assertThat(segmentLoader.closed.isEmpty(), equalTo(true));
+         // the references are released right after the loads
+         for (IndexReader segment : segments) {
+            for (int i = 0; i < 100 && segment.getRefCount() > 0; i++) Thread.sleep(10);
+            assertThat(segment.getRefCount(), equalTo(0));
+         }
+      } finally {
+         loader.close();
+      }
+   }
+
+   @Test
+   public void testSkipsClosedSegments() throws Exception {
+      HashedStringFieldLoader loader = newLoader(2, 10);
+      try {
+         reader.close();
+         assertThat(loader.loadInBackground(null, new RecordingLoader(0, false), segments, "value", segments[0]),
+                 equalTo(0));
+      } finally {
+         loader.close();
+      }
+   }
+
+   @Test
+   public void testDisabledPool() throws Exception {
+      HashedStringFieldLoader loader = newLoader(0, 10);
+      try {
+         assertThat(loader.parallelSweeps(), nullValue());
+         assertThat(loader.loadInBackground(null, new RecordingLoader(0, false), segments, "value", segments[0]),
+                 equalTo(0));
+      } finally {
+         loader.close();
+      }
+   }
+
+   @Test(expectedExceptions = ElasticSearchException.class)
+   public void testInvalidQueueSize() throws Exception {
+      newLoader(1, 0);
+   }
+
+   @Test(expectedExceptions = ElasticSearchException.class)
+   public void testInvalidThreads() throws Exception {
+      newLoader(-1, 10);
+   }
+}
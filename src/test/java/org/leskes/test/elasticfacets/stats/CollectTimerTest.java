@@ -0,0 +1,43 @@
+package org.leskes.test.elasticfacets.stats;
+
+import org.leskes.elasticfacets.stats.FacetStats;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class CollectTimerTest {
+
+   @Test
+   public void testEmpty() {
+      FacetStats.CollectTimer timer = new FacetStats.CollectTimer();
+      assertThat(timer.docs(), equalTo(0L));
+      assertThat(timer.estimatedNanos(), equalTo(0L));
+   }
+
+   @Test
+   public void testScalesSamplesToAllDocs() {
+      FacetStats.CollectTimer timer = new FacetStats.CollectTimer();
+      int sampled = 0;
+      for (int doc = 0; doc < 6400; doc++) {
+         if (timer.sample()) {
+            timer.record(1000);
+            sampled++;
+         }
+      }
+      assertThat(sampled, equalTo(100));
+      assertThat(timer.docs(), equalTo(6400L));
+      assertThat(timer.estimatedNanos(), equalTo(6400L * 1000));
+   }
+
+   @Test
+   public void testEveryDocRecorded() {
+      // as done while profiling
+      FacetStats.CollectTimer timer = new FacetStats.CollectTimer();
+      for (int doc = 0; doc < 100; doc++) {
+         timer.sample();
+         timer.record(doc);
+      }
+      assertThat(timer.estimatedNanos(), equalTo(4950L));
+   }
+}
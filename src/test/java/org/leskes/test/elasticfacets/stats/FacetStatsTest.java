@@ -0,0 +1,87 @@
+package org.leskes.test.elasticfacets.stats;
+
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.leskes.elasticfacets.stats.FacetStatsAction;
+import org.leskes.elasticfacets.stats.FacetStatsRequest;
+import org.leskes.elasticfacets.stats.FacetStatsResponse;
+import org.leskes.elasticfacets.stats.LatencyHistogram;
+import org.leskes.elasticfacets.stats.NodeFacetStats;
+import org.leskes.test.elasticfacets.utils.AbstractNodesTests;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+
+public class FacetStatsTest extends AbstractNodesTests {
+
+   protected void loadData() throws IOException {
+      for (int i = 0; i < 100; i++) {
+         client.prepareIndex("test", "type1")
+                 .setSource(jsonBuilder().startObject().field("tag", "tag" + i).field("date", i * 3600000L).endObject())
+                 .execute().actionGet();
+      }
+      client.admin().indices().prepareRefresh().execute().actionGet();
+   }
+
+   protected void configureNodeSettings(ImmutableSettings.Builder settingsBuilder) {
+      settingsBuilder.put("index.number_of_shards", numberOfShards())
+              .put("index.number_of_replicas", 0)
+              .put("index.hashed_strings.field.tag.warm", true);
+   }
+
+   @Test
+   public void TestPhasesRecorded() throws Exception {
+      client.prepareSearch()
+              .setSearchType(SearchType.COUNT)
+              .setFacets(("{ \"facet1\": { \"hashed_terms\" : { \"field\": \"tag\" } }," +
+                      " \"facet2\": { \"faceted_date_histogram\" : { \"field\": \"date\", \"interval\": \"day\"," +
+                      " \"facet\": { \"terms\": { \"field\": \"tag\" } } } } }").getBytes("UTF-8"))
+              .execute().actionGet();
+
+      FacetStatsResponse r = client.admin().cluster()
+              .execute(FacetStatsAction.INSTANCE, new FacetStatsRequest()).get();
+
+      long shards = 0;
+      for (NodeFacetStats s : r) {
+         Map<String, LatencyHistogram.Summary> hashed = s.facets().get("hashed_terms");
+         if (hashed == null) continue; // node without shards
+         assertThat(hashed.get("parse"), notNullValue());
+         assertThat(hashed.get("collect"), notNullValue());
+         assertThat(hashed.get("facet"), notNullValue());
+         shards += hashed.get("facet").count();
+         assertThat(s.facets().get("faceted_date_histogram").get("field_data").count(), greaterThan(0L));
+         assertThat(s.fieldDataLoads().get("tag").count(), greaterThan(0L));
+      }
+      assertThat(shards, greaterThanOrEqualTo((long) numberOfShards()));
+
+      long reduces = 0;
+      for (NodeFacetStats s : r) {
+         Map<String, LatencyHistogram.Summary> hashed = s.facets().get("hashed_terms");
+         if (hashed != null && hashed.get("reduce") != null) reduces += hashed.get("reduce").count();
+      }
+      assertThat(reduces, equalTo(1L));
+   }
+
+   @Test
+   public void TestWarmupRecorded() throws Exception {
+      // loadData refreshed the index, which warms tag on every shard
+      FacetStatsResponse r = client.admin().cluster()
+              .execute(FacetStatsAction.INSTANCE, new FacetStatsRequest()).get();
+
+      long warmups = 0;
+      for (NodeFacetStats s : r) {
+         LatencyHistogram.Summary tag = s.fieldDataWarmups().get("tag");
+         if (tag != null) warmups += tag.count();
+         assertThat(s.fieldDataWarmups().containsKey("date"), equalTo(false));
+      }
+      assertThat(warmups, greaterThanOrEqualTo((long) numberOfShards()));
+   }
+}
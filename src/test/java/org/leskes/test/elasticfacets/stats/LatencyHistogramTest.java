@@ -0,0 +1,65 @@
+package org.leskes.test.elasticfacets.stats;
+
+import org.leskes.elasticfacets.stats.LatencyHistogram;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class LatencyHistogramTest {
+
+   @Test
+   public void testEmpty() {
+      LatencyHistogram.Summary summary = new LatencyHistogram().summary();
+      assertThat(summary.count(), equalTo(0L));
+      assertThat(summary.p99(), equalTo(0L));
+      assertThat(summary.max(), equalTo(0L));
+   }
+
+   @Test
+   public void testPercentiles() {
+      LatencyHistogram histogram = new LatencyHistogram(4);
+      for (long micros = 1; micros <= 10000; micros++) {
+         histogram.record(micros);
+      }
+      LatencyHistogram.Summary summary = histogram.summary();
+      assertThat(summary.count(), equalTo(10000L));
+      assertThat(summary.max(), equalTo(10000L));
+      assertThat(summary.mean(), equalTo(5000L));
+      assertWithin(summary.p50(), 5000);
+      assertWithin(summary.p90(), 9000);
+      assertWithin(summary.p99(), 9900);
+   }
+
+   @Test
+   public void testConcurrentRecording() throws Exception {
+      final LatencyHistogram histogram = new LatencyHistogram(2);
+      Thread[] threads = new Thread[8];
+      for (int i = 0; i < threads.length; i++) {
+         threads[i] = new Thread() {
+            @Override
+            public void run() {
+               for (int j = 0; j < 10000; j++) {
+                  histogram.recordNanos(123000);
+               }
+            }
+         };
+         threads[i].start();
+      }
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      LatencyHistogram.Summary summary = histogram.summary();
+      assertThat(summary.count(), equalTo(80000L));
+      assertThat(summary.max(), equalTo(123L));
+      assertThat(summary.p50(), equalTo(123L));
+   }
+
+   private static void assertWithin(long value, long expected) {
+      // buckets are at most 1/16th of their magnitude wide
+      assertThat(value, greaterThanOrEqualTo(expected));
+      assertThat(value, lessThanOrEqualTo(expected + expected / 16));
+   }
+}
@@ -1,35 +1,168 @@
 package org.leskes.test.elasticfacets.utils;
 
 import junit.framework.TestCase;
+import org.elasticsearch.common.settings.ImmutableSettings;
 import org.leskes.elasticfacets.utils.SizeSensitiveCacheRecycler;
 import org.testng.annotations.Test;
 
+import java.nio.IntBuffer;
+
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.sameInstance;
 
 public class SizeSensitiveCacheRecyclerTest extends TestCase {
    @Test
    public void testPopIntArray() throws Exception {
+      SizeSensitiveCacheRecycler.configure(ImmutableSettings.Builder.EMPTY_SETTINGS);
       SizeSensitiveCacheRecycler.clear();
       int[] array = SizeSensitiveCacheRecycler.popIntArray(10);
-      assertThat(array.length, equalTo(10));
+      assertThat(array.length, equalTo(16));
 
       SizeSensitiveCacheRecycler.pushIntArray(array);
 
-      array = SizeSensitiveCacheRecycler.popIntArray(4);
-      assertThat(array.length, equalTo(10));
+      // same size class
+      int[] recycled = SizeSensitiveCacheRecycler.popIntArray(4);
+      assertThat(recycled, sameInstance(array));
 
       array = SizeSensitiveCacheRecycler.popIntArray(4);
-      assertThat(array.length, equalTo(4));
+      assertThat(array.length, equalTo(16));
       SizeSensitiveCacheRecycler.pushIntArray(array);
 
       array = SizeSensitiveCacheRecycler.popIntArray(1000);
-      assertThat(array.length, equalTo(1000));
+      assertThat(array.length, equalTo(1024));
+      array[3] = 5;
       SizeSensitiveCacheRecycler.pushIntArray(array);
 
-      array = SizeSensitiveCacheRecycler.popIntArray(600);
-      assertThat(array.length, equalTo(1000));
+      // a different class must never get a too small array
+      assertThat(SizeSensitiveCacheRecycler.popIntArray(1025).length, equalTo(2048));
+
+      recycled = SizeSensitiveCacheRecycler.popIntArray(600);
+      assertThat(recycled, sameInstance(array));
+      assertThat(recycled[3], equalTo(0));
+   }
+
+   @Test
+   public void testPushClearedIsNotFilled() throws Exception {
+      SizeSensitiveCacheRecycler.configure(ImmutableSettings.Builder.EMPTY_SETTINGS);
+      SizeSensitiveCacheRecycler.clear();
+      int[] array = SizeSensitiveCacheRecycler.popIntArray(100);
+      array[7] = 3;
+      array[7] = 0; // the consumer clears what it touched
+      SizeSensitiveCacheRecycler.pushClearedIntArray(array);
+
+      int[] recycled = SizeSensitiveCacheRecycler.popIntArray(100);
+      assertThat(recycled, sameInstance(array));
+      for (int v : recycled) {
+         assertThat(v, equalTo(0));
+      }
+   }
 
+   @Test
+   public void testOffHeapBuffers() throws Exception {
+      SizeSensitiveCacheRecycler.configure(ImmutableSettings.settingsBuilder()
+              .put("facet.recycler.off_heap.min_size", 1000)
+              .put("facet.recycler.off_heap.max_bytes", "8kb")
+              .build());
+      IntBuffer small = SizeSensitiveCacheRecycler.popIntBuffer(100);
+      assertThat(small.isDirect(), equalTo(false));
+
+      IntBuffer large = SizeSensitiveCacheRecycler.popIntBuffer(1500);
+      assertThat(large.isDirect(), equalTo(true));
+      assertThat(large.capacity(), equalTo(2048));
+      large.put(1234, 7);
+
+      // the arena is exhausted
+      IntBuffer fallback = SizeSensitiveCacheRecycler.popIntBuffer(1500);
+      assertThat(fallback.isDirect(), equalTo(false));
+
+      SizeSensitiveCacheRecycler.pushIntBuffer(large);
+      IntBuffer recycled = SizeSensitiveCacheRecycler.popIntBuffer(2000);
+      assertThat(recycled, sameInstance(large));
+      assertThat(recycled.get(1234), equalTo(0));
+
+      SizeSensitiveCacheRecycler.pushIntBuffer(recycled);
+      SizeSensitiveCacheRecycler.pushIntBuffer(fallback);
+      SizeSensitiveCacheRecycler.pushIntBuffer(small);
+      SizeSensitiveCacheRecycler.configure(ImmutableSettings.Builder.EMPTY_SETTINGS);
+   }
+
+   @Test
+   public void testLeakedBuffersAreReclaimed() throws Exception {
+      SizeSensitiveCacheRecycler.configure(ImmutableSettings.settingsBuilder()
+              .put("facet.recycler.off_heap.min_size", 1000)
+              .put("facet.recycler.off_heap.max_bytes", "8kb")
+              .build());
+      SizeSensitiveCacheRecycler.clear();
+      long reclaimed = SizeSensitiveCacheRecycler.stats().offHeapReclaimed();
+
+      // leased by a request which failed before pushing it back
+      IntBuffer leaked = SizeSensitiveCacheRecycler.popIntBuffer(1500);
+      assertThat(leaked.isDirect(), equalTo(true));
+      IntBuffer fallback = SizeSensitiveCacheRecycler.popIntBuffer(1500);
+      assertThat(fallback.isDirect(), equalTo(false));
+      SizeSensitiveCacheRecycler.pushIntBuffer(fallback);
+      leaked = null;
+
+      IntBuffer recovered = null;
+      for (int i = 0; i < 100 && recovered == null; i++) {
+         System.gc();
+         Thread.sleep(10);
+         IntBuffer buffer = SizeSensitiveCacheRecycler.popIntBuffer(1500);
+         if (buffer.isDirect()) {
+            recovered = buffer;
+         } else {
+            SizeSensitiveCacheRecycler.pushIntBuffer(buffer);
+         }
+      }
+      assertThat(recovered != null, equalTo(true));
+      assertThat(SizeSensitiveCacheRecycler.stats().offHeapReclaimed() - reclaimed, greaterThanOrEqualTo(1L));
+
+      SizeSensitiveCacheRecycler.pushIntBuffer(recovered);
+      long pooled = SizeSensitiveCacheRecycler.stats().offHeapBytes();
+      SizeSensitiveCacheRecycler.clear();
+      assertThat(SizeSensitiveCacheRecycler.stats().offHeapBytes(), lessThanOrEqualTo(pooled - 8192));
+      SizeSensitiveCacheRecycler.configure(ImmutableSettings.Builder.EMPTY_SETTINGS);
+   }
+
+   @Test
+   public void testDepotIsCapped() throws Exception {
+      SizeSensitiveCacheRecycler.configure(ImmutableSettings.settingsBuilder()
+              .put("facet.recycler.max_arrays_per_class", 2)
+              .put("facet.recycler.magazine_size", 0)
+              .build());
+      SizeSensitiveCacheRecycler.clear();
+      SizeSensitiveCacheRecycler.Stats before = SizeSensitiveCacheRecycler.stats();
+
+      int[][] arrays = new int[3][];
+      for (int i = 0; i < arrays.length; i++) {
+         arrays[i] = SizeSensitiveCacheRecycler.popIntArray(100);
+      }
+      for (int[] a : arrays) {
+         SizeSensitiveCacheRecycler.pushIntArray(a);
+      }
+
+      SizeSensitiveCacheRecycler.Stats stats = SizeSensitiveCacheRecycler.stats();
+      assertThat(stats.misses() - before.misses(), equalTo(3L));
+      assertThat(stats.allocatedBytes() - before.allocatedBytes(), equalTo(3L * 128 * 4));
+      assertThat(stats.dropped() - before.dropped(), equalTo(1L));
+      assertThat(stats.pooledBytes(), equalTo(2L * 128 * 4));
+
+      SizeSensitiveCacheRecycler.popIntArray(100);
+      assertThat(SizeSensitiveCacheRecycler.stats().hits() - before.hits(), equalTo(1L));
+
+      SizeSensitiveCacheRecycler.configure(ImmutableSettings.Builder.EMPTY_SETTINGS);
+   }
+
+   @Test
+   public void testLargeArraysAreNotRounded() throws Exception {
+      SizeSensitiveCacheRecycler.configure(ImmutableSettings.settingsBuilder()
+              .put("facet.recycler.max_bytes_per_class", "1kb")
+              .build());
+      assertThat(SizeSensitiveCacheRecycler.popIntArray(100000).length, equalTo(100000));
+      SizeSensitiveCacheRecycler.configure(ImmutableSettings.Builder.EMPTY_SETTINGS);
    }
 
 